@@ -0,0 +1,140 @@
+package ontopt.pen;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * Measures the time and the heap allocation spent parsing a file of sentences, so that changes to the chart
+ * representation can be compared. The sentences are parsed a few times to warm up the JIT before the measured
+ * round.
+ * </p>
+ * <p>
+ * Allocation is read from the HotSpot thread MXBean; on other virtual machines only the time is reported.
+ * </p>
+ */
+public class AllocationBenchmark
+{
+	private static final int WARMUP_ROUNDS = 3;
+
+	private static final int MEASURED_ROUNDS = 5;
+
+	private final EarleyParser parser;
+
+	private final ArrayList<String> sentences;
+
+	public AllocationBenchmark(EarleyParser parser, ArrayList<String> sentences)
+	{
+		this.parser = parser;
+		this.sentences = sentences;
+	}
+
+	/**
+	 * Parses every sentence once.
+	 */
+	private void parseAll()
+	{
+		for (int i = 0; i < sentences.size(); i++)
+		{
+			parser.parseSentence(new PenSentence(sentences.get(i)));
+		}
+	}
+
+	/**
+	 * Runs the benchmark and reports the results on the given stream.
+	 *
+	 * @param out
+	 *            The stream where results are printed
+	 */
+	public void run(PrintStream out)
+	{
+		long bytes = -1;
+		long time;
+
+		for (int i = 0; i < WARMUP_ROUNDS; i++)
+		{
+			parseAll();
+		}
+
+		long startBytes = allocatedBytes();
+		long startTime = System.nanoTime();
+		for (int i = 0; i < MEASURED_ROUNDS; i++)
+		{
+			parseAll();
+		}
+		time = (System.nanoTime() - startTime) / MEASURED_ROUNDS;
+		if (startBytes >= 0)
+		{
+			bytes = (allocatedBytes() - startBytes) / MEASURED_ROUNDS;
+		}
+
+		out.println("sentences:       " + sentences.size());
+		out.println("time per round:  " + (time / 1000000.) + " ms");
+		if (bytes >= 0)
+		{
+			out.println("bytes per round: " + bytes);
+			out.println("bytes/sentence:  " + (bytes / Math.max(1, sentences.size())));
+		}
+	}
+
+	/**
+	 * Gets the bytes allocated so far by the current thread.
+	 *
+	 * @return The allocated bytes, or -1 if the virtual machine cannot tell
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if (bean instanceof com.sun.management.ThreadMXBean)
+		{
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+			if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+			{
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+
+		return -1;
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length != 2)
+		{
+			System.out.println("Usage:\n");
+			System.out.println("java -cp pen.jar ontopt.pen.AllocationBenchmark <grammar> <sentences_file>");
+			return;
+		}
+
+		try
+		{
+			ArrayList<String> sentences = new ArrayList<String>();
+			String buffer;
+
+			BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+			while ((buffer = reader.readLine()) != null)
+			{
+				if (buffer.trim().length() > 0)
+				{
+					sentences.add(buffer);
+				}
+			}
+			reader.close();
+
+			new AllocationBenchmark(new EarleyParser(args[0]), sentences).run(System.out);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (GrammarException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package ontopt.pen;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * Parses a file of sentences on several threads, as a pipeline: a reader thread reads the sentences, a
+ * pool of workers tokenizes and parses them against one shared parser, and the calling thread writes the
+ * trees in the order of the input. The parses in progress, and those done but waiting for an earlier one,
+ * are held in a bounded reorder buffer, so a slow sentence holds back the reader rather than filling the
+ * memory.
+ * </p>
+ * <p>
+ * When done, the throughput, the latency percentiles by sentence length and the failed sentences are
+ * reported. The trees are printed as by EarleyParser.main(). With a budget (see ParseBudget), a sentence
+ * that exceeds it is reported as failed, with how far it got, and does not hold its worker any longer.
+ * </p>
+ */
+public class BatchParser
+{
+	/**
+	 * The width of the sentence length classes of the latency report
+	 */
+	private static final int LENGTH_CLASS = 10;
+
+	/**
+	 * Marks the end of the input in the reorder buffer
+	 */
+	private static final Future<Result> END = new FutureTask<Result>(new Callable<Result>()
+	{
+		public Result call()
+		{
+			return null;
+		}
+	});
+
+	private final EarleyParser parser;
+
+	private final int threads;
+
+	private final int window;
+
+	private volatile ParseBudget budget;
+
+	/**
+	 * The parse of one sentence: its trees as printed, and how long it took
+	 */
+	private static class Result
+	{
+		private final int words;
+
+		private final long time;
+
+		private final String output;
+
+		private final String failure;
+
+		private Result(int words, long time, String output, String failure)
+		{
+			this.words = words;
+			this.time = time;
+			this.output = output;
+			this.failure = failure;
+		}
+	}
+
+	/**
+	 * The constructor
+	 *
+	 * @param parser
+	 *            The parser, shared by the workers
+	 * @param threads
+	 *            The number of workers
+	 * @param window
+	 *            The capacity of the reorder buffer: the most sentences read and not yet written
+	 */
+	public BatchParser(EarleyParser parser, int threads, int window)
+	{
+		if (threads < 1 || window < 1)
+		{
+			throw new IllegalArgumentException("The number of threads and the window must be positive");
+		}
+
+		this.parser = parser;
+		this.threads = threads;
+		this.window = window;
+	}
+
+	/**
+	 * Sets the budget of the parse of each sentence.
+	 * 
+	 * @param budget
+	 *            The budget, or null for none
+	 */
+	public void setBudget(ParseBudget budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	 * Parses every sentence of a reader, one per line, and prints their trees in order.
+	 *
+	 * @param reader
+	 *            The sentences
+	 * @param out
+	 *            The stream where the trees are printed
+	 * @param report
+	 *            The stream where the statistics are printed
+	 * @throws IOException
+	 *             If the sentences could not be read
+	 */
+	public void run(final BufferedReader reader, PrintStream out, PrintStream report) throws IOException
+	{
+		final BlockingQueue<Future<Result>> buffer = new ArrayBlockingQueue<Future<Result>>(window);
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		final IOException[] readError = new IOException[1];
+		final RuntimeException[] readFailure = new RuntimeException[1];
+		List<List<Long>> latencies = newLatencyClasses();
+		List<String> failures = new ArrayList<String>();
+		long sentences = 0;
+		long words = 0;
+		long start = System.nanoTime();
+		long time;
+		Future<Result> next;
+		Result result;
+
+		Thread readerThread = new Thread("BatchParser reader")
+		{
+			@Override
+			public void run()
+			{
+				String line;
+
+				try
+				{
+					while ((line = reader.readLine()) != null)
+					{
+						if (line.trim().length() > 0)
+						{
+							buffer.put(workers.submit(parse(line)));
+						}
+					}
+				}
+				catch (IOException e)
+				{
+					readError[0] = e;
+				}
+				catch (RuntimeException e)
+				{
+					// Still ends the input, or the writer would wait for it forever
+					readFailure[0] = e;
+				}
+				catch (InterruptedException e)
+				{
+					// The writer gave up: nobody takes the end mark
+					return;
+				}
+
+				try
+				{
+					buffer.put(END);
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+		};
+		readerThread.setDaemon(true);
+
+		try
+		{
+			readerThread.start();
+			while ((next = buffer.take()) != END)
+			{
+				result = next.get();
+				out.print(result.output);
+				if (result.failure != null)
+				{
+					failures.add(result.failure);
+				}
+
+				sentences++;
+				words += result.words;
+				latencies.get(Math.min(latencies.size() - 1, result.words / LENGTH_CLASS)).add(result.time);
+			}
+			out.flush();
+			time = System.nanoTime() - start;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			readerThread.interrupt();
+			return;
+		}
+		catch (ExecutionException e)
+		{
+			readerThread.interrupt();
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+
+		if (readError[0] != null)
+		{
+			throw readError[0];
+		}
+		if (readFailure[0] != null)
+		{
+			throw readFailure[0];
+		}
+
+		report(report, sentences, words, time, latencies, failures);
+	}
+
+	/**
+	 * Creates the task tokenizing and parsing a sentence, so that a sentence which cannot be tokenized fails
+	 * like one which cannot be parsed.
+	 *
+	 * @param line
+	 *            The sentence as read
+	 * @return The task
+	 */
+	private Callable<Result> parse(final String line)
+	{
+		return new Callable<Result>()
+		{
+			public Result call()
+			{
+				StringBuilder output = new StringBuilder();
+				ParseBudget limits = budget;
+				ArrayList<SemanticNode> parses;
+				ParseResult result;
+				PenSentence sentence = null;
+				String failure = null;
+				long start = System.nanoTime();
+
+				output.append("\n***** Derivations for: \n").append(line).append("\n\n");
+				try
+				{
+					sentence = new PenSentence(line);
+					if (limits == null)
+					{
+						parses = parser.parseSentence(sentence);
+						if (parses == null)
+						{
+							failure = "stopped";
+						}
+					}
+					else
+					{
+						result = parser.parseSentence(sentence, limits);
+						parses = result.getTrees();
+						if (!result.isComplete())
+						{
+							failure = result.toString();
+						}
+					}
+
+					if (parses != null)
+					{
+						for (int i = 0; i < parses.size(); i++)
+						{
+							output.append(parses.get(i).getPenn()).append('\n');
+						}
+					}
+				}
+				catch (RuntimeException e)
+				{
+					failure = e.toString();
+				}
+
+				if (failure != null)
+				{
+					output.append("***** Failed: ").append(failure).append('\n');
+					failure = line + ": " + failure;
+				}
+
+				return new Result(sentence != null ? sentence.getSentenceSize() : 0, System.nanoTime() - start,
+						output.toString(), failure);
+			}
+		};
+	}
+
+	/**
+	 * Creates the lists of the latencies of each sentence length class, the last one open-ended.
+	 */
+	private static List<List<Long>> newLatencyClasses()
+	{
+		List<List<Long>> latencies = new ArrayList<List<Long>>();
+
+		for (int i = 0; i < 10; i++)
+		{
+			latencies.add(new ArrayList<Long>());
+		}
+
+		return latencies;
+	}
+
+	/**
+	 * Prints the statistics of a run.
+	 */
+	private void report(PrintStream report, long sentences, long words, long time, List<List<Long>> latencies,
+			List<String> failures)
+	{
+		double seconds = time / 1e9;
+		long[] sorted;
+		String lengths;
+
+		report.println("threads:        " + threads);
+		report.println("sentences:      " + sentences);
+		report.println("words:          " + words);
+		report.println("time:           " + seconds + " s");
+		report.println("sentences/s:    " + (sentences / seconds));
+		report.println("words/s:        " + (words / seconds));
+		report.println("latency (ms)    count      p50      p90      p99      max");
+		for (int i = 0; i < latencies.size(); i++)
+		{
+			if (latencies.get(i).isEmpty())
+			{
+				continue;
+			}
+
+			sorted = new long[latencies.get(i).size()];
+			for (int j = 0; j < sorted.length; j++)
+			{
+				sorted[j] = latencies.get(i).get(j);
+			}
+			Arrays.sort(sorted);
+
+			lengths = i == latencies.size() - 1 ? (i * LENGTH_CLASS) + "+" : (i * LENGTH_CLASS) + "-"
+					+ ((i + 1) * LENGTH_CLASS - 1);
+			report.println(String.format("  %-12s %7d %8.2f %8.2f %8.2f %8.2f", lengths, sorted.length,
+					percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+					sorted[sorted.length - 1] / 1e6));
+		}
+		report.println("failures:       " + failures.size());
+		for (int i = 0; i < failures.size(); i++)
+		{
+			report.println("  " + failures.get(i));
+		}
+	}
+
+	/**
+	 * Gets a percentile of sorted times, by the nearest rank.
+	 *
+	 * @return The percentile in milliseconds
+	 */
+	private static double percentile(long[] sorted, double fraction)
+	{
+		int rank = (int) Math.ceil(fraction * sorted.length);
+
+		return sorted[Math.max(0, rank - 1)] / 1e6;
+	}
+
+	public static void main(String[] args)
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		BatchParser batch;
+
+		if (args.length < 2 || args.length > 4)
+		{
+			System.out.println("Usage:\n");
+			System.out.println("java -cp pen.jar ontopt.pen.BatchParser <grammar> <sentences_file> [threads] [time_limit_ms]");
+			return;
+		}
+
+		try
+		{
+			if (args.length >= 3)
+			{
+				threads = Integer.parseInt(args[2]);
+			}
+
+			EarleyParser parser = new EarleyParser(args[0]);
+			BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+
+			try
+			{
+				batch = new BatchParser(parser, threads, 16 * threads);
+				if (args.length == 4)
+				{
+					batch.setBudget(new ParseBudget(Long.parseLong(args[3]), 0, 0));
+				}
+				batch.run(reader, System.out, System.err);
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			System.out.println("The number of threads and the time limit must be integers");
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (GrammarException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package ontopt.pen;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <p>
+ * Writes the events of the parses to a stream as binary records, much more compact and faster to write than
+ * a text trace. Each record begins with the type of the event and the number of the sentence, counted from 0
+ * across all the threads, so that interleaved parses can be told apart; then come, in the order of
+ * DataOutputStream:
+ * </p>
+ * <ul>
+ * <li>SENTENCE: the number of words (int) and the sentence (UTF)</li>
+ * <li>PREDICT, SCAN, COMPLETE: the rule ID, the start, the end and the dot of the state (ints), and its
+ * forward and inner probabilities (doubles)</li>
+ * <li>COLUMN: the index of the column and its number of states (ints)</li>
+ * <li>PREFIX: the index of the word (int), the prefix probability and its logarithm (doubles)</li>
+ * </ul>
+ * <p>
+ * An error writing the stream stops the trace, and is thrown by close().
+ * </p>
+ */
+public class BinaryTraceListener implements ParseListener
+{
+	public static final byte SENTENCE = 0;
+
+	public static final byte PREDICT = 1;
+
+	public static final byte SCAN = 2;
+
+	public static final byte COMPLETE = 3;
+
+	public static final byte COLUMN = 4;
+
+	public static final byte PREFIX = 5;
+
+	private final DataOutputStream out;
+
+	private int sentences;
+
+	/**
+	 * The number of the sentence being parsed on each thread
+	 */
+	private final ThreadLocal<Integer> sentence = new ThreadLocal<Integer>()
+	{
+		@Override
+		protected Integer initialValue()
+		{
+			return -1;
+		}
+	};
+
+	private IOException error;
+
+	/**
+	 * The constructor
+	 * 
+	 * @param out
+	 *            The stream where the records are written
+	 */
+	public BinaryTraceListener(OutputStream out)
+	{
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	public synchronized void sentenceStarted(Sentence sentence)
+	{
+		this.sentence.set(sentences++);
+		if (begin(SENTENCE))
+		{
+			try
+			{
+				out.writeInt(sentence.getSentenceSize());
+				out.writeUTF(sentence.toString());
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+		}
+	}
+
+	public void predicted(State state)
+	{
+		write(PREDICT, state);
+	}
+
+	public void scanned(State state)
+	{
+		write(SCAN, state);
+	}
+
+	public void completed(State state)
+	{
+		write(COMPLETE, state);
+	}
+
+	public synchronized void columnDone(int index, ChartColumn column)
+	{
+		if (begin(COLUMN))
+		{
+			try
+			{
+				out.writeInt(index);
+				out.writeInt(column.size());
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+		}
+	}
+
+	public synchronized void prefixProbability(int index, double prefix, double logPrefix)
+	{
+		if (begin(PREFIX))
+		{
+			try
+			{
+				out.writeInt(index);
+				out.writeDouble(prefix);
+				out.writeDouble(logPrefix);
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+		}
+	}
+
+	private synchronized void write(byte type, State state)
+	{
+		if (begin(type))
+		{
+			try
+			{
+				out.writeInt(state.getRule().getID());
+				out.writeInt(state.getStart());
+				out.writeInt(state.getEnd());
+				out.writeInt(state.getDot());
+				out.writeDouble(state.getForwardProbability());
+				out.writeDouble(state.getInnerProbability());
+			}
+			catch (IOException e)
+			{
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * Writes the beginning of a record, unless the trace was stopped by an error.
+	 * 
+	 * @return false if it was
+	 */
+	private boolean begin(byte type)
+	{
+		if (error != null)
+		{
+			return false;
+		}
+
+		try
+		{
+			out.writeByte(type);
+			out.writeInt(sentence.get());
+			return true;
+		}
+		catch (IOException e)
+		{
+			error = e;
+			return false;
+		}
+	}
+
+	/**
+	 * Flushes and closes the stream.
+	 * 
+	 * @throws IOException
+	 *             If the stream could not be written
+	 */
+	public synchronized void close() throws IOException
+	{
+		try
+		{
+			out.close();
+		}
+		catch (IOException e)
+		{
+			if (error == null)
+			{
+				error = e;
+			}
+		}
+
+		if (error != null)
+		{
+			throw error;
+		}
+	}
+}
@@ -1,8 +1,9 @@
 package ontopt.pen;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 
 /**
  * <p>
@@ -30,33 +31,91 @@ public class ChartColumn
     private ArrayList<State> chart;
     
 	/**
-	 * Indexes the chart to achieve linear search time for the enqueue() function.
-	 * TODO: still in testing, might not be as effective as expected...
+	 * Indexes the chart by state, so that enqueue() finds an equal state without scanning the column.
 	 */
-    private Set<State> chartIndex;
+    private HashMap<State, State> chartIndex;
+
+    private Grammar grammar;
 
     /**
-     * A list that all chart rows from all charts share. This list is used for constructing the parse tree. The
-     * original Earley algorithm is a membership algorithm and not a parsing algorithm.
-     * 
-     * TODO: The role of this variable is not clear, and the name ambiguous: check... 
+     * Indexes the incomplete states of this column by the constituent right after their dot, so that the
+     * completer only visits the states that can actually be advanced. The nonterminals are indexed by their
+     * dense index.
      */
-    private ArrayList<State> stateList;
-    
+    private ArrayList<State>[] waitingIndex;
+
     /**
-     * The constructor
-     * 
-     * FIXME: it is not clear what the input state list stands for; originally
-     * the constructor took another parameter (an input list of States)
+     * Indexes the incomplete states of this column waiting for a terminal, by terminal index (see
+     * Grammar.getTerminalIndex()). Created with the first such state: most grammars keep their words in
+     * lexical rules, which the scanner reads.
+     */
+    private ArrayList<State>[] waitingWords;
+
+    /**
+     * Indexes by the dense index of their head the complete states of this column that span no words, once
+     * they have been processed. A state waiting for a nullable nonterminal is advanced over them when it is
+     * itself processed. Created with the first such state.
+     */
+    private ArrayList<State>[] emptyIndex;
+
+    /**
+     * Whether the column has been completed: no more states are predicted or completed into it
+     */
+    private boolean closed;
+
+    /**
+     * The product of the factors the column was scaled by
+     */
+    private double scale = 1.;
+
+    /**
+     * The constructor. The states of the column double as the list the back pointers into it refer to.
      * 
-     * @param pStateList
-     *            The stateList that is common to all States
+     * @param grammar
+     *            The grammar of the states
      */
-    public ChartColumn()
+    public ChartColumn(Grammar grammar)
     {
-        this.stateList = new ArrayList<State>();
+        this.grammar = grammar;
         chart = new ArrayList<State>();
-        chartIndex = new HashSet<State>();
+        chartIndex = new HashMap<State, State>();
+        waitingIndex = newIndex(grammar.getNonterminalCount());
+    }
+
+    /**
+     * Creates an index of states with the specified number of entries, each null until a state is added. A
+     * generic array can only be created raw, hence the unchecked conversion.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayList<State>[] newIndex(int size)
+    {
+        return new ArrayList[size];
+    }
+
+    /**
+     * Copies a column, so that the copy can be modified without affecting it. The states are copied in the
+     * same order, so the back pointers into the column hold for the copy.
+     * 
+     * @param column
+     *            The column to copy
+     */
+    public ChartColumn(ChartColumn column)
+    {
+        this(column.grammar);
+
+        for (int i = 0; i < column.chart.size(); i++)
+        {
+            addState(new State(column.chart.get(i)));
+        }
+        for (int head = 0; column.emptyIndex != null && head < column.emptyIndex.length; head++)
+        {
+            for (int i = 0; column.emptyIndex[head] != null && i < column.emptyIndex[head].size(); i++)
+            {
+                addEmptyCompletion(chart.get(column.emptyIndex[head].get(i).getState()));
+            }
+        }
+        closed = column.closed;
+        scale = column.scale;
     }
 
     /**
@@ -67,9 +126,35 @@ public class ChartColumn
      */
     public void addState(State state)
     {
-        state.incState(stateList);
-        chart.add(state);
-        chartIndex.add(state);
+        state.incState(chart);
+        chartIndex.put(state, state);
+
+        if (!state.isComplete())
+        {
+            Integer constituent = state.getNextConstituent();
+            ArrayList<State>[] index = waitingIndex;
+            int i;
+
+            if (Grammar.isNonterminal(constituent))
+            {
+                i = grammar.getNonterminalIndex(constituent);
+            }
+            else
+            {
+                if (waitingWords == null)
+                {
+                    waitingWords = newIndex(grammar.getTerminalCount());
+                }
+                index = waitingWords;
+                i = Grammar.getTerminalIndex(constituent);
+            }
+
+            if (index[i] == null)
+            {
+                index[i] = new ArrayList<State>();
+            }
+            index[i].add(state);
+        }
     }
 
     /**
@@ -91,20 +176,177 @@ public class ChartColumn
      */
     public State getState(int index)
     {
-        return (State) chart.get(index);
+        return chart.get(index);
     }
 
-    public State getState(State row)
+    /**
+     * Gets the incomplete states of this column whose next constituent is the specified symbol. The returned
+     * list is live: states added to the column afterwards are appended to it.
+     * 
+     * @param constituent
+     *            The symbol the states are waiting for
+     * @return The list of waiting states, possibly empty
+     */
+    public List<State> getStatesWaitingFor(Integer constituent)
+    {
+        ArrayList<State> waiting = null;
+        int i;
+
+        if (Grammar.isNonterminal(constituent))
+        {
+            waiting = waitingIndex[grammar.getNonterminalIndex(constituent)];
+        }
+        else if (waitingWords != null)
+        {
+            i = Grammar.getTerminalIndex(constituent);
+            waiting = i >= 0 && i < waitingWords.length ? waitingWords[i] : null;
+        }
+
+        if (waiting == null)
+        {
+            return Collections.emptyList();
+        }
+
+        return waiting;
+    }
+
+    /**
+     * Checks if the column has been completed, so that only the scanner can still use it.
+     * 
+     * @return true if it has
+     */
+    public boolean isClosed()
     {
-        for (int i = chart.size() - 1; i >= 0; i--)
+        return closed;
+    }
+
+    protected void close()
+    {
+        closed = true;
+    }
+
+    /**
+     * Removes the pruned states from the lists of states waiting for a constituent, so that neither the
+     * scanner nor the completer advances them. They stay in the chart, so their indexes do not change.
+     */
+    public void removePruned()
+    {
+        removePruned(waitingIndex);
+        if (waitingWords != null)
         {
-            if (((State) chart.get(i)).equals(row))
+            removePruned(waitingWords);
+        }
+    }
+
+    private static void removePruned(ArrayList<State>[] index)
+    {
+        ArrayList<State> waiting;
+        int count;
+
+        for (int j = 0; j < index.length; j++)
+        {
+            waiting = index[j];
+            if (waiting == null)
+            {
+                continue;
+            }
+
+            count = 0;
+            for (int i = 0; i < waiting.size(); i++)
             {
-                return chart.get(i);
+                if (!waiting.get(i).isPruned())
+                {
+                    waiting.set(count++, waiting.get(i));
+                }
             }
+            waiting.subList(count, waiting.size()).clear();
         }
-        
-        return null;
+    }
+
+    /**
+     * Multiplies the probabilities of the states of this column, but the terminal ones, by a factor.
+     * 
+     * @param factor
+     *            The scaling factor
+     */
+    public void scale(double factor)
+    {
+        scale *= factor;
+        for (int i = 0; i < chart.size(); i++)
+        {
+            if (chart.get(i).getRule() instanceof NonterminalRule)
+            {
+                chart.get(i).scale(factor);
+            }
+        }
+    }
+
+    /**
+     * Gets the product of the factors the column was scaled by: 1 unless the parser scales its columns.
+     * 
+     * @return The scale of the column
+     */
+    public double getScale()
+    {
+        return scale;
+    }
+
+    /**
+     * Records a processed complete state that begins and ends in this column.
+     * 
+     * @param state
+     *            The complete state
+     */
+    public void addEmptyCompletion(State state)
+    {
+        int head = grammar.getNonterminalIndex(state.getRule().getHead());
+
+        // The dummy state has no head: nothing waits for it
+        if (head < 0)
+        {
+            return;
+        }
+
+        if (emptyIndex == null)
+        {
+            emptyIndex = newIndex(waitingIndex.length);
+        }
+        if (emptyIndex[head] == null)
+        {
+            emptyIndex[head] = new ArrayList<State>();
+        }
+        emptyIndex[head].add(state);
+    }
+
+    /**
+     * Gets the processed complete states of this column with the specified head that span no words.
+     * 
+     * @param head
+     *            The head of the states
+     * @return The list of states, possibly empty
+     */
+    public List<State> getEmptyCompletions(Integer head)
+    {
+        int i = grammar.getNonterminalIndex(head);
+        ArrayList<State> completed = emptyIndex == null || i < 0 ? null : emptyIndex[i];
+        if (completed == null)
+        {
+            return Collections.emptyList();
+        }
+
+        return completed;
+    }
+
+    /**
+     * Gets the state of this column equal to the specified one.
+     * 
+     * @param row
+     *            The state to look for
+     * @return The state of the column, or null if there is none
+     */
+    public State getState(State row)
+    {
+        return chartIndex.get(row);
     }
     
     /**
@@ -112,7 +354,7 @@ public class ChartColumn
      */
     public boolean exists(State row)
     {
-        return this.chartIndex.contains(row);
+        return this.chartIndex.containsKey(row);
     }
 
     /**
@@ -143,8 +385,8 @@ public class ChartColumn
 
         for (int i = 0; i < chart.size(); i++)
         {
-            cw = (State) chart.get(i);
-            if (cw.getRule().getHead() != null && cw.getRule().getHead().equals(Grammar.PARSE_ROOT) && cw.isComplete() && cw.getPositions()[0] == 0)
+            cw = chart.get(i);
+            if (cw.getRule().getHead() != null && cw.getRule().getHead().equals(Grammar.PARSE_ROOT) && cw.isComplete() && cw.getStart() == 0)
             {
                 roots.add(cw);
             }
@@ -0,0 +1,176 @@
+package ontopt.pen;
+
+/**
+ * <p>
+ * A grammar together with the tables the parser precompiles from it: the transitive left corner matrix, the
+ * prediction table and the FIRST sets, and, once a parser has built it, the first column of every chart.
+ * The tables are immutable once built; the first column is published once, by whichever parser builds it
+ * first, and is then only ever copied. So any number of parsers, and of threads, can share one without
+ * locking it.
+ * </p>
+ */
+public class CompiledGrammar
+{
+	/**
+	 * The grammar that has the syntactic rules.
+	 */
+	private final Grammar grammar;
+
+	private final TransitiveMatrix rMatrix;
+
+	/**
+	 * The left corner closures of the nonterminals, precompiled from rMatrix
+	 */
+	private final PredictionTable predictionTable;
+
+	/**
+	 * The words and preterminals each nonterminal can begin with
+	 */
+	private final FirstSets firstSets;
+
+	/**
+	 * A dummy rule. This is the first rule to be put in the chart. it initializes the parsing process
+	 */
+	private final NonterminalRule dummieRule;
+
+	/**
+	 * The first column of every chart, completed without lookahead, once the parser has built it: in normal
+	 * and in Viterbi mode, which record different derivations. The columns are templates, only ever copied
+	 * into the charts, so no parse modifies them.
+	 */
+	private volatile ChartColumn initialColumn;
+
+	private volatile ChartColumn initialViterbiColumn;
+
+	/**
+	 * The constructor. Reads, validates and compiles the grammar, or reads the grammar and its matrix from a
+	 * binary image (see GrammarImage), which was validated and compiled when it was written.
+	 *
+	 * @param grammarFile
+	 *            The file of the grammar
+	 * @throws GrammarException
+	 */
+	public CompiledGrammar(String grammarFile) throws GrammarException
+	{
+		TransitiveMatrix matrix = null;
+		GrammarImage image;
+
+		if (GrammarImage.isImage(grammarFile))
+		{
+			image = GrammarImage.open(grammarFile);
+			grammar = new Grammar(image);
+			matrix = image.getTransitiveMatrix(grammar);
+		}
+		else
+		{
+			grammar = new Grammar(grammarFile);
+			matrix = compile(grammar);
+		}
+		rMatrix = matrix;
+
+		predictionTable = new PredictionTable(grammar, rMatrix);
+		firstSets = new FirstSets(grammar, rMatrix);
+
+		dummieRule = new NonterminalRule(0., "", null, Grammar.PARSE_ROOT, grammar);
+	}
+
+	/**
+	 * The constructor. Validates and compiles a grammar already read, e.g. a grammar whose probabilities
+	 * were changed (see Grammar.withProbabilities()).
+	 *
+	 * @param grammar
+	 *            The grammar, which must not be modified afterwards
+	 * @throws GrammarException
+	 */
+	public CompiledGrammar(Grammar grammar) throws GrammarException
+	{
+		this.grammar = grammar;
+		rMatrix = compile(grammar);
+
+		predictionTable = new PredictionTable(grammar, rMatrix);
+		firstSets = new FirstSets(grammar, rMatrix);
+
+		dummieRule = new NonterminalRule(0., "", null, Grammar.PARSE_ROOT, grammar);
+	}
+
+	/**
+	 * Validates a grammar and computes its transitive matrix.
+	 * 
+	 * @throws GrammarException
+	 *             If the grammar is not valid, or its P matrix is singular
+	 */
+	private static TransitiveMatrix compile(Grammar grammar) throws GrammarException
+	{
+		new GrammarValidator(grammar).validate();
+
+		try {
+			return TransitiveMatrix.getMatrix(grammar);
+		}
+		 catch (RuntimeException e) {
+		    throw new GrammarException("The P matrix is singular this means that the grammar your using is not proper. \nMeaning it can not produce complete derivations.");
+		}
+	}
+
+	public Grammar getGrammar()
+	{
+		return grammar;
+	}
+
+	public TransitiveMatrix getTransitiveMatrix()
+	{
+		return rMatrix;
+	}
+
+	public PredictionTable getPredictionTable()
+	{
+		return predictionTable;
+	}
+
+	public FirstSets getFirstSets()
+	{
+		return firstSets;
+	}
+
+	/**
+	 * Gets the rule the parse of every sentence begins with: TOP, with no body.
+	 *
+	 * @return The dummy rule
+	 */
+	public NonterminalRule getDummyRule()
+	{
+		return dummieRule;
+	}
+
+	/**
+	 * Gets the completed first column of the charts of the grammar, the same for every sentence.
+	 *
+	 * @param viterbi
+	 *            Whether the column is that of Viterbi parsing
+	 * @return The column, or null if it was not built yet
+	 */
+	ChartColumn getInitialColumn(boolean viterbi)
+	{
+		return viterbi ? initialViterbiColumn : initialColumn;
+	}
+
+	/**
+	 * Keeps the completed first column of the charts of the grammar, which must not be modified afterwards:
+	 * the parses copy it (see ParseContext). Two threads may build it at once; either column will do.
+	 *
+	 * @param viterbi
+	 *            Whether the column is that of Viterbi parsing
+	 * @param column
+	 *            The column
+	 */
+	void setInitialColumn(boolean viterbi, ChartColumn column)
+	{
+		if (viterbi)
+		{
+			initialViterbiColumn = column;
+		}
+		else
+		{
+			initialColumn = column;
+		}
+	}
+}
@@ -5,11 +5,8 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map.Entry;
-
-import javax.management.RuntimeErrorException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <p>
@@ -31,31 +28,61 @@ import javax.management.RuntimeErrorException;
 
 public class EarleyParser
 {
-	private boolean stop;
-	
 	/**
-	 * A dummy rule. This is the first rule to be put in the chart. it initializes the parsing process
+	 * The grammar with its precompiled tables, shared by all the parses
 	 */
-	private NonterminalRule dummieRule;
+	private final CompiledGrammar compiledGrammar;
 
 	/**
-	 * The grammar that has the syntactic rules.
+	 * The context of the parses made by parseSentence() in each thread
 	 */
-	private Grammar grammar;
+	private final ThreadLocal<ParseContext> contexts;
 
 	/**
-	 * An array of charts columns, being the Earley parser chart, composed of n+1
-	 * columns, where n = number of words in sentence.
+	 * The number of times stopParsing() was called. A parse stops when it changes.
 	 */
-	private ChartColumn[] chart;
+	private volatile int stopRequests;
 	
 	/**
 	 * Time spent in parsing
 	 */
 	private long parseTime;
-	
-	private TransitiveMatrix rMatrix;
-	
+	/**
+	 * Whether the predictor skips the rules that cannot begin with the next word
+	 */
+	private volatile boolean lookahead;
+	/**
+	 * Whether only the most probable parse is kept: the states keep their most probable derivation rather
+	 * than all of them
+	 */
+	private volatile boolean viterbi;
+	/**
+	 * Whether each column is scaled by the conditional probability of its word, so that forward and inner
+	 * probabilities do not underflow on long sentences
+	 */
+	private volatile boolean scaling;
+	/**
+	 * The beam: before a word is scanned, the states of its column that scan it are ranked by the probability
+	 * they add to the scan; those below beamThreshold times the best one are pruned, and so are those beyond
+	 * the beamWidth best ones. 0 disables either.
+	 */
+	private volatile double beamThreshold;
+	private volatile int beamWidth;
+	/**
+	 * The number of predictions each context keeps, and how many of the predictions made were found among
+	 * them
+	 */
+	private volatile int predictionCacheSize = 256;
+	/**
+	 * The most trees parseSentence() builds
+	 */
+	private volatile int treeLimit = 1000;
+	/**
+	 * The listener of the parses, null for none
+	 */
+	private volatile ParseListener listener;
+	private final AtomicLong predictionCacheHits = new AtomicLong();
+	private final AtomicLong predictionCacheMisses = new AtomicLong();
 	/**
 	 * The constructor
 	 * 
@@ -63,407 +90,386 @@ public class EarleyParser
 	 */
 	public EarleyParser(String grammarFile) throws GrammarException
 	{
-		grammar = new Grammar(grammarFile);
-		new GrammarValidator(grammar).validate();
-
-//		System.out.println("Here it would have been printed the matrix..");
-		try {
-			this.rMatrix = TransitiveMatrix.getMatrix(grammar);
-		}
-		 catch (RuntimeException e) {
-		    System.out.print("Error \nThe P matrix is singular this means that the grammar your using is not proper. \nMeaning it can not produce complete derivations.");
-		    System.exit(1);
-		}
-		
-//		System.out.println(rMatrix.getTransitiveLCRelation("N", "NP"));
-		dummieRule = new NonterminalRule(0., "", null, Grammar.PARSE_ROOT, grammar);
-		
-		stop = false;
+		this(new CompiledGrammar(grammarFile));
 	}
 
 	/**
-	 * Receives a sentence to be parsed
+	 * Creates a parser for a grammar already compiled. Any number of parsers can share a compiled grammar.
 	 * 
-	 * @param sentence
-	 *            The sentence to parse
-	 * @return A list of possible parse trees.
+	 * @param compiledGrammar
+	 *            The compiled grammar
 	 */
-	public synchronized ArrayList<SemanticNode> parseSentence(Sentence sentence)
+	public EarleyParser(CompiledGrammar compiledGrammar)
 	{
-		stop = false;
-		
-		//long begin = System.currentTimeMillis();
-		chart = new ChartColumn[sentence.getSentenceSize() + 1];
-	
-		for (int i = 0; i < chart.length; i++)
-		{			
-			chart[i] = new ChartColumn();
-		}
-
-		State curState = new State(dummieRule);
-		curState.setForwardProbability(1.);
-		curState.setInnerProbability(1.);
-		chart[0].addState(curState);
-		
-		//System.err.println("sentence size = "+sentence.getSentenceSize());
-		for (int i = 0; i < sentence.getSentenceSize() + 1; i++)
+		this.compiledGrammar = compiledGrammar;
+		this.contexts = new ThreadLocal<ParseContext>()
 		{
-			if(stop)
-				return null;
-			
-			System.out.println("\n\n%%State "+i);
-			
-			//System.err.println("chart array ["+i+"] size= "+chart[i].size());
-			for (int j = 0; j < chart[i].size(); j++)
+			@Override
+			protected ParseContext initialValue()
 			{
-				if(stop)
-					return null;
-				
-				curState = chart[i].getState(j);
-				if (!curState.isComplete() && curState.getNextConstituent().compareTo(Grammar.PHRASE_LOWER_LIMIT) >= 0)
-				{
-					// Do not process other predicted states
-					if (curState.getOrigin() != State.STATE_PREDICTED) predictor(curState);
-				}
-				else if (!curState.isComplete() && curState.getNextConstituent().compareTo(Grammar.PHRASE_LOWER_LIMIT) < 0)
-				{
-					scanner(curState, sentence);
-				}
-				else
-				{
-					completer(curState);
-				}
-				
+				return new ParseContext(EarleyParser.this);
 			}
-			if(i<sentence.getSentenceSize()){
-				
-			System.out.println("Prefix Probabilitie:");
-			System.out.println(Double.toString(sentence.getPrefix(i)));
-		
-			}
-		}
-		//printChart();
-		ArrayList<SemanticNode> trees = getTrees();
-		//parseTime = System.currentTimeMillis() - begin;
-		chart = null;
-		return trees;
+		};
 	}
 
-	public void stopParsing()
+	/**
+	 * Receives a sentence to be parsed. Several threads can parse at the same time: each one uses a context
+	 * of its own, and they share the compiled grammar.
+	 * 
+	 * @param sentence
+	 *            The sentence to parse
+	 * @return A list of possible parse trees, up to the tree limit, or null if the parse was stopped.
+	 */
+	public ArrayList<SemanticNode> parseSentence(Sentence sentence)
 	{
-		stop = true;
+		return contexts.get().parseSentence(sentence);
 	}
-	
-	public boolean isStopped()
+
+	/**
+	 * Parses a sentence within a budget: a time limit, and limits on the size of the chart. The parse gives up
+	 * as soon as it exceeds one of them, or is stopped, and returns what it parsed so far: the prefix
+	 * probabilities of the words it scanned, kept in the sentence, and the size of each column. The budget is
+	 * checked cooperatively as the states are processed, so a sentence that makes the chart explode cannot
+	 * hold a thread for long.
+	 * 
+	 * @param sentence
+	 *            The sentence to parse
+	 * @param budget
+	 *            The budget
+	 * @return The result, with the parse trees if the parse is complete
+	 */
+	public ParseResult parseSentence(Sentence sentence, ParseBudget budget)
 	{
-		return stop;
+		return contexts.get().parseSentence(sentence, budget);
 	}
-	
-	public Grammar getGrammar()
+
+	/**
+	 * Parses a sentence into a shared packed forest rather than a list of trees. The forest takes space
+	 * polynomial in the length of the sentence however ambiguous it is, and the trees can be built from it
+	 * on demand.
+	 * 
+	 * @param sentence
+	 *            The sentence to parse
+	 * @return The forest, or null if the parse was stopped
+	 */
+	public ParseForest parseForest(Sentence sentence)
 	{
-		return grammar;
+		return contexts.get().parseForest(sentence);
 	}
 
 	/**
-	 * Get time spent in last parse
+	 * Parses a sentence and iterates over its parse trees from the most probable down. Each tree is built
+	 * when it is asked for, so getting the k best ones costs roughly in proportion to k.
 	 * 
-	 * @return Time spent parsing
+	 * @param sentence
+	 *            The sentence to parse
+	 * @return The iterator, or null if the parse was stopped
 	 */
-	public long getLastParseTime()
+	public KBestIterator parseBest(Sentence sentence)
 	{
-		return parseTime;
+		ParseForest forest = parseForest(sentence);
+
+		return forest == null ? null : forest.getBestTrees();
 	}
 
 	/**
-	 * Gets the parse trees associated to the current charts
+	 * Computes the probability of a sentence: the sum of the inner probabilities of its parses, which
+	 * accounts for the end of the sentence, unlike the prefix probability of its last word. The trees are not
+	 * built, so it is cheaper than parseSentence(). The prefix probabilities of the words are stored in the
+	 * sentence as by parseSentence(); with scaling enabled, the result stays accurate where the probability
+	 * underflows.
 	 * 
-	 * @return list of parse trees
+	 * @param sentence
+	 *            The sentence
+	 * @return The natural logarithm of the probability, -Infinity if the sentence has no parse, NaN if the
+	 *         parse was stopped
 	 */
-	public ArrayList<SemanticNode> getTrees()
+	public double getLogProbability(Sentence sentence)
 	{
-		ArrayList<State> ruleRoots = chart[chart.length - 1].getRoots();
-		ArrayList<SemanticNode> sentenceRoots = new ArrayList<SemanticNode>();
+		return contexts.get().getLogProbability(sentence);
+	}
 
-		for (int i = 0; i < ruleRoots.size(); i++)
-		{
-			sentenceRoots.add(getTree((State) ruleRoots.get(i)));
-		}
+	/**
+	 * Computes the probabilities of a batch of sentences that share prefixes, such as the n-best hypotheses
+	 * of a recognizer or a translator. The sentences are arranged in a trie of their words, and the chart is
+	 * branched where they diverge: the columns of a shared prefix are parsed once and kept by every branch.
+	 * Each sentence gets the prefix probabilities of its words, and with a beam the pruned fractions, as by
+	 * getLogProbability().
+	 * 
+	 * @param sentences
+	 *            The sentences
+	 * @return The natural logarithms of the probabilities, in the order of the sentences (see
+	 *         getLogProbability()), or null if the parse was stopped
+	 */
+	public double[] getLogProbabilities(List<? extends Sentence> sentences)
+	{
+		return contexts.get().getLogProbabilities(sentences);
+	}
 
-		Collections.sort(sentenceRoots);
-		return sentenceRoots;
+	/**
+	 * Starts an incremental parse, to which the words are fed one at a time.
+	 * 
+	 * @return The new session
+	 */
+	public ParseSession newSession()
+	{
+		return new ParseSession(this);
 	}
 
 	/**
-	 * Recursive method to get parse trees. Creates TreeNodes from the chartrow and then recurses on the
-	 * chartrow parents.
+	 * Gets the probability of each word being the next one of a session, given the words fed so far. The
+	 * pending column of the session is completed without the lookahead, which would need the word, and the
+	 * probability is gathered in one pass over its states, as the scanner would for every word at once: the
+	 * forward probability of the states waiting for a word, and of those waiting for one of its preterminals
+	 * times the probability of the lexical rule, over the prefix probability. The states waiting for any word
+	 * (<?>) add to every word.
+	 * 
+	 * The end of the sentence is not among the outcomes, so the probabilities add up to less than 1 where the
+	 * sentence may end. Once the prefix probability is 0, e.g. after a word the grammar does not know, they
+	 * are all 0.
 	 * 
-	 * @param node
-	 *            The chartrow
-	 * @return The parse tree
+	 * @param session
+	 *            The session
+	 * @return The probabilities indexed by terminal ID, up to Grammar.getTerminalIDLimit(). Index 0, which no
+	 *         terminal uses, holds the probability of a word the grammar does not know. null if the parser
+	 *         was stopped.
 	 */
-	private SemanticNode getTree(State node)
+	public double[] getNextWordDistribution(ParseSession session)
 	{
-		ArrayList<Integer> parents = node.getParents();
-		SemanticNode root;
+		return session.getNextWordDistribution();
+	}
 
-		Rule rule = node.getRule();
+	/**
+	 * Enables or disables the one word lookahead of the predictor. When enabled, the predictor does not add
+	 * the rules that cannot begin with the next word of the sentence (according to the FIRST sets of the
+	 * grammar), unless they can derive the empty string. Such rules would never be scanned, so prefix, forward
+	 * and inner probabilities are not affected; the chart just gets smaller.
+	 * 
+	 * @param lookahead
+	 *            true to filter the predictions with the next word
+	 */
+	public void setPredictionLookahead(boolean lookahead)
+	{
+		this.lookahead = lookahead;
+	}
 
-		if (rule instanceof NonterminalRule)
-		{
-			root = new SemanticNode(grammar.getDataType(rule.getHead()), rule.getWeight(), rule.getAnnotation());
-		}
-		else
-		{
-			root = new SemanticNode(((TerminalRule) rule).getWord(), rule.getWeight(), rule.getAnnotation());
-		}
+	public boolean isPredictionLookahead()
+	{
+		return lookahead;
+	}
 
-		for (int i = parents.size() - 1; i >= 0; i--)
-		{
-			root.addChild(getTree(node.getStateFromState((Integer) parents.get(i))));
-		}
+	/**
+	 * Enables or disables Viterbi parsing. When enabled, every state keeps only its most probable derivation
+	 * and its probability, and parseSentence() returns the most probable tree alone, built in time linear in
+	 * its size. Forward, inner and prefix probabilities are computed as usual.
+	 * 
+	 * @param viterbi
+	 *            true to keep only the most probable parse
+	 */
+	public void setViterbi(boolean viterbi)
+	{
+		this.viterbi = viterbi;
+	}
 
-		return root;
+	public boolean isViterbi()
+	{
+		return viterbi;
 	}
 
 	/**
-	 * The predictor Process. Creates new states representing top-down expectations generated during the
-	 * parsing process. The Predictor is applied to any state that has a nonterminal to the right of the dot
-	 * that is not a part of speech category. This application results in the creation of one new state for
-	 * each alternative expansion of that nonterminal provided by the grammar. These new states are placed
-	 * into the same chart entry as the generating state. They begin and end at the point in the input where
-	 * the generating state ends.
+	 * Enables or disables the scaling of the columns. When enabled, the probabilities of the states of each
+	 * column are divided by the probability of its word given the previous ones (the ratio of two consecutive
+	 * prefix probabilities), as in the scaled forward algorithm of HMMs. Forward probabilities are then
+	 * relative to the prefix probability of their column, and inner probabilities to the probability of the
+	 * words they span given the previous ones, so they keep within the range of a double however long the
+	 * sentence is. The prefix probabilities are accumulated as logarithms: use Sentence.getLogPrefix(), as
+	 * Sentence.getPrefix() may underflow to 0. Without scaling the arithmetic is unchanged, and the logarithms
+	 * are computed from the prefix probabilities.
 	 * 
-	 * @param row
-	 *            The row to be predicted
+	 * @param scaling
+	 *            true to scale the columns
 	 */
-	private void predictor(State stateIn)
+	public void setScaling(boolean scaling)
 	{
-		// The starting nonterminal is the one right after the dot
-		String curNonterminal = this.grammar.getDataType(stateIn.getNextConstituent());
-		
-		State newState;
-		int[] positions = new int[2];
-		positions[0] = stateIn.getPositions()[1];
-		positions[1] = positions[0];
-		
-		System.out.println("	%predictor: predicting for: "+curNonterminal);
-		
-		// For each entry in the R matrix which is not zero and has curRoot as a row
-		int debugCount = 1;
-		for (Entry<String,Double> rEntry : this.rMatrix.getTransitiveLCRelationSet(curNonterminal)) {
-			for (Rule curRule : grammar.getAllRulesWithHead(rEntry.getKey())) {
-				
-				newState = new State(curRule, positions);
-				newState.setOrigin(State.STATE_PREDICTED);
-				newState.setOriginString("Predictor");
-	
-//				Double rValue = this.rMatrix.getTransitiveLCRelation(curNonterminal,newState.getRule().getLHS());
-				Double rValue = rEntry.getValue();
-				rValue = (rValue != 0) ? rValue : 1;
-				newState.setForwardProbability(stateIn.getForwardProbability()*rValue*curRule.getProbability());
-				newState.setInnerProbability(curRule.getProbability());
-//				System.out.println("	%prediction: " + newState);
-				
-				if (debugCount%1000 == 0) System.out.println("		%"+debugCount);
-				debugCount++;
-				enqueue(newState, positions[0], true, false);
-			}
-		}
+		this.scaling = scaling;
+	}
+
+	public boolean isScaling()
+	{
+		return scaling;
 	}
 
 	/**
-	 * When a state has a part of speech category to the right of the dot, the scanner is called to examine
-	 * the input and incorporate a state corresponding to the predicted part of speech into the chart. This is
-	 * accomplished by creating a new state from the input state with the dot advanced over the predicted
-	 * input category.
+	 * Sets the relative threshold of the beam. Before each word is scanned, the states of its column that
+	 * scan it are ranked by the probability they add to the scan: the forward probability of those waiting
+	 * for the word, and of those waiting for one of its preterminals times that of the lexical rule. Those
+	 * below threshold times the highest one are pruned: they are no longer scanned nor completed. The
+	 * fraction of the prefix probability lost to the beam is reported by Sentence.getPrunedFraction(). 0, the
+	 * default, keeps every state, and the results exact.
 	 * 
-	 * @param row
-	 *            the row to be scanned
-	 * @param sentence
-	 *            The sentence being parsed
+	 * @param threshold
+	 *            The threshold, between 0 and 1
 	 */
-	private void scanner(State stateIn, Sentence sentence)
+	public void setBeamThreshold(double threshold)
 	{
-		State newState;
-		int positions[] = new int[2];
+		this.beamThreshold = threshold;
+	}
 
-		// Special case in which the dot is after the end of the sentence, and an empty terminal is read
-		if (stateIn.getPositions()[1] >= sentence.getSentenceSize())
-		{                    
-			if (stateIn.getNextConstituent() != null && stateIn.getNextConstituent().equals(Grammar.EMPTY_TERMINAL))
-			{
-				positions[0] = stateIn.getPositions()[1];
-				positions[1] = stateIn.getPositions()[1];
-				newState = new State(new TerminalRule(stateIn.getNextConstituent(), "", grammar), positions);
-				newState.setOriginString("Scanner");
-				newState.setOrigin(State.STATE_SCANNED);
-				
-//				newState.setForwardProbability(stateIn.getInnerProbability());				
-//				newState.setInnerProbability(stateIn.getInnerProbability());
-				
-				System.out.println("	%scan: empty terminal after string scanned");
-				
-				// TODO: this might not be needed, check...
-				enqueue(newState, positions[1],false,false);                                
-			}
-			return;
-		}
+	public double getBeamThreshold()
+	{
+		return beamThreshold;
+	}
 
-		Integer next = stateIn.getNextConstituent();
-		String word = sentence.getWord(stateIn.getPositions()[1]);
+	/**
+	 * Sets the width of the beam. Before each word is scanned, only this number of the states of its column
+	 * that scan it are kept, those adding the most to the scan (see setBeamThreshold()): those tied with the
+	 * last one are kept as well. 0, the default, keeps every state.
+	 * 
+	 * @param width
+	 *            The number of states to keep per column
+	 */
+	public void setBeamWidth(int width)
+	{
+		this.beamWidth = width;
+	}
 
-		if (grammar.getTerminal(word).equals(next) || next.equals(Grammar.UNKNOWN_TERMINAL))
-		{
-			positions[0] = stateIn.getPositions()[1];
-			positions[1] = stateIn.getPositions()[1] + 1;
-			newState = new State(new TerminalRule(next, word, grammar), positions);
-			newState.setOriginString("Scanner");
-			newState.setOrigin(State.STATE_SCANNED);
-			
-			newState.setForwardProbability(stateIn.getForwardProbability());				
-			newState.setInnerProbability(stateIn.getInnerProbability());
-			System.out.println(Integer.toString(stateIn.getPositions()[0]));
-			
-			
-			// FIXME:this might not work if the Grammar does contains terminal production which are not unit productions
-			sentence.updatePrefix(stateIn.getForwardProbability(), stateIn.getPositions()[1]);
-			System.out.println("	%scan: "+newState);
-			// FIXME: this might not be needed
-			enqueue(newState, positions[1]);
-		}
+	public int getBeamWidth()
+	{
+		return beamWidth;
+	}
 
-		if (next.equals(Grammar.EMPTY_TERMINAL))
-		{
-			positions[0] = stateIn.getPositions()[1];
-			positions[1] = stateIn.getPositions()[1];
-			newState = new State(new TerminalRule(next, "", grammar), positions);
-			newState.setOriginString("Scanner");
-			newState.setOrigin(State.STATE_SCANNED);
-			
-			// FIXME: do we have to update probabilities here?
-			// FIXME: the enqueue operation might not be needed (no need of checking for duplicates)
-			System.out.println("	%scan: empty terminal scanned"+newState);
-			enqueue(newState, positions[1]);
-		}
+	/**
+	 * Sets the size of the prediction cache of each thread. The predictor looks up the rules it predicts for
+	 * the nonterminals waiting in a column, and the next word if the lookahead is enabled, among the
+	 * predictions it made last, in columns of this or of earlier sentences; the least recently used ones are
+	 * dropped. 0 disables the cache. The default is 256.
+	 * 
+	 * @param size
+	 *            The number of predictions kept
+	 */
+	public void setPredictionCacheSize(int size)
+	{
+		this.predictionCacheSize = size;
+	}
+
+	public int getPredictionCacheSize()
+	{
+		return predictionCacheSize;
 	}
 
 	/**
-	 * The completer is applied to a state when its dot has reached the right end of the rule. Intuitively,
-	 * the presence of such a state represents the fact that the parser has successfully discovered a
-	 * particular grammatical category over some span of the input. The purpose of the completer is to find
-	 * and advance all previously created states that were looking for this grammatical category at this
-	 * position in he input. New states are then created by copying the older state, advancing the dot over
-	 * the expected category and installing the new state in the current chart entry.
+	 * Sets the most trees parseSentence() builds for a sentence. The trees are read from every derivation
+	 * packed in the chart, and may be exponentially many: past the limit they are left out, and
+	 * ParseForest.countTrees() tells how many there are. The default is 1000.
 	 * 
-	 * @param iState
-	 *            The row of the chart
+	 * @param limit
+	 *            The most trees to build
 	 */
-	private void completer(State iState)
+	public void setTreeLimit(int limit)
 	{
-		int chartIndex = iState.getPositions()[0];//figures out which chart to check
-		State newRow;
-		int positions[];
-		for (int i = 0; i < chart[chartIndex].size(); i++)
-		{
+		this.treeLimit = limit;
+	}
 
-			if (chart[chartIndex].getState(i).getPositions()[1] == chartIndex && !chart[chartIndex].getState(i).isComplete()
-					&& chart[chartIndex].getState(i).getNextConstituent().equals(iState.getRule().getHead()))
-			{
-			
-				positions = new int[2];
-
-				positions[0] = chart[chartIndex].getState(i).getPositions()[0];
-				positions[1] = iState.getPositions()[1];
-				newRow = new State(chart[chartIndex].getState(i).getRule(), positions);
-				newRow.addParentState(iState.getState());
-				newRow.addParentStates(chart[chartIndex].getState(i).getParents());
-				newRow.setOriginString("Completer");
-				newRow.setDot(chart[chartIndex].getState(i).getDot() + 1);
-				
-				
-				//This kind of dirty. This is because scanning is defined differently on Stoclkes Paper
-				State jState=chart[chartIndex].getState(i);
-				if (iState.getOrigin()==State.STATE_SCANNED){
-					newRow.setForwardProbability(jState.getForwardProbability());
-					newRow.setInnerProbability(jState.getInnerProbability());
-					System.out.println("	%completion: from scan: " + newRow);
-					enqueue(newRow, iState.getPositions()[1], false, false);
-				}
-				else{
-					Double rValue=1.;
-					Rule curRule = chart[chartIndex].getState(i).getRule();
-				
-					if (curRule.size()>1){
-						rValue = this.rMatrix.getTransitiveUnitRelation(curRule.getLHS(), curRule.getLeftmost());
-						rValue = (rValue != 0) ? rValue : 1;
-					}
-					newRow.setForwardProbability(jState.getForwardProbability()*iState.getInnerProbability()*rValue);
-					newRow.setInnerProbability(jState.getInnerProbability()*iState.getInnerProbability()*rValue);
-					System.out.println("	%completion: " + newRow);
-					enqueue(newRow, iState.getPositions()[1], true, true);
-				}
-			}
-		}
+	public int getTreeLimit()
+	{
+		return treeLimit;
 	}
 
 	/**
-	 * Adds the chartrow to the chart if it does not already exist.
+	 * Sets the listener of the parses, which receives their events as they happen (see ParseListener). It
+	 * applies to the calls made after it is set; the default, null, traces nothing and costs nothing.
+	 * TextTraceListener prints the trace the parser used to print on the standard output.
 	 * 
-	 * @param row
-	 *            the row to add
-	 * @param index
-	 *            the index of the chart
+	 * @param listener
+	 *            The listener, or null for none
 	 */
-	private void enqueue(State stateIn, int index, Boolean sumForwardProbabilities, Boolean sumInnerProbabilities)
+	public void setParseListener(ParseListener listener)
 	{
-		if (stateIn.getRule().getHead() == null)
-		{
-			return;
-		}
+		this.listener = listener;
+	}
 
-		if (!chart[index].exists(stateIn))
-		{
-//			System.out.println("		%enqueue: entry not found: "+stateIn);
-			chart[index].addState(stateIn);
-		} else {
-			State stateExisting = chart[index].getState(stateIn);
-//			System.out.println("		%enqueue: entry found: "+stateExisting);
-			if (sumForwardProbabilities == true) {
-				stateExisting.setForwardProbability(stateExisting.getForwardProbability() + stateIn.getForwardProbability());
-//				System.out.println("		%enqueue: adding forward: "+stateExisting.getForwardProbability());
-			}
-			
-			if (sumInnerProbabilities){
-					stateExisting.setInnerProbability(stateExisting.getInnerProbability() + stateIn.getInnerProbability());
-//					System.out.println("		%enqueue: adding inner: "+stateExisting.getForwardProbability());
-			}
-		}
+	public ParseListener getParseListener()
+	{
+		return listener;
 	}
 
-	private void enqueue(State stateIn, int index)
+	/**
+	 * Gets the number of predictions found in the prediction cache, by all the threads, since the parser was
+	 * created.
+	 * 
+	 * @return The number of hits
+	 */
+	public long getPredictionCacheHits()
 	{
-		enqueue(stateIn, index, false,false);
+		return predictionCacheHits.get();
+	}
+
+	/**
+	 * Gets the number of predictions not found in the prediction cache, by all the threads, since the parser
+	 * was created.
+	 * 
+	 * @return The number of misses
+	 */
+	public long getPredictionCacheMisses()
+	{
+		return predictionCacheMisses.get();
+	}
+
+	void countPrediction(boolean hit)
+	{
+		(hit ? predictionCacheHits : predictionCacheMisses).incrementAndGet();
+	}
+
+	/**
+	 * Stops the parses in progress. They return null.
+	 */
+	public void stopParsing()
+	{
+		stopRequests++;
 	}
 	
 	/**
-	 * Prints the chart
+	 * Checks if the parser was stopped since the last parse of the calling thread began. The parses of other
+	 * threads and the sessions, which report a stop by their results, are not considered.
+	 * 
+	 * @return true if it was
 	 */
-	@SuppressWarnings("unused")
-	private void printChart()
+	public boolean isStopped()
 	{
-		for (int i = 0; i < chart.length; i++)
-		{
-			System.out.println("ChartColumn " + i);
-			System.out.println(chart[i].toString());
-		}
+		return contexts.get().isStopped();
+	}
+
+	int getStopRequests()
+	{
+		return stopRequests;
+	}
+	
+	public Grammar getGrammar()
+	{
+		return compiledGrammar.getGrammar();
+	}
+
+	public CompiledGrammar getCompiledGrammar()
+	{
+		return compiledGrammar;
+	}
+
+	/**
+	 * Get time spent in last parse
+	 * 
+	 * @return Time spent parsing
+	 */
+	public long getLastParseTime()
+	{
+		return parseTime;
 	}
 
 	public static void main(String[] args)
 	{
-		if (args.length != 2)
+		if (args.length != 2 && (args.length != 3 || !args[2].equals("-trace")))
 		{
 			System.out.println("Usage:\n");
-			System.out.println("java -jar pen.jar <grammar> <sentences_file>");
+			System.out.println("java -jar pen.jar <grammar> <sentences_file> [-trace]");
 			return;
 		}
 
@@ -471,6 +477,10 @@ public class EarleyParser
 		{
 			
 			EarleyParser parser = new EarleyParser(args[0]);
+			if (args.length == 3)
+			{
+				parser.setParseListener(new TextTraceListener(System.out));
+			}
 			SemanticNode node;
 			Outputter outputter = new Outputter(System.out);
 			List<SemanticNode> parses;
@@ -497,24 +507,6 @@ public class EarleyParser
 //				}
 
 			}
-//			
-//			System.out.println(parser.rMatrix.getTransitiveLCRelation("S", "S"));
-//			System.out.println(parser.rMatrix.getTransitiveLCRelation("TOP", "S"));
-//			System.out.println(parser.rMatrix.getTransitiveLCRelation("S", "TOP"));
-//			System.out.println(parser.rMatrix.getTransitiveLCRelation("S", "a"));
-//			parser.rMatrix.printRMatrix();
-			
-//			System.out.println("Dumping rules with head NP...");
-//			Grammar g = parser.getGrammar();
-//			for (Rule r : g.getAllRulesWithHead("NP")) {
-//				System.out.println(r.getLeftmost());
-//			}
-			
-//			System.out.println("Dumping nonterminals...");
-//			Grammar g = parser.getGrammar();
-//			for (String s : g.getNonterminals()) {
-//				System.out.println(s);
-//			}
 		}
 		catch (FileNotFoundException e)
 		{
@@ -533,5 +525,4 @@ public class EarleyParser
 		}
 		
 	}
-
-}
+}
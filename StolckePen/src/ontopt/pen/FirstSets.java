@@ -0,0 +1,304 @@
+package ontopt.pen;
+
+import java.util.BitSet;
+
+/**
+ * The FIRST sets of the nonterminals of a grammar: for each nonterminal, the words and the preterminals it can
+ * begin with. The sets are derived from the left corner relation of the transitive matrix, extended over the
+ * nullable symbols, and let the predictor skip the rules that cannot begin with the next word.
+ */
+public class FirstSets
+{
+    private Grammar grammar;
+
+    /**
+     * For each nonterminal index, the IDs of the words it can begin with (through non lexical rules)
+     */
+    private BitSet[] terminals;
+
+    /**
+     * For each nonterminal index, the indexes of the preterminals it can begin with
+     */
+    private BitSet[] preterminals;
+
+    /**
+     * For each nonterminal index, whether it can begin with any word (<?>)
+     */
+    private boolean[] anyWord;
+
+    /**
+     * For each nonterminal index, whether it can derive the empty string
+     */
+    private boolean[] nullable;
+
+    /**
+     * The constructor. Computes the FIRST sets of every nonterminal of the grammar.
+     * 
+     * @param grammar
+     *            The grammar
+     * @param rMatrix
+     *            The transitive matrix computed for the grammar
+     */
+    public FirstSets(Grammar grammar, TransitiveMatrix rMatrix)
+    {
+        int nonterminals = grammar.getNonterminalCount();
+        int[] headOffsets = grammar.getHeadOffsets();
+        int[] headRules = grammar.getHeadRules();
+        boolean changed;
+
+        this.grammar = grammar;
+        terminals = new BitSet[nonterminals];
+        preterminals = new BitSet[nonterminals];
+        anyWord = new boolean[nonterminals];
+        nullable = new boolean[nonterminals];
+
+        for (int x = 0; x < nonterminals; x++)
+        {
+            terminals[x] = new BitSet();
+            preterminals[x] = new BitSet();
+        }
+
+        computeNullable();
+
+        // FIRST(X) gathers the first symbols of the rules of every left corner Y of X. Symbols following a
+        // nullable one are first symbols as well, which the left corner relation does not capture, hence the
+        // fixpoint.
+        do
+        {
+            changed = false;
+            for (int x = 0; x < nonterminals; x++)
+            {
+                for (int y = 0; y < nonterminals; y++)
+                {
+                    if (x != y && rMatrix.getTransitiveLCRelation(x, y) <= 0.)
+                    {
+                        continue;
+                    }
+
+                    for (int k = headOffsets[y]; k < headOffsets[y + 1]; k++)
+                    {
+                        if (grammar.getRule(headRules[k]).isLexical())
+                        {
+                            if (!preterminals[x].get(y))
+                            {
+                                preterminals[x].set(y);
+                                changed = true;
+                            }
+                        }
+                        else
+                        {
+                            changed |= addFirst(x, headRules[k]);
+                        }
+                    }
+                }
+            }
+        }
+        while (changed);
+    }
+
+    /**
+     * Finds the nonterminals that can derive the empty string.
+     */
+    private void computeNullable()
+    {
+        int[] ruleHeads = grammar.getRuleHeads();
+        int head;
+        boolean changed;
+
+        do
+        {
+            changed = false;
+            for (int i = 0; i < ruleHeads.length; i++)
+            {
+                head = grammar.getNonterminalIndex(ruleHeads[i]);
+                if (head < 0 || nullable[head])
+                {
+                    continue;
+                }
+
+                if (isNullableBody(i))
+                {
+                    nullable[head] = true;
+                    changed = true;
+                }
+            }
+        }
+        while (changed);
+    }
+
+    /**
+     * Adds the first symbols of a rule body to the FIRST set of a nonterminal.
+     * 
+     * @param x
+     *            The index of the nonterminal
+     * @param rule
+     *            The ID of the rule
+     * @return true if the FIRST set changed, false otherwise
+     */
+    private boolean addFirst(int x, int rule)
+    {
+        int[] bodyOffsets = grammar.getBodyOffsets();
+        int[] bodies = grammar.getBodies();
+        int before = terminals[x].cardinality() + preterminals[x].cardinality();
+        boolean anyBefore = anyWord[x];
+        int symbol;
+        int a;
+
+        for (int i = bodyOffsets[rule]; i < bodyOffsets[rule + 1]; i++)
+        {
+            symbol = bodies[i];
+            if (symbol == Grammar.EMPTY_TERMINAL)
+            {
+                continue;
+            }
+
+            if (symbol == Grammar.UNKNOWN_TERMINAL)
+            {
+                anyWord[x] = true;
+                break;
+            }
+
+            a = grammar.getNonterminalIndex(symbol);
+            if (a < 0)
+            {
+                terminals[x].set(symbol);
+                break;
+            }
+
+            terminals[x].or(terminals[a]);
+            preterminals[x].or(preterminals[a]);
+            anyWord[x] |= anyWord[a];
+            if (!nullable[a])
+            {
+                break;
+            }
+        }
+
+        return anyWord[x] != anyBefore || terminals[x].cardinality() + preterminals[x].cardinality() != before;
+    }
+
+    /**
+     * Checks if the body of a rule can derive the empty string.
+     * 
+     * @param rule
+     *            The ID of the rule
+     * @return true if the body is nullable, false otherwise
+     */
+    private boolean isNullableBody(int rule)
+    {
+        int[] bodyOffsets = grammar.getBodyOffsets();
+        int[] bodies = grammar.getBodies();
+        int a;
+
+        for (int i = bodyOffsets[rule]; i < bodyOffsets[rule + 1]; i++)
+        {
+            if (bodies[i] == Grammar.EMPTY_TERMINAL)
+            {
+                continue;
+            }
+
+            a = grammar.getNonterminalIndex(bodies[i]);
+            if (a < 0 || !nullable[a])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if a nonterminal can derive the empty string.
+     * 
+     * @param nonterminal
+     *            The dense index of the nonterminal
+     * @return true if the nonterminal is nullable, false otherwise
+     */
+    public boolean isNullable(int nonterminal)
+    {
+        return nullable[nonterminal];
+    }
+
+    /**
+     * Gets the IDs of the words a nonterminal can begin with, not counting the words of its preterminals.
+     * 
+     * @param nonterminal
+     *            The dense index of the nonterminal
+     * @return The set of word IDs
+     */
+    public BitSet getTerminals(int nonterminal)
+    {
+        return terminals[nonterminal];
+    }
+
+    /**
+     * Gets the preterminals a nonterminal can begin with.
+     * 
+     * @param nonterminal
+     *            The dense index of the nonterminal
+     * @return The set of dense preterminal indexes
+     */
+    public BitSet getPreterminals(int nonterminal)
+    {
+        return preterminals[nonterminal];
+    }
+
+    /**
+     * Checks if the body of a rule can begin with the next word of the input, or derive the empty string. A
+     * rule failing this check cannot contribute to the parse of the input.
+     * 
+     * @param rule
+     *            The ID of the rule
+     * @param terminal
+     *            The ID of the next word, or null at the end of the input
+     * @param wordPreterminals
+     *            The dense indexes of the preterminals producing the next word
+     * @return false if the rule cannot match the next word, true otherwise
+     */
+    public boolean canStartWith(int rule, Integer terminal, int[] wordPreterminals)
+    {
+        int[] bodyOffsets = grammar.getBodyOffsets();
+        int[] bodies = grammar.getBodies();
+        int symbol;
+        int a;
+
+        for (int i = bodyOffsets[rule]; i < bodyOffsets[rule + 1]; i++)
+        {
+            symbol = bodies[i];
+            if (symbol == Grammar.EMPTY_TERMINAL)
+            {
+                continue;
+            }
+
+            a = grammar.getNonterminalIndex(symbol);
+            if (a < 0)
+            {
+                // A word, or <?> which reads any word
+                return terminal != null && (symbol == terminal || symbol == Grammar.UNKNOWN_TERMINAL);
+            }
+
+            if (terminal != null)
+            {
+                if (anyWord[a] || (terminal > 0 && terminals[a].get(terminal)))
+                {
+                    return true;
+                }
+
+                for (int k = 0; k < wordPreterminals.length; k++)
+                {
+                    if (preterminals[a].get(wordPreterminals[k]))
+                    {
+                        return true;
+                    }
+                }
+            }
+
+            if (!nullable[a])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -1,17 +1,18 @@
 package ontopt.pen;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <p>
@@ -36,32 +37,23 @@ public class Grammar
 	public static final String START_SYMBOL = "TOP";
 	
     /**
-     * The ID for a sentence. All Phrase types that are in upper case in the grammar file will be attributed a
-     * unique ID.
+     * The ID of the first nonterminal. The nonterminals, those symbols that are in upper case in the grammar
+     * file, are numbered from here up in order of appearance, so that the ID of a nonterminal less this base
+     * is its dense index. The terminals are numbered from 1 up, below this base.
      */
-    public static final Integer PARSE_ROOT = new Integer(999999);
-
-    public static final Integer UNKNOWN_TERMINAL = new Integer(-1);
-
-    public static final Integer EMPTY_TERMINAL = new Integer(-2);
+    public static final int NONTERMINAL_BASE = 1 << 30;
 
     /**
-     * The beginning ID number for new phrases.
-     * 
-     * FIXME: looks like with "phrase" they mean "constituent", and this constant
-     * represents the minimum ID which is given to each nonterminal. Check this
-     * and change the name.
+     * The ID for a sentence: the start symbol, the first nonterminal.
      */
-    public static final Integer PHRASE_LOWER_LIMIT = new Integer(500000);
+    public static final Integer PARSE_ROOT = new Integer(NONTERMINAL_BASE);
+
+    public static final Integer UNKNOWN_TERMINAL = new Integer(-1);
 
     /**
-     * The maximum number of phrase types that the parser can deal with,
-     * 
-     * FIXME: looks like this number represents the maximum number of allowed
-     * nonterminals. Check and change the name. (also, it's not a great thing
-     * to have a limit on the number of nonterminals...)
+     * The ID of the empty terminal, the lowest of the terminals
      */
-    public static final Integer VARIABLES_MAX_NUMBER = new Integer(5998);
+    public static final Integer EMPTY_TERMINAL = new Integer(-2);
 
     /**
      * The symbol that allows for comments inside the grammar file
@@ -98,13 +90,51 @@ public class Grammar
 
     private HashMap<String, Integer> terminals;
 
+    private int nextTerminalID;
+
     /**
-     * The next variable to attributed to a new phrase type. It is initialized with (PHRASE_LOWER_LIMIT +
-     * VARIABLES_MAX_NUMBER)
+     * The nonterminal IDs in order of appearance. The position of an ID in this list is the dense index of the
+     * nonterminal, used by the per-nonterminal tables of the parser.
      */
-    private int nextVariableID;
+    private ArrayList<Integer> nonterminalIDs;
 
-    private int nextTerminalID;
+    /**
+     * The names of the nonterminals, by dense index
+     */
+    private ArrayList<String> nonterminalNames;
+
+    /**
+     * The names of the terminals, by terminal index (see getTerminalIndex())
+     */
+    private ArrayList<String> terminalNames;
+
+    /**
+     * All the rules of the grammar, in order of appearance. The position of a rule in this list is its ID.
+     */
+    private ArrayList<Rule> rules;
+
+    /**
+     * The rules again as flat arrays indexed by rule ID, for the loops of the parser: the head of each rule,
+     * its probability, its hash code (see NonterminalRule.hashCode()) and its body, from
+     * bodies[bodyOffsets[id]] to bodies[bodyOffsets[id + 1]] (excluded). Built once all the rules are read.
+     */
+    private int[] ruleHeads;
+
+    private double[] ruleProbabilities;
+
+    private int[] ruleHashes;
+
+    private int[] bodyOffsets;
+
+    private int[] bodies;
+
+    /**
+     * The rule IDs sorted by the dense index of their head, in order of appearance for each head: the rules of
+     * the nonterminal of index n are headRules[headOffsets[n]] to headRules[headOffsets[n + 1]] (excluded).
+     */
+    private int[] headOffsets;
+
+    private int[] headRules;
 
     /**
      * A hashmap that holds the grammar rules in the Integer ID format. Each key corresponds to a head of a
@@ -123,31 +153,147 @@ public class Grammar
      * The file where this grammar is written
      */
     private String grammarFile;
+
+    /**
+     * The lexical rules, indexed by word
+     */
+    private Lexicon lexicon;
+
+    private long loadTime;
     
     /**
-     * The constructor
+     * The constructor. Reads the grammar from a text file, or from a binary image written by GrammarImage.
+     * 
+     * @param grammarFile
+     *            The file of the grammar
+     * @throws GrammarException
+     *             If the file is an image that could not be read, e.g. of another version
      */
-    public Grammar(String grammarFile)
+    public Grammar(String grammarFile) throws GrammarException
     {
+    	long start = System.nanoTime();
+
     	this.grammarFile = grammarFile;
-    	
+    	initialize();
+
+        if (GrammarImage.isImage(grammarFile))
+        {
+            readImage(GrammarImage.open(grammarFile));
+        }
+        else
+        {
+            readGrammar(grammarFile);
+            flatten();
+            lexicon = new Lexicon(this);
+        }
+        loadTime = System.nanoTime() - start;
+    }
+
+    /**
+     * The constructor. Takes the grammar from a binary image.
+     * 
+     * @param image
+     *            The image
+     */
+    Grammar(GrammarImage image)
+    {
+        long start = System.nanoTime();
+
+        this.grammarFile = image.getFileName();
+        initialize();
+        readImage(image);
+        loadTime = System.nanoTime() - start;
+    }
+
+    /**
+     * The constructor. Copies a grammar with other probabilities for its rules. The symbols, which are not
+     * modified once read, are shared with the grammar copied.
+     * 
+     * @param source
+     *            The grammar to copy
+     * @param probabilities
+     *            The probabilities of the rules, indexed by rule ID
+     */
+    private Grammar(Grammar source, double[] probabilities)
+    {
+        long start = System.nanoTime();
+        NonterminalRule rule;
+
+        this.grammarFile = source.grammarFile;
+        this.grammar = new HashMap<Integer, ArrayList<Rule>>();
+        this.invertedGrammar = new HashMap<Integer, ArrayList<Rule>>();
+        this.includedFiles = source.includedFiles;
+        this.rules = new ArrayList<Rule>(source.rules.size());
+        this.variables = source.variables;
+        this.nonterminalIDs = source.nonterminalIDs;
+        this.nonterminalNames = source.nonterminalNames;
+        this.terminals = source.terminals;
+        this.terminalNames = source.terminalNames;
+        this.nextTerminalID = source.nextTerminalID;
+
+        for (int r = 0; r < source.rules.size(); r++)
+        {
+            rule = (NonterminalRule) source.rules.get(r);
+            rule = new NonterminalRule(probabilities[r], rule.annotation, rule.head, rule.body, this);
+            addRule(rule);
+            addRuleToInvertedGrammar(rule);
+        }
+
+        flatten();
+        lexicon = new Lexicon(this);
+        loadTime = System.nanoTime() - start;
+    }
+
+    /**
+     * Gets a copy of this grammar with other probabilities for its rules, e.g. those of an iteration of
+     * GrammarTrainer. The rules keep their IDs, and the symbols theirs.
+     * 
+     * @param probabilities
+     *            The probabilities of the rules, indexed by rule ID
+     * @return The copy
+     */
+    Grammar withProbabilities(double[] probabilities)
+    {
+        if (probabilities.length != rules.size())
+        {
+            throw new IllegalArgumentException("Expected " + rules.size() + " probabilities, got "
+                    + probabilities.length);
+        }
+
+        return new Grammar(this, probabilities);
+    }
+
+    private void initialize()
+    {
         grammar = new HashMap<Integer, ArrayList<Rule>>();
         invertedGrammar= new HashMap<Integer, ArrayList<Rule>>();
         includedFiles = new LinkedList<String>();
+        rules = new ArrayList<Rule>();
         variables = new HashMap<String, Integer>();
-        variables.put(START_SYMBOL, PARSE_ROOT);
+        nonterminalIDs = new ArrayList<Integer>();
+        nonterminalNames = new ArrayList<String>();
+        addNonterminal(START_SYMBOL, PARSE_ROOT);
         terminals = new HashMap<String, Integer>();
-        terminals.put("<?>", UNKNOWN_TERMINAL);
-        terminals.put("<>", EMPTY_TERMINAL);
-        nextVariableID = PHRASE_LOWER_LIMIT.intValue() + VARIABLES_MAX_NUMBER.intValue();
+        terminalNames = new ArrayList<String>();
+        addTerminal("<>", EMPTY_TERMINAL);
+        addTerminal("<?>", UNKNOWN_TERMINAL);
         nextTerminalID = 1;
-        readGrammar(grammarFile, new LinkedList<String>());
     }
 
     public String getGrammarFileName()
     {
     	return grammarFile;
     }
+
+    /**
+     * Gets the time it took to read the grammar file, and the files it includes, or its image.
+     * 
+     * @return The time in nanoseconds, 0 if the grammar was not read from a file
+     */
+    public long getLoadTime()
+    {
+        return loadTime;
+    }
     
     /**
      * Transforms an Integer ID in the corresponding String representation.
@@ -158,42 +304,46 @@ public class Grammar
      */
     public String getDataType(Integer token)
     {
-        Iterator<String> it;
-        Integer id;
-        String s;
+        int index;
+
         if (token == null)
         {
             return "";
         }
 
-        if (token.compareTo(PHRASE_LOWER_LIMIT) > 0)
+        if (isNonterminal(token))
         {
-            it = variables.keySet().iterator();
-
-            while (it.hasNext())
-            {
-                s = (String) it.next();
-                id = (Integer) variables.get(s);
-                if (id.equals(token))
-                {
-                    return s;
-                }
-            }
+            index = token - NONTERMINAL_BASE;
+            return index < nonterminalNames.size() ? nonterminalNames.get(index) : null;
         }
 
-        it = terminals.keySet().iterator();
+        index = getTerminalIndex(token);
+        return index >= 0 && index < terminalNames.size() ? terminalNames.get(index) : null;
+    }
 
-        while (it.hasNext())
-        {
-            s = (String) it.next();
-            id = (Integer) terminals.get(s);
-            if (id.equals(token))
-            {
-                return s;
-            }
-        }
+    /**
+     * Checks if a symbol is a nonterminal, by the range of its ID.
+     * 
+     * @param symbol
+     *            The Integer ID of the symbol
+     * @return true if the symbol is a nonterminal, false if it is a terminal
+     */
+    public static boolean isNonterminal(int symbol)
+    {
+        return symbol >= NONTERMINAL_BASE;
+    }
 
-        return null;
+    /**
+     * Gets the dense index of a terminal: its ID less that of the empty terminal, the lowest. The index of the
+     * unused ID 0 is left empty.
+     * 
+     * @param terminal
+     *            The Integer ID of the terminal
+     * @return The index of the terminal
+     */
+    public static int getTerminalIndex(int terminal)
+    {
+        return terminal - EMPTY_TERMINAL;
     }
 
     /**
@@ -208,9 +358,198 @@ public class Grammar
         return grammar.get(head);
     }
 
+    /**
+     * Get all rules that begin with the head of the specified name. Unlike reading the grammar, this never adds a
+     * symbol, so the grammar can be asked about any name while it is shared by several parses.
+     * 
+     * @param head
+     *            The name of the head to lookup
+     * @return The rules with that head, empty if there are none or the name is not a symbol of the grammar
+     */
     public ArrayList<Rule> getAllRulesWithHead(String head)
     {
-        return grammar.get(getDataType(head));
+        Integer id = findDataType(head);
+        ArrayList<Rule> rules = id != null ? grammar.get(id) : null;
+
+        return rules != null ? rules : new ArrayList<Rule>();
+    }
+
+    /**
+     * Gets the rule with the specified ID.
+     * 
+     * @param id
+     *            The ID of the rule
+     * @return The rule
+     */
+    public Rule getRule(int id)
+    {
+        return rules.get(id);
+    }
+
+    /**
+     * Gets the number of rules in the grammar. Rule IDs range from 0 to this number (excluded).
+     * 
+     * @return The number of rules
+     */
+    public int getRuleCount()
+    {
+        return rules.size();
+    }
+
+    /**
+     * Gets the heads of the rules, indexed by rule ID. Not to be modified, as the following arrays.
+     */
+    int[] getRuleHeads()
+    {
+        return ruleHeads;
+    }
+
+    /**
+     * Gets the probabilities of the rules, indexed by rule ID.
+     */
+    double[] getRuleProbabilities()
+    {
+        return ruleProbabilities;
+    }
+
+    /**
+     * Gets where the body of each rule begins in getBodies(), indexed by rule ID, followed by the length of
+     * getBodies().
+     */
+    int[] getBodyOffsets()
+    {
+        return bodyOffsets;
+    }
+
+    /**
+     * Gets the bodies of all the rules, one after the other in the order of the rule IDs.
+     */
+    int[] getBodies()
+    {
+        return bodies;
+    }
+
+    /**
+     * Gets where the rules of each nonterminal begin in getHeadRules(), indexed by dense index, followed by
+     * the length of getHeadRules().
+     */
+    int[] getHeadOffsets()
+    {
+        return headOffsets;
+    }
+
+    /**
+     * Gets the IDs of the rules sorted by the dense index of their head.
+     */
+    int[] getHeadRules()
+    {
+        return headRules;
+    }
+
+    /**
+     * Gets the hash code of a rule of this grammar, as computed by NonterminalRule.hashCode().
+     * 
+     * @param rule
+     *            The rule
+     * @return The hash code, or 0 if the rule is not one of the rules of this grammar or they are still being
+     *         read
+     */
+    int getRuleHash(Rule rule)
+    {
+        if (ruleHashes == null || rule.id < 0 || rule.id >= ruleHashes.length || rules.get(rule.id) != rule)
+        {
+            return 0;
+        }
+
+        return ruleHashes[rule.id];
+    }
+
+    /**
+     * Gets the number of nonterminals in the grammar. Dense nonterminal indexes range from 0 to this number
+     * (excluded).
+     * 
+     * @return The number of nonterminals
+     */
+    public int getNonterminalCount()
+    {
+        return nonterminalIDs.size();
+    }
+
+    /**
+     * Gets the dense index of a nonterminal.
+     * 
+     * @param nonterminal
+     *            The Integer ID of the nonterminal
+     * @return The index of the nonterminal, or -1 if the symbol is not a nonterminal
+     */
+    public int getNonterminalIndex(Integer nonterminal)
+    {
+        if (nonterminal == null)
+        {
+            return -1;
+        }
+
+        return getNonterminalIndex(nonterminal.intValue());
+    }
+
+    /**
+     * Gets the dense index of a nonterminal.
+     * 
+     * @param nonterminal
+     *            The ID of the nonterminal
+     * @return The index of the nonterminal, or -1 if the symbol is not a nonterminal
+     */
+    public int getNonterminalIndex(int nonterminal)
+    {
+        if (!isNonterminal(nonterminal) || nonterminal - NONTERMINAL_BASE >= nonterminalIDs.size())
+        {
+            return -1;
+        }
+
+        return nonterminal - NONTERMINAL_BASE;
+    }
+
+    /**
+     * Gets the Integer ID of the nonterminal with the specified dense index.
+     * 
+     * @param index
+     *            The dense index
+     * @return The Integer ID of the nonterminal
+     */
+    public Integer getNonterminalID(int index)
+    {
+        return nonterminalIDs.get(index);
+    }
+
+    /**
+     * Gets the upper bound (excluded) of the Integer IDs given to the words of the grammar. Word IDs start from
+     * 1.
+     * 
+     * @return The upper bound of the word IDs
+     */
+    public int getTerminalIDLimit()
+    {
+        return nextTerminalID;
+    }
+
+    /**
+     * Gets the number of terminal indexes (see getTerminalIndex()), the special terminals included.
+     * 
+     * @return The upper bound of the terminal indexes
+     */
+    public int getTerminalCount()
+    {
+        return terminalNames.size();
+    }
+
+    /**
+     * Gets the lexicon, holding the lexical rules of the grammar indexed by word.
+     * 
+     * @return The lexicon
+     */
+    public Lexicon getLexicon()
+    {
+        return lexicon;
     }
 
     public Integer getTerminal(String word)
@@ -230,13 +569,20 @@ public class Grammar
         return invertedGrammar.get(symbol);
     }
 
+    /**
+     * Gets the rules whose body contains the symbol of the specified name. Like getAllRulesWithHead(String), this
+     * never adds a symbol.
+     * 
+     * @param symbol
+     *            The name of the symbol to lookup
+     * @return The rules containing it, empty if there are none or the name is not a symbol of the grammar
+     */
     public ArrayList<Rule> getRulesContaining(String symbol)
     {
-        Integer integer = getDataType(symbol);
-        if (integer != null)
-            return getRulesContaining(integer);
+        Integer integer = findDataType(symbol);
+        ArrayList<Rule> rules = integer != null ? getRulesContaining(integer) : null;
 
-        return null;
+        return rules != null ? rules : new ArrayList<Rule>();
     }
 
     public Set<String> getAllTerminals()
@@ -280,6 +626,47 @@ public class Grammar
 
         rules.add(rule);
         grammar.put(rule.getHead(), rules);
+
+        rule.setID(this.rules.size());
+        this.rules.add(rule);
+    }
+
+    /**
+     * Registers a new nonterminal, giving it the next dense index.
+     * 
+     * @param token
+     *            The String representation of the nonterminal
+     * @param id
+     *            The Integer ID of the nonterminal, NONTERMINAL_BASE plus its index
+     */
+    private void addNonterminal(String token, Integer id)
+    {
+        variables.put(token, id);
+        nonterminalIDs.add(id);
+        nonterminalNames.add(token);
+    }
+
+    /**
+     * Registers a new terminal.
+     * 
+     * @param token
+     *            The String representation of the terminal
+     * @param id
+     *            The Integer ID of the terminal
+     */
+    private void addTerminal(String token, Integer id)
+    {
+        if (id >= NONTERMINAL_BASE)
+        {
+            throw new IllegalStateException("Too many terminals in " + grammarFile);
+        }
+
+        terminals.put(token, id);
+        while (terminalNames.size() <= getTerminalIndex(id))
+        {
+            terminalNames.add(null);
+        }
+        terminalNames.set(getTerminalIndex(id), token);
     }
 
     private void addRuleToInvertedGrammar(NonterminalRule rule)
@@ -302,138 +689,235 @@ public class Grammar
     }
 
     /**
-     * Loads the grammar file into memory.
+     * Copies the rules into the flat arrays, and interns their annotations: the rules with the same
+     * annotation share one string. Called once all the rules are read; the rules are not changed afterwards.
      */
-    private void readGrammar(String grammarFile, LinkedList<String> toInclude)
+    private void flatten()
     {
-        String line;
-        try
+        HashMap<String, String> annotations = new HashMap<String, String>();
+        NonterminalRule rule;
+        String annotation;
+        int[] next;
+        int offset = 0;
+        int head;
+        int hash;
+
+        ruleHeads = new int[rules.size()];
+        ruleProbabilities = new double[rules.size()];
+        ruleHashes = new int[rules.size()];
+        bodyOffsets = new int[rules.size() + 1];
+        headOffsets = new int[nonterminalIDs.size() + 1];
+
+        for (int r = 0; r < rules.size(); r++)
         {
-            File file = new File(grammarFile);
-            BufferedReader reader = new BufferedReader(new FileReader(file));
+            rule = (NonterminalRule) rules.get(r);
+            ruleHeads[r] = rule.head;
+            ruleProbabilities[r] = rule.weight;
+            bodyOffsets[r] = offset;
+            offset += rule.body.size();
+
+            head = getNonterminalIndex(rule.head);
+            if (head >= 0)
+            {
+                headOffsets[head + 1]++;
+            }
 
-            // For each line in the grammar file
-            while ((line = reader.readLine()) != null)
+            if (rule.annotation != null)
             {
-                line = line.trim();
-                
-                // Comment
-                if (line.equals("") || line.charAt(0) == COMMENT)
+                annotation = annotations.get(rule.annotation);
+                if (annotation == null)
                 {
-                    continue;
+                    annotations.put(rule.annotation, rule.annotation);
                 }
-                
-                // Inclusion
-                else if (line.startsWith(INCLUDE_INDICATOR))
+                else
                 {
-                    String includedFile = file.getParent()
-                    	+ File.separator
-                    	+ line.replace(INCLUDE_INDICATOR, "").trim();
-
-                    if (!includedFiles.contains(includedFile))
-                    {
-                        toInclude.add(includedFile);
-                        includedFiles.add(includedFile);
-                    }
-
-                    continue;
+                    rule.annotation = annotation;
                 }
-
-                // An actual rule
-                addRule(line);
             }
+        }
+        bodyOffsets[rules.size()] = offset;
 
-            reader.close();
+        bodies = new int[offset];
+        for (int r = 0; r < rules.size(); r++)
+        {
+            rule = (NonterminalRule) rules.get(r);
 
-            if (!toInclude.isEmpty())
-                readGrammar(toInclude.removeFirst(), toInclude);
+            // The same as ArrayList.hashCode() and NonterminalRule.hashCode()
+            hash = 1;
+            for (int j = 0; j < rule.body.size(); j++)
+            {
+                bodies[bodyOffsets[r] + j] = rule.body.get(j);
+                hash = 31 * hash + rule.body.get(j);
+            }
+            ruleHashes[r] = 31 * (31 + hash) + ruleHeads[r];
         }
-        catch (FileNotFoundException ex)
+
+        // A counting sort of the rules by head
+        for (int n = 0; n < nonterminalIDs.size(); n++)
         {
-            ex.printStackTrace();
+            headOffsets[n + 1] += headOffsets[n];
         }
-        catch (IOException ex)
+        headRules = new int[headOffsets[nonterminalIDs.size()]];
+        next = Arrays.copyOf(headOffsets, nonterminalIDs.size());
+        for (int r = 0; r < rules.size(); r++)
         {
-            ex.printStackTrace();
+            head = getNonterminalIndex(ruleHeads[r]);
+            if (head >= 0)
+            {
+                headRules[next[head]++] = r;
+            }
         }
     }
 
     /**
-     * Transforms a String representation of a rule into a list representation with Integer Ids, then calls
-     * addRule with the new list representation.
-     * 
-     * @param line
-     *            The string to be transformed
+     * Takes the symbols, the rules and the lexicon from a binary image. The image keeps the IDs of the
+     * symbols and of the rules, so they are the same as in the grammar it was written from.
      */
-    private void addRule(String buffer)
+    private void readImage(GrammarImage image)
     {
-    	//System.out.println(buffer);
-    	
-        Double weight = Rule.DEFAULT_WEIGHT;
-        String annotation = "";
-        String rule = buffer;
-        Pattern p;
-        Matcher m;
+        HashMap<Integer, Integer> symbols = new HashMap<Integer, Integer>();
+        IntBuffer heads = image.getHeads();
+        IntBuffer bodyOffsets = image.getBodyOffsets();
+        IntBuffer bodies = image.getBodies();
+        DoubleBuffer probabilities = image.getProbabilities();
+        String[] annotations = image.getAnnotations();
+        ArrayList<Integer> body;
+        NonterminalRule rule;
+        Integer id;
 
-        p = Pattern.compile("(.*)" + WEIGHT_SEPARATOR + "(.*)" + ANNOTATION_SEPARATOR + "(.*)");
-        m = p.matcher(buffer);
-        if (m.matches())
+        for (int i = 0; i < image.getNonterminalIDs().length; i++)
         {
-        	/*System.out.print("1: "+m.group(1)+" ; ");
-        	System.out.print("2: "+m.group(2)+" ; ");
-        	System.out.println("3: "+m.group(3));*/
-        	
-        	weight = Double.parseDouble(m.group(1).trim());
-        	rule = m.group(2).trim();
-            annotation = m.group(3).trim();
+            id = image.getNonterminalIDs()[i];
+            if (!variables.containsKey(image.getNonterminalNames()[i]))
+            {
+                addNonterminal(image.getNonterminalNames()[i], id);
+            }
+            symbols.put(id, variables.get(image.getNonterminalNames()[i]));
         }
-        else
+        for (int i = 0; i < image.getTerminalIDs().length; i++)
         {
-            p = Pattern.compile("(.*) " + WEIGHT_SEPARATOR + "(.*)");
-            m = p.matcher(buffer);
-            if (m.matches())
+            id = image.getTerminalIDs()[i];
+            addTerminal(image.getTerminalNames()[i], id);
+            symbols.put(id, id);
+        }
+        nextTerminalID = image.getTerminalIDLimit();
+
+        // The symbols of the rules are the Integers of the symbol table, as when they are read from text
+        for (int r = 0; r < heads.limit(); r++)
+        {
+            body = new ArrayList<Integer>(bodyOffsets.get(r + 1) - bodyOffsets.get(r));
+            for (int j = bodyOffsets.get(r); j < bodyOffsets.get(r + 1); j++)
             {
-            	/*System.out.print("1: "+m.group(1)+" ; ");
-            	System.out.println("2: "+m.group(2));*/
-            	
-                weight = Double.parseDouble(m.group(1).trim());
-                rule = m.group(2).trim();
+                body.add(symbols.get(bodies.get(j)));
             }
-            else
+
+            rule = new NonterminalRule(probabilities.get(r), annotations[r], symbols.get(heads.get(r)), body, this);
+            addRule(rule);
+            addRuleToInvertedGrammar(rule);
+        }
+
+        flatten();
+        lexicon = new Lexicon(this, image.getWordOffsets(), image.getWordRules());
+    }
+
+    /**
+     * Loads the grammar file into memory, with the files it includes. The included files are read on a pool
+     * of threads as soon as they are found, and merged one at a time in the order they were found: the file,
+     * the files it includes, those they include, and so on. The symbols thus get the same IDs as if the files
+     * were read one after the other.
+     */
+    private void readGrammar(String grammarFile)
+    {
+        ArrayList<String> files = new ArrayList<String>();
+        ArrayList<Future<GrammarReader>> readers = new ArrayList<Future<GrammarReader>>();
+        ExecutorService workers = null;
+        GrammarReader reader;
+        String includedFile;
+
+        files.add(grammarFile);
+        readers.add(null);
+        try
+        {
+            for (int i = 0; i < files.size(); i++)
             {
-                p = Pattern.compile("(.*) " + ANNOTATION_SEPARATOR + "(.*)");
-                m = p.matcher(buffer);
-                if (m.matches())
+                try
                 {
-                	/*System.out.print("1: "+m.group(1)+" ; ");
-                	System.out.println("2: "+m.group(2));*/
-                	
-                    rule = m.group(1).trim();
-                    annotation = m.group(2).trim();
+                    reader = i == 0 ? new GrammarReader(grammarFile).call() : readers.get(i).get();
                 }
-                else
+                catch (IOException ex)
                 {
-                    rule = buffer;
+                    ex.printStackTrace();
+                    continue;
+                }
+                catch (ExecutionException ex)
+                {
+                    if (ex.getCause() instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    ex.getCause().printStackTrace();
+                    continue;
                 }
-            }
-        }
-
-        String[] st = rule.split("(" + ANTECEDENT_SEPARATOR + ")|(" + CONSEQUENT_SEPARATOR + ")");
-        ArrayList<Integer> body = new ArrayList<Integer>();
-        Integer token = null;
 
-        Integer head = getDataType(st[0].trim());
+                for (int j = 0; j < reader.getIncludes().size(); j++)
+                {
+                    includedFile = reader.getIncludes().get(j);
+                    if (!includedFiles.contains(includedFile))
+                    {
+                        includedFiles.add(includedFile);
+                        if (workers == null)
+                        {
+                            workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                        }
+                        files.add(includedFile);
+                        readers.add(workers.submit(new GrammarReader(includedFile)));
+                    }
+                }
 
-        for (int i = 1; i < st.length; i++)
+                addRules(reader);
+                readers.set(i, null);
+            }
+        }
+        catch (InterruptedException ex)
         {
-            token = getDataType(st[i].trim());
-            body.add(token);
+            Thread.currentThread().interrupt();
         }
+        finally
+        {
+            if (workers != null)
+            {
+                workers.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Adds the rules of a file, giving their symbols IDs in the order they appear.
+     * 
+     * @param reader
+     *            The file read
+     */
+    private void addRules(GrammarReader reader)
+    {
+        ArrayList<Integer> body;
+        NonterminalRule rule;
+        String[] symbols;
+        Integer head;
 
-        NonterminalRule nonterminalRule = new NonterminalRule(weight, annotation, head, body, this);
-        addRule(nonterminalRule);
+        for (int r = 0; r < reader.getRuleCount(); r++)
+        {
+            symbols = reader.getSymbols(r);
+            head = getDataType(symbols[0]);
+            body = new ArrayList<Integer>(symbols.length - 1);
+            for (int i = 1; i < symbols.length; i++)
+            {
+                body.add(getDataType(symbols[i]));
+            }
 
-        addRuleToInvertedGrammar(nonterminalRule);
+            rule = new NonterminalRule(reader.getWeight(r), reader.getAnnotation(r), head, body, this);
+            addRule(rule);
+            addRuleToInvertedGrammar(rule);
+        }
     }
 
     /*private void addRule(String buffer)
@@ -505,33 +989,43 @@ public class Grammar
 	private Integer getDataType(String token)
 	{
 		Integer id;
-		String upperCaseToken = token.toUpperCase();
-		
+
+		// Most symbols were seen before
+		if ((id = variables.get(token)) != null || (id = terminals.get(token)) != null)
+		{
+			return id;
+		}
+
 		//if (Character.isUpperCase(token.charAt(0)))
-		if (Character.isUpperCase(token.charAt(0)) && token.equals(upperCaseToken))
+		if (Character.isUpperCase(token.charAt(0)) && token.equals(token.toUpperCase()))
 		{
-			if (variables.containsKey(token))
-			{
-				return variables.get(token);
-			}
-
-			variables.put(token, nextVariableID);
-			id = nextVariableID;
-			nextVariableID--;
+			id = NONTERMINAL_BASE + nonterminalIDs.size();
+			addNonterminal(token, id);
 			return id;
 		}
 		else
 		{
-			if ((id = (Integer) terminals.get(token)) == null)
-			{
-				terminals.put(token, nextTerminalID);
-				id = nextTerminalID;
-				nextTerminalID++;
-			}
+			id = nextTerminalID;
+			addTerminal(token, id);
+			nextTerminalID++;
 		}
 		return id;
 	}
 	
+	/**
+	 * Gets the ID of a symbol of the grammar, without adding it when it is unknown.
+	 * 
+	 * @param token
+	 *            The string representation
+	 * @return The corresponding Integer ID, or null if the grammar has no such symbol
+	 */
+	private Integer findDataType(String token)
+	{
+		Integer id = variables.get(token);
+
+		return id != null ? id : terminals.get(token);
+	}
+
 	public Set<String> getNonterminals() {
 		return this.variables.keySet();
 	}
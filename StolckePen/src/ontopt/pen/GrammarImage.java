@@ -0,0 +1,537 @@
+package ontopt.pen;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * A grammar compiled into a binary image: its symbol table, its rules as flat arrays, its lexicon and the
+ * nonzero entries of the transitive left corner and unit matrices, R_L and R_U. Loading an image neither
+ * parses rules nor inverts a matrix, so a parser of a large grammar starts in a fraction of the time. The
+ * image is written by main(), after the text grammar was read, validated and compiled, and mapped with a
+ * MappedByteBuffer. The tables of numbers are not copied: they are IntBuffer and DoubleBuffer views over the
+ * mapping. R_L and R_U are looked up in those views for as long as the grammar is used, so the JVMs loading
+ * the same image on a host share their pages in the file cache. Grammar still builds its rules, its flat
+ * arrays and its lexicon on the heap from the other views, and the symbols and annotations are decoded into
+ * Strings. Grammar and CompiledGrammar recognize an image by its first bytes, so it can be given wherever a
+ * grammar file is.
+ * </p>
+ * <p>
+ * The image is big-endian: the magic number and the version, then the symbols (the nonterminals in the
+ * order of their dense indexes, then the terminals), the rules (heads, probabilities, offsets of the bodies,
+ * bodies and annotations), the lexical rules of each word, and R_L and R_U, each as row offsets, columns and
+ * values. The strings are UTF-8, preceded by their length in bytes. The version changes with the layout.
+ * </p>
+ */
+public class GrammarImage
+{
+	/**
+	 * The first bytes of an image, \u008aPEN, which no text grammar begins with
+	 */
+	public static final int MAGIC = 0x8a50454e;
+
+	public static final int VERSION = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String fileName;
+
+	private int[] nonterminalIDs;
+
+	private String[] nonterminalNames;
+
+	private int[] terminalIDs;
+
+	private String[] terminalNames;
+
+	private int terminalIDLimit;
+
+	private IntBuffer heads;
+
+	private DoubleBuffer probabilities;
+
+	/**
+	 * The body of rule r is bodies[bodyOffsets[r]] to bodies[bodyOffsets[r + 1]] (excluded)
+	 */
+	private IntBuffer bodyOffsets;
+
+	private IntBuffer bodies;
+
+	private String[] annotations;
+
+	/**
+	 * The IDs of the lexical rules producing terminal t are wordRules[wordOffsets[t]] to
+	 * wordRules[wordOffsets[t + 1]] (excluded)
+	 */
+	private IntBuffer wordOffsets;
+
+	private IntBuffer wordRules;
+
+	private TransitiveMatrix.SparseMatrix leftCorner;
+
+	private TransitiveMatrix.SparseMatrix unit;
+
+	/**
+	 * The constructor. Maps an image and reads it.
+	 *
+	 * @param fileName
+	 *            The image file
+	 * @throws IOException
+	 *             If the file could not be read, is not an image of this version, or is truncated
+	 */
+	public GrammarImage(String fileName) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		MappedByteBuffer buffer;
+
+		this.fileName = fileName;
+
+		// The mapping stays valid once the file is closed
+		try
+		{
+			buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		}
+		finally
+		{
+			file.close();
+		}
+
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC)
+		{
+			throw new IOException("Not a grammar image: " + fileName);
+		}
+		if (buffer.getInt() != VERSION)
+		{
+			throw new IOException("Unsupported version of grammar image: " + fileName);
+		}
+
+		// A truncated image ends before a value, or before the end of an array a view is limited to
+		try
+		{
+			read(buffer);
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Truncated grammar image: " + fileName);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("Truncated grammar image: " + fileName);
+		}
+	}
+
+	/**
+	 * Maps an image and reads it, as the constructor does, for the callers that report a grammar that cannot
+	 * be read with a GrammarException.
+	 *
+	 * @param fileName
+	 *            The image file
+	 * @return The image
+	 * @throws GrammarException
+	 *             If the file could not be read, is not an image of this version, or is truncated
+	 */
+	static GrammarImage open(String fileName) throws GrammarException
+	{
+		try
+		{
+			return new GrammarImage(fileName);
+		}
+		catch (IOException e)
+		{
+			throw new GrammarException("Could not read the grammar image " + fileName + ": " + e.getMessage());
+		}
+	}
+
+	private void read(ByteBuffer buffer)
+	{
+		int count;
+
+		count = buffer.getInt();
+		nonterminalIDs = new int[count];
+		nonterminalNames = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			nonterminalIDs[i] = buffer.getInt();
+			nonterminalNames[i] = getString(buffer);
+		}
+
+		count = buffer.getInt();
+		terminalIDs = new int[count];
+		terminalNames = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			terminalIDs[i] = buffer.getInt();
+			terminalNames[i] = getString(buffer);
+		}
+		terminalIDLimit = buffer.getInt();
+
+		count = buffer.getInt();
+		heads = getInts(buffer, count);
+		probabilities = getDoubles(buffer, count);
+		bodyOffsets = getInts(buffer, count + 1);
+		bodies = getInts(buffer, bodyOffsets.get(count));
+		annotations = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			annotations[i] = getString(buffer);
+		}
+
+		wordOffsets = getInts(buffer, terminalIDLimit + 1);
+		wordRules = getInts(buffer, wordOffsets.get(terminalIDLimit));
+
+		leftCorner = getMatrix(buffer, nonterminalIDs.length);
+		unit = getMatrix(buffer, nonterminalIDs.length);
+	}
+
+	/**
+	 * Checks if a file is a grammar image, by its first bytes.
+	 *
+	 * @param fileName
+	 *            The file
+	 * @return true if the file is an image, false if it is not or could not be read
+	 */
+	public static boolean isImage(String fileName)
+	{
+		DataInputStream in;
+
+		try
+		{
+			in = new DataInputStream(new FileInputStream(fileName));
+			try
+			{
+				return in.readInt() == MAGIC;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the image of a compiled grammar.
+	 *
+	 * @param compiled
+	 *            The grammar
+	 * @param fileName
+	 *            The image file
+	 * @throws IOException
+	 *             If the file could not be written
+	 */
+	public static void write(CompiledGrammar compiled, String fileName) throws IOException
+	{
+		Grammar grammar = compiled.getGrammar();
+		TransitiveMatrix rMatrix = compiled.getTransitiveMatrix();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+		int limit = grammar.getTerminalIDLimit();
+		String[] words = new String[limit + 2];
+		int offset;
+
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+
+			out.writeInt(grammar.getNonterminalCount());
+			for (int i = 0; i < grammar.getNonterminalCount(); i++)
+			{
+				out.writeInt(grammar.getNonterminalID(i));
+				putString(out, grammar.getDataType(grammar.getNonterminalID(i)));
+			}
+
+			// The terminals in the order of their IDs, from the empty one (-2) up
+			for (String word : grammar.getAllTerminals())
+			{
+				words[grammar.getTerminal(word) + 2] = word;
+			}
+			out.writeInt(limit + 1);
+			for (int t = 0; t < words.length; t++)
+			{
+				if (t != 2)
+				{
+					out.writeInt(t - 2);
+					putString(out, words[t]);
+				}
+			}
+			out.writeInt(limit);
+
+			// The rules as the grammar holds them
+			out.writeInt(grammar.getRuleCount());
+			for (int head : grammar.getRuleHeads())
+			{
+				out.writeInt(head);
+			}
+			for (double probability : grammar.getRuleProbabilities())
+			{
+				out.writeDouble(probability);
+			}
+			for (int bodyOffset : grammar.getBodyOffsets())
+			{
+				out.writeInt(bodyOffset);
+			}
+			for (int symbol : grammar.getBodies())
+			{
+				out.writeInt(symbol);
+			}
+			for (int r = 0; r < grammar.getRuleCount(); r++)
+			{
+				putString(out, grammar.getRule(r).getAnnotation() == null ? "" : grammar.getRule(r).getAnnotation());
+			}
+
+			offset = 0;
+			for (int t = 0; t < limit; t++)
+			{
+				out.writeInt(offset);
+				offset += grammar.getLexicon().getRules(t).length;
+			}
+			out.writeInt(offset);
+			for (int t = 0; t < limit; t++)
+			{
+				for (int id : grammar.getLexicon().getRules(t))
+				{
+					out.writeInt(id);
+				}
+			}
+
+			putMatrix(out, rMatrix, grammar.getNonterminalCount(), false);
+			putMatrix(out, rMatrix, grammar.getNonterminalCount(), true);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the nonzero entries of R_L or R_U, row by row: the offset of each row, then the columns, in
+	 * increasing order within a row, then the values. Each part is a pass over the matrix, so no copy of it is
+	 * made.
+	 */
+	private static void putMatrix(DataOutputStream out, TransitiveMatrix rMatrix, int size, boolean unit)
+			throws IOException
+	{
+		double value;
+		int count = 0;
+
+		for (int pass = 0; pass < 3; pass++)
+		{
+			for (int i = 0; i < size; i++)
+			{
+				if (pass == 0)
+				{
+					out.writeInt(count);
+				}
+				for (int j = 0; j < size; j++)
+				{
+					value = unit ? rMatrix.getTransitiveUnitRelation(i, j) : rMatrix.getTransitiveLCRelation(i, j);
+					if (value == 0.)
+					{
+						continue;
+					}
+					if (pass == 0)
+					{
+						count++;
+					}
+					else if (pass == 1)
+					{
+						out.writeInt(j);
+					}
+					else
+					{
+						out.writeDouble(value);
+					}
+				}
+			}
+			if (pass == 0)
+			{
+				out.writeInt(count);
+			}
+		}
+	}
+
+	private static void putString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(UTF8);
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a matrix written by putMatrix(), as views over its parts.
+	 */
+	private static TransitiveMatrix.SparseMatrix getMatrix(ByteBuffer buffer, int size)
+	{
+		IntBuffer offsets = getInts(buffer, size + 1);
+		IntBuffer columns = getInts(buffer, offsets.get(size));
+		DoubleBuffer values = getDoubles(buffer, offsets.get(size));
+
+		return new TransitiveMatrix.SparseMatrix(offsets, columns, values);
+	}
+
+	private static String getString(ByteBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.getInt()];
+
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Gets a view over the next ints of the buffer, and skips them. The view is read with absolute gets only,
+	 * so threads can share it.
+	 */
+	private static IntBuffer getInts(ByteBuffer buffer, int length)
+	{
+		IntBuffer values = buffer.asIntBuffer();
+
+		values.limit(length);
+		buffer.position(buffer.position() + 4 * length);
+		return values.slice();
+	}
+
+	private static DoubleBuffer getDoubles(ByteBuffer buffer, int length)
+	{
+		DoubleBuffer values = buffer.asDoubleBuffer();
+
+		values.limit(length);
+		buffer.position(buffer.position() + 8 * length);
+		return values.slice();
+	}
+
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+	/**
+	 * Gets the IDs of the nonterminals, in the order of their dense indexes.
+	 */
+	int[] getNonterminalIDs()
+	{
+		return nonterminalIDs;
+	}
+
+	int[] getTerminalIDs()
+	{
+		return terminalIDs;
+	}
+
+	String[] getNonterminalNames()
+	{
+		return nonterminalNames;
+	}
+
+	String[] getTerminalNames()
+	{
+		return terminalNames;
+	}
+
+	int getTerminalIDLimit()
+	{
+		return terminalIDLimit;
+	}
+
+	IntBuffer getHeads()
+	{
+		return heads;
+	}
+
+	DoubleBuffer getProbabilities()
+	{
+		return probabilities;
+	}
+
+	IntBuffer getBodyOffsets()
+	{
+		return bodyOffsets;
+	}
+
+	IntBuffer getBodies()
+	{
+		return bodies;
+	}
+
+	String[] getAnnotations()
+	{
+		return annotations;
+	}
+
+	/**
+	 * Gets the offsets of the lexical rules of each terminal in getWordRules(), indexed by terminal ID, with
+	 * one more at the end.
+	 */
+	IntBuffer getWordOffsets()
+	{
+		return wordOffsets;
+	}
+
+	IntBuffer getWordRules()
+	{
+		return wordRules;
+	}
+
+	/**
+	 * Gets the transitive matrix of the grammar read from this image, which reads R_L and R_U from the image.
+	 *
+	 * @param grammar
+	 *            The grammar
+	 * @return The matrix
+	 */
+	TransitiveMatrix getTransitiveMatrix(Grammar grammar)
+	{
+		return TransitiveMatrix.getMatrix(grammar, leftCorner, unit);
+	}
+
+	public static void main(String[] args)
+	{
+		CompiledGrammar compiled;
+		Grammar grammar;
+		long start = System.nanoTime();
+
+		if (args.length != 2)
+		{
+			System.out.println("Usage:\n");
+			System.out.println("java -cp pen.jar ontopt.pen.GrammarImage <grammar> <image_file>");
+			return;
+		}
+
+		try
+		{
+			compiled = new CompiledGrammar(args[0]);
+			grammar = compiled.getGrammar();
+			System.out.println("Read " + args[0] + ": " + grammar.getRuleCount() + " rules in "
+					+ grammar.getLoadTime() / 1000000 + " ms ("
+					+ (long) (grammar.getRuleCount() / (grammar.getLoadTime() / 1e9)) + " rules/s)");
+			write(compiled, args[1]);
+			System.out.println("Wrote " + args[1] + ": " + grammar.getRuleCount() + " rules, "
+					+ grammar.getNonterminalCount() + " nonterminals, " + (grammar.getTerminalIDLimit() - 1)
+					+ " words in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (GrammarException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
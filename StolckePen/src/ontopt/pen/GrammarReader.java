@@ -0,0 +1,225 @@
+package ontopt.pen;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * <p>
+ * Reads one grammar file into its rules, with their symbols as strings, and the files it includes. Grammar
+ * gives the symbols their IDs as it merges the files, in the order the includes are found, so that several
+ * files can be read at once and the IDs still do not depend on which is read first.
+ * </p>
+ * <p>
+ * The lines are split by hand in a single pass, with no regular expressions: the weight is the number before
+ * the first WEIGHT_SEPARATOR, the annotation what follows the first ANNOTATION_SEPARATOR, and the symbols are
+ * what is between ANTECEDENT_SEPARATOR and CONSEQUENT_SEPARATOR, trimmed.
+ * </p>
+ */
+class GrammarReader implements Callable<GrammarReader>
+{
+	private final String fileName;
+
+	private final ArrayList<String> includes;
+
+	private final ArrayList<Double> weights;
+
+	private final ArrayList<String> annotations;
+
+	/**
+	 * The symbols of each rule, its head first
+	 */
+	private final ArrayList<String[]> symbols;
+
+	/**
+	 * The constructor
+	 *
+	 * @param fileName
+	 *            The grammar file
+	 */
+	GrammarReader(String fileName)
+	{
+		this.fileName = fileName;
+		this.includes = new ArrayList<String>();
+		this.weights = new ArrayList<Double>();
+		this.annotations = new ArrayList<String>();
+		this.symbols = new ArrayList<String[]>();
+	}
+
+	/**
+	 * Reads the file.
+	 *
+	 * @return This reader
+	 * @throws IOException
+	 *             If the file could not be read
+	 */
+	public GrammarReader call() throws IOException
+	{
+		File file = new File(fileName);
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		ArrayList<String> ruleSymbols = new ArrayList<String>();
+		String line;
+
+		try
+		{
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+
+				// Comment
+				if (line.length() == 0 || line.charAt(0) == Grammar.COMMENT)
+				{
+					continue;
+				}
+
+				// Inclusion
+				if (line.startsWith(Grammar.INCLUDE_INDICATOR))
+				{
+					includes.add(file.getParent() + File.separator
+							+ line.replace(Grammar.INCLUDE_INDICATOR, "").trim());
+					continue;
+				}
+
+				// An actual rule
+				readRule(line, ruleSymbols);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		return this;
+	}
+
+	/**
+	 * Splits a rule line into its weight, its symbols and its annotation.
+	 */
+	private void readRule(String line, ArrayList<String> ruleSymbols)
+	{
+		int start = 0;
+		int end = line.length();
+		int separator = line.indexOf(Grammar.WEIGHT_SEPARATOR);
+		Double weight = Rule.DEFAULT_WEIGHT;
+		String annotation = "";
+		int length;
+		int from;
+
+		if (separator > 0 && isNumber(line, separator))
+		{
+			weight = Double.parseDouble(line.substring(0, separator).trim());
+			start = separator + Grammar.WEIGHT_SEPARATOR.length();
+		}
+
+		separator = line.indexOf(Grammar.ANNOTATION_SEPARATOR, start);
+		if (separator >= 0)
+		{
+			annotation = line.substring(separator + Grammar.ANNOTATION_SEPARATOR.length()).trim();
+			end = separator;
+		}
+
+		ruleSymbols.clear();
+		from = start;
+		for (int i = start; i < end; i++)
+		{
+			length = getSeparatorLength(line, i, end);
+			if (length > 0)
+			{
+				ruleSymbols.add(line.substring(from, i).trim());
+				i += length - 1;
+				from = i + 1;
+			}
+		}
+		ruleSymbols.add(line.substring(from, end).trim());
+
+		// Nothing after the last separator is no symbol, as with String.split()
+		while (ruleSymbols.size() > 1 && ruleSymbols.get(ruleSymbols.size() - 1).length() == 0)
+		{
+			ruleSymbols.remove(ruleSymbols.size() - 1);
+		}
+
+		weights.add(weight);
+		annotations.add(annotation);
+		symbols.add(ruleSymbols.toArray(new String[ruleSymbols.size()]));
+	}
+
+	/**
+	 * Gets the length of the symbol separator at a position of a line, if it ends before the annotation.
+	 *
+	 * @return The length of the separator, or 0 if there is none
+	 */
+	private static int getSeparatorLength(String line, int i, int end)
+	{
+		if (line.startsWith(Grammar.ANTECEDENT_SEPARATOR, i))
+		{
+			return i + Grammar.ANTECEDENT_SEPARATOR.length() <= end ? Grammar.ANTECEDENT_SEPARATOR.length() : 0;
+		}
+		if (line.startsWith(Grammar.CONSEQUENT_SEPARATOR, i))
+		{
+			return i + Grammar.CONSEQUENT_SEPARATOR.length() <= end ? Grammar.CONSEQUENT_SEPARATOR.length() : 0;
+		}
+
+		return 0;
+	}
+
+	/**
+	 * Checks if the beginning of a line, up to the weight separator, is a number, possibly surrounded by
+	 * blanks.
+	 */
+	private static boolean isNumber(String line, int end)
+	{
+		boolean digits = false;
+		char c;
+
+		for (int i = 0; i < end; i++)
+		{
+			c = line.charAt(i);
+			if (c >= '0' && c <= '9')
+			{
+				digits = true;
+			}
+			else if (c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E' && !Character.isWhitespace(c))
+			{
+				return false;
+			}
+		}
+
+		return digits;
+	}
+
+	String getFileName()
+	{
+		return fileName;
+	}
+
+	/**
+	 * Gets the files included, in the order of their lines.
+	 */
+	ArrayList<String> getIncludes()
+	{
+		return includes;
+	}
+
+	int getRuleCount()
+	{
+		return symbols.size();
+	}
+
+	Double getWeight(int rule)
+	{
+		return weights.get(rule);
+	}
+
+	String getAnnotation(int rule)
+	{
+		return annotations.get(rule);
+	}
+
+	String[] getSymbols(int rule)
+	{
+		return symbols.get(rule);
+	}
+}
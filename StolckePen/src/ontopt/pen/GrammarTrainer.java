@@ -0,0 +1,399 @@
+package ontopt.pen;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Estimates the probabilities of the rules of a grammar from a corpus of sentences with the inside-outside
+ * algorithm, a form of EM. Each iteration parses the corpus with the current probabilities, adds up the
+ * expected uses of each rule (see ParseForest.addExpectedCounts()), and sets the probability of each rule to
+ * its expected uses over those of all the rules with its head. The likelihood of the corpus never decreases.
+ * </p>
+ * <p>
+ * The grammar of each iteration is written as a grammar file, in the syntax Grammar reads. The parser of the
+ * next iteration is compiled from a copy of the grammar in memory with the new probabilities, so only the
+ * transitive matrix and the tables derived from it are computed again. The sentences are shared among
+ * threads, each adding its counts in an array of its own, indexed by rule ID; the arrays are added up at the
+ * end of the iteration. The rules of a grammar without weights, e.g. a .grammar.noprob file, start with the
+ * same probability for each head.
+ * </p>
+ */
+public class GrammarTrainer
+{
+	/**
+	 * The structure of the grammar: its rules, and the IDs they are counted by
+	 */
+	private final Grammar grammar;
+
+	/**
+	 * The probabilities of the rules, indexed by rule ID
+	 */
+	private final double[] probabilities;
+
+	/**
+	 * The head of each rule, indexed by rule ID, as the index of its total: the dense index of the head, or
+	 * for the rules headed by a terminal (which the parser never uses), an index after those of the
+	 * nonterminals, one for each such terminal
+	 */
+	private final int[] heads;
+
+	/**
+	 * The number of rules of each head, by the same index as the totals
+	 */
+	private final int[] headSizes;
+
+	private final ArrayList<String> corpus;
+
+	private final int threads;
+
+	/**
+	 * The counts of one thread in one iteration
+	 */
+	private static class Counts
+	{
+		private final double[] counts;
+
+		private double logLikelihood;
+
+		private int failures;
+
+		private Counts(int rules)
+		{
+			counts = new double[rules];
+		}
+	}
+
+	/**
+	 * The constructor. Takes the initial probabilities of the rules from the grammar, normalized for each
+	 * head, or the same probability for all the rules of a head if they have no weights.
+	 *
+	 * @param grammarFile
+	 *            The grammar
+	 * @param corpus
+	 *            The sentences to train on
+	 * @param threads
+	 *            The number of threads
+	 * @throws GrammarException
+	 *             If the grammar is an image that could not be read
+	 */
+	public GrammarTrainer(String grammarFile, ArrayList<String> corpus, int threads) throws GrammarException
+	{
+		if (threads < 1)
+		{
+			throw new IllegalArgumentException("The number of threads must be positive");
+		}
+
+		this.grammar = new Grammar(grammarFile);
+		this.probabilities = new double[grammar.getRuleCount()];
+		this.heads = new int[grammar.getRuleCount()];
+		this.corpus = corpus;
+		this.threads = threads;
+
+		HashMap<Integer, Integer> terminalHeads = new HashMap<Integer, Integer>();
+		Integer head;
+		int index;
+
+		for (int i = 0; i < probabilities.length; i++)
+		{
+			probabilities[i] = grammar.getRule(i).getProbability();
+
+			head = grammar.getRule(i).getHead();
+			index = grammar.getNonterminalIndex(head);
+			if (index < 0)
+			{
+				if (!terminalHeads.containsKey(head))
+				{
+					terminalHeads.put(head, grammar.getNonterminalCount() + terminalHeads.size());
+				}
+				index = terminalHeads.get(head);
+			}
+			heads[i] = index;
+		}
+
+		this.headSizes = new int[grammar.getNonterminalCount() + terminalHeads.size()];
+		for (int i = 0; i < heads.length; i++)
+		{
+			headSizes[heads[i]]++;
+		}
+		normalize(probabilities, true);
+	}
+
+	/**
+	 * Runs the iterations, writing the grammar before the first one and after each one as
+	 * &lt;prefix&gt;.&lt;iteration&gt;.grammar.
+	 *
+	 * @param iterations
+	 *            The number of iterations
+	 * @param prefix
+	 *            The prefix of the grammar files
+	 * @param report
+	 *            The stream where the log likelihood of each iteration is printed
+	 * @throws GrammarException
+	 *             If the grammar of an iteration is not valid
+	 * @throws IOException
+	 *             If a grammar could not be written
+	 */
+	public void train(int iterations, String prefix, PrintStream report) throws GrammarException, IOException
+	{
+		double[] totals;
+		double[] counts;
+		Counts total;
+
+		write(prefix + ".0.grammar");
+		for (int i = 1; i <= iterations; i++)
+		{
+			total = expect(new EarleyParser(new CompiledGrammar(grammar.withProbabilities(probabilities))));
+			counts = total.counts;
+			report.println("iteration " + i + ": log likelihood " + total.logLikelihood + ", " + total.failures
+					+ " sentences without a parse");
+
+			// The heads without counts keep their probabilities
+			totals = getHeadTotals(counts);
+			for (int j = 0; j < counts.length; j++)
+			{
+				if (totals[heads[j]] == 0.)
+				{
+					counts[j] = probabilities[j];
+				}
+			}
+			normalize(counts, false);
+			System.arraycopy(counts, 0, probabilities, 0, counts.length);
+
+			write(prefix + "." + i + ".grammar");
+		}
+	}
+
+	/**
+	 * The E step: parses the corpus on the threads, each taking the next sentence not taken, and adds up
+	 * their counts. A parse that fails stops the iteration rather than leaving its sentences out of the
+	 * counts.
+	 *
+	 * @param parser
+	 *            The parser of the current grammar
+	 * @return The counts of the corpus
+	 */
+	private Counts expect(final EarleyParser parser)
+	{
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		ArrayList<Future<Counts>> partial = new ArrayList<Future<Counts>>();
+		Counts total = new Counts(probabilities.length);
+		Counts counts;
+
+		parser.setScaling(true);
+		parser.setPredictionLookahead(true);
+
+		try
+		{
+			for (int t = 0; t < threads; t++)
+			{
+				partial.add(workers.submit(new Callable<Counts>()
+				{
+					public Counts call()
+					{
+						Counts counts = new Counts(probabilities.length);
+						int i;
+
+						while ((i = next.getAndIncrement()) < corpus.size())
+						{
+							expect(parser, new PenSentence(corpus.get(i)), counts);
+						}
+						return counts;
+					}
+				}));
+			}
+
+			for (Future<Counts> future : partial)
+			{
+				counts = future.get();
+				for (int j = 0; j < total.counts.length; j++)
+				{
+					total.counts[j] += counts.counts[j];
+				}
+				total.logLikelihood += counts.logLikelihood;
+				total.failures += counts.failures;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Adds the expected counts of a sentence.
+	 */
+	private static void expect(EarleyParser parser, PenSentence sentence, Counts counts)
+	{
+		ParseForest forest = parser.parseForest(sentence);
+
+		if (forest == null || forest.getRoot() == null || forest.getRoot().getInnerProbability() <= 0.)
+		{
+			counts.failures++;
+			return;
+		}
+
+		forest.addExpectedCounts(counts.counts);
+
+		// The columns are scaled: the inner probability of the root is relative to the prefix probability
+		counts.logLikelihood += Math.log(forest.getRoot().getInnerProbability());
+		if (sentence.getSentenceSize() > 0)
+		{
+			counts.logLikelihood += sentence.getLogPrefix(sentence.getSentenceSize() - 1);
+		}
+	}
+
+	/**
+	 * Gets the total of the counts of the rules of each head, indexed as in heads.
+	 */
+	private double[] getHeadTotals(double[] counts)
+	{
+		double[] totals = new double[headSizes.length];
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			totals[heads[i]] += counts[i];
+		}
+
+		return totals;
+	}
+
+	/**
+	 * Divides the counts of the rules of each head by their total.
+	 *
+	 * @param counts
+	 *            The counts, indexed by rule ID
+	 * @param uniform
+	 *            Whether the rules of a head whose counts add up to 0 get the same probability
+	 */
+	private void normalize(double[] counts, boolean uniform)
+	{
+		double[] totals = getHeadTotals(counts);
+		double total;
+
+		for (int i = 0; i < counts.length; i++)
+		{
+			total = totals[heads[i]];
+			if (total > 0.)
+			{
+				counts[i] /= total;
+			}
+			else if (uniform)
+			{
+				counts[i] = 1. / headSizes[heads[i]];
+			}
+		}
+	}
+
+	/**
+	 * Writes the grammar with the current probabilities, one rule per line in the order of their IDs.
+	 *
+	 * @param file
+	 *            The file to write
+	 * @throws IOException
+	 *             If the file could not be written
+	 */
+	public void write(String file) throws IOException
+	{
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		NonterminalRule rule;
+		StringBuilder line;
+
+		try
+		{
+			for (int i = 0; i < probabilities.length; i++)
+			{
+				rule = (NonterminalRule) grammar.getRule(i);
+				line = new StringBuilder();
+				line.append(probabilities[i]).append(' ').append(Grammar.WEIGHT_SEPARATOR).append(' ');
+				line.append(grammar.getDataType(rule.getHead())).append(' ').append(Grammar.ANTECEDENT_SEPARATOR);
+				for (int j = 0; j < rule.getBody().size(); j++)
+				{
+					line.append(j == 0 ? " " : " " + Grammar.CONSEQUENT_SEPARATOR + " ");
+					line.append(grammar.getDataType(rule.getBody().get(j)));
+				}
+				if (rule.getAnnotation() != null && rule.getAnnotation().length() > 0)
+				{
+					line.append(' ').append(Grammar.ANNOTATION_SEPARATOR).append(' ').append(rule.getAnnotation());
+				}
+				writer.println(line);
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	public static void main(String[] args)
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		if (args.length < 4 || args.length > 5)
+		{
+			System.out.println("Usage:\n");
+			System.out.println("java -cp pen.jar ontopt.pen.GrammarTrainer <grammar> <sentences_file> <iterations> <output_prefix> [threads]");
+			return;
+		}
+
+		try
+		{
+			if (args.length == 5)
+			{
+				threads = Integer.parseInt(args[4]);
+			}
+
+			ArrayList<String> corpus = new ArrayList<String>();
+			String buffer;
+
+			BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+			while ((buffer = reader.readLine()) != null)
+			{
+				if (buffer.trim().length() > 0)
+				{
+					corpus.add(buffer);
+				}
+			}
+			reader.close();
+
+			new GrammarTrainer(args[0], corpus, threads).train(Integer.parseInt(args[2]), args[3], System.out);
+		}
+		catch (NumberFormatException e)
+		{
+			System.out.println("The number of iterations and of threads must be integers");
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (GrammarException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -42,12 +42,9 @@ public class GrammarValidator
 
     private void validate(Integer root) throws GrammarException
     {
-        if (root.intValue() > Grammar.PHRASE_LOWER_LIMIT)
+        if (Grammar.isNonterminal(root))
         {
             List<Rule> rules = grammar.getAllRulesWithHead(root);
-//          System.out.print(root + " ");
-//          System.out.print(grammar.getDataType(root) + " ");
-//        	System.out.println(rules.size());
             if (rules == null || rules.isEmpty())
             {
                 throw new GrammarException("Couldn't find rule for symbol: "
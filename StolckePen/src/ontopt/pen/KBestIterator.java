@@ -0,0 +1,449 @@
+package ontopt.pen;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * <p>
+ * Iterates over the parse trees of a forest from the most probable down, building them lazily (Huang and
+ * Chiang's lazy k-best algorithm). The most probable derivation of every node is found first; then each
+ * node keeps the derivations it was asked for, and a queue of candidates for the next one, made by taking
+ * the next derivation of one of the children of a derivation already found. Getting the k best trees thus
+ * takes time roughly proportional to k, however many trees the forest holds.
+ * </p>
+ * <p>
+ * The probability of a tree is the product of the probabilities of its rules. The derivations that go round
+ * a cycle of unit or empty rules, which are less probable than the same derivations without the cycle, may
+ * be left out.
+ * </p>
+ */
+public class KBestIterator implements Iterator<SemanticNode>
+{
+	/**
+	 * A derivation of a node: one of its packed nodes, and the rank of the derivations of its children
+	 */
+	private static class Derivation
+	{
+		private final ParseForest.PackedNode packed;
+
+		private final int left;
+
+		private final int right;
+
+		private final double probability;
+
+		private Derivation(ParseForest.PackedNode packed, int left, int right, double probability)
+		{
+			this.packed = packed;
+			this.left = left;
+			this.right = right;
+			this.probability = probability;
+		}
+
+		public boolean equals(Object o)
+		{
+			Derivation other = (Derivation) o;
+
+			return packed == other.packed && left == other.left && right == other.right;
+		}
+
+		public int hashCode()
+		{
+			return System.identityHashCode(packed) * 31 * 31 + left * 31 + right;
+		}
+	}
+
+	/**
+	 * The derivations found for a node, and the candidates for the next one
+	 */
+	private static class Derivations
+	{
+		private final ArrayList<Derivation> found = new ArrayList<Derivation>();
+
+		private final PriorityQueue<Derivation> candidates = new PriorityQueue<Derivation>(11, DESCENDING);
+
+		private final HashSet<Derivation> seen = new HashSet<Derivation>();
+
+		/**
+		 * The number of derivations found whose neighbours are among the candidates
+		 */
+		private int advanced;
+
+		private boolean expanding;
+	}
+
+	/**
+	 * A node with the probability of a derivation, while the most probable ones are found
+	 */
+	private static class Candidate
+	{
+		private final ParseForest.Node node;
+
+		private final double probability;
+
+		private Candidate(ParseForest.Node node, double probability)
+		{
+			this.node = node;
+			this.probability = probability;
+		}
+	}
+
+	private static final Comparator<Derivation> DESCENDING = new Comparator<Derivation>()
+	{
+		public int compare(Derivation a, Derivation b)
+		{
+			return Double.compare(b.probability, a.probability);
+		}
+	};
+
+	private final ParseForest.Node root;
+
+	/**
+	 * The probability of the most probable derivation of each node
+	 */
+	private final IdentityHashMap<ParseForest.Node, Double> best;
+
+	private final IdentityHashMap<ParseForest.Node, Derivations> derivations;
+
+	/**
+	 * The rank of the next tree
+	 */
+	private int rank;
+
+	/**
+	 * The probability of the last tree returned
+	 */
+	private double probability;
+
+	/**
+	 * Finds the most probable derivation of every node of a forest.
+	 *
+	 * @param forest
+	 *            The forest
+	 */
+	KBestIterator(ParseForest forest)
+	{
+		this.root = forest.getRoot();
+		this.best = new IdentityHashMap<ParseForest.Node, Double>();
+		this.derivations = new IdentityHashMap<ParseForest.Node, Derivations>();
+
+		if (root != null)
+		{
+			findBest();
+		}
+	}
+
+	/**
+	 * Computes the probability of the most probable derivation of each node with Knuth's generalization of
+	 * Dijkstra's algorithm, which copes with cycles: the nodes are settled from the most probable down, and a
+	 * packed node gives a candidate to its node once all of its children are settled.
+	 */
+	private void findBest()
+	{
+		IdentityHashMap<ParseForest.Node, ArrayList<ParseForest.PackedNode>> users = new IdentityHashMap<ParseForest.Node, ArrayList<ParseForest.PackedNode>>();
+		IdentityHashMap<ParseForest.PackedNode, ParseForest.Node> owners = new IdentityHashMap<ParseForest.PackedNode, ParseForest.Node>();
+		IdentityHashMap<ParseForest.PackedNode, int[]> unsettled = new IdentityHashMap<ParseForest.PackedNode, int[]>();
+		PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(11, new Comparator<Candidate>()
+		{
+			public int compare(Candidate a, Candidate b)
+			{
+				return Double.compare(b.probability, a.probability);
+			}
+		});
+		IdentityHashMap<ParseForest.Node, Boolean> visited = new IdentityHashMap<ParseForest.Node, Boolean>();
+		ArrayList<ParseForest.Node> stack = new ArrayList<ParseForest.Node>();
+		ArrayList<ParseForest.PackedNode> used;
+		ParseForest.PackedNode packed;
+		ParseForest.Node node;
+		Candidate settled;
+
+		// Index the packed nodes by their children; the terminals are settled from the start
+		stack.add(root);
+		visited.put(root, Boolean.TRUE);
+		while (!stack.isEmpty())
+		{
+			node = stack.remove(stack.size() - 1);
+			if (node.isTerminal())
+			{
+				queue.add(new Candidate(node, 1.));
+			}
+
+			for (int i = 0; i < node.getAlternatives().size(); i++)
+			{
+				packed = node.getAlternatives().get(i);
+				owners.put(packed, node);
+				unsettled.put(packed, new int[] { packed.getLeft() == null ? 1 : 2 });
+				if (packed.getLeft() != null)
+				{
+					addUser(users, packed.getLeft(), packed);
+					if (visited.put(packed.getLeft(), Boolean.TRUE) == null)
+					{
+						stack.add(packed.getLeft());
+					}
+				}
+				addUser(users, packed.getRight(), packed);
+				if (visited.put(packed.getRight(), Boolean.TRUE) == null)
+				{
+					stack.add(packed.getRight());
+				}
+			}
+		}
+
+		while (!queue.isEmpty())
+		{
+			settled = queue.poll();
+			if (best.containsKey(settled.node))
+			{
+				continue;
+			}
+
+			best.put(settled.node, settled.probability);
+			used = users.get(settled.node);
+			for (int i = 0; used != null && i < used.size(); i++)
+			{
+				packed = used.get(i);
+				if (--unsettled.get(packed)[0] == 0 && !best.containsKey(owners.get(packed)))
+				{
+					queue.add(new Candidate(owners.get(packed), getProbability(packed,
+							packed.getLeft() == null ? 1. : best.get(packed.getLeft()), best.get(packed.getRight()))));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records that a packed node has a node among its children.
+	 */
+	private static void addUser(IdentityHashMap<ParseForest.Node, ArrayList<ParseForest.PackedNode>> users,
+			ParseForest.Node node, ParseForest.PackedNode packed)
+	{
+		ArrayList<ParseForest.PackedNode> used = users.get(node);
+
+		if (used == null)
+		{
+			used = new ArrayList<ParseForest.PackedNode>();
+			users.put(node, used);
+		}
+		used.add(packed);
+	}
+
+	/**
+	 * Gets the probability of a derivation from those of its children. The probability of the rule is taken
+	 * where the rule begins, i.e. on the packed node without an intermediate node.
+	 */
+	private static double getProbability(ParseForest.PackedNode packed, double left, double right)
+	{
+		if (packed.getLeft() == null)
+		{
+			return packed.getRule().getProbability() * right;
+		}
+
+		return left * right;
+	}
+
+	/**
+	 * Gets the derivations of a node, starting them with the most probable derivation of each of its packed
+	 * nodes if it is the first time.
+	 */
+	private Derivations getDerivations(ParseForest.Node node)
+	{
+		Derivations found = derivations.get(node);
+		ParseForest.PackedNode packed;
+		Derivation derivation;
+
+		if (found != null)
+		{
+			return found;
+		}
+
+		found = new Derivations();
+		derivations.put(node, found);
+		if (node.isTerminal())
+		{
+			found.found.add(new Derivation(null, 0, 0, 1.));
+			return found;
+		}
+
+		for (int i = 0; i < node.getAlternatives().size(); i++)
+		{
+			packed = node.getAlternatives().get(i);
+			if ((packed.getLeft() == null || best.containsKey(packed.getLeft())) && best.containsKey(packed.getRight()))
+			{
+				derivation = new Derivation(packed, 0, 0, getProbability(packed,
+						packed.getLeft() == null ? 1. : best.get(packed.getLeft()), best.get(packed.getRight())));
+				found.seen.add(derivation);
+				found.candidates.add(derivation);
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Finds the derivations of a node up to the specified rank, if it has so many.
+	 */
+	private void expand(ParseForest.Node node, int k)
+	{
+		Derivations found = getDerivations(node);
+
+		// A terminal has its only derivation, and a node asked for more derivations of its own along a cycle
+		// gives up on them
+		if (node.isTerminal() || found.expanding)
+		{
+			return;
+		}
+
+		found.expanding = true;
+		while (found.found.size() <= k)
+		{
+			if (found.advanced < found.found.size())
+			{
+				advance(found, found.found.get(found.advanced++));
+			}
+			if (found.candidates.isEmpty())
+			{
+				break;
+			}
+			found.found.add(found.candidates.poll());
+		}
+		found.expanding = false;
+	}
+
+	/**
+	 * Adds to the candidates of a node the derivations next to one it was found: those that take the next
+	 * derivation of one of its children.
+	 */
+	private void advance(Derivations found, Derivation derivation)
+	{
+		if (derivation.packed.getLeft() != null)
+		{
+			addCandidate(found, derivation.packed, derivation.left + 1, derivation.right);
+		}
+		addCandidate(found, derivation.packed, derivation.left, derivation.right + 1);
+	}
+
+	private void addCandidate(Derivations found, ParseForest.PackedNode packed, int left, int right)
+	{
+		double leftProbability = 1.;
+		Derivations children;
+		Derivation candidate;
+
+		if (packed.getLeft() != null)
+		{
+			expand(packed.getLeft(), left);
+			children = derivations.get(packed.getLeft());
+			if (children.found.size() <= left)
+			{
+				return;
+			}
+			leftProbability = children.found.get(left).probability;
+		}
+
+		expand(packed.getRight(), right);
+		children = derivations.get(packed.getRight());
+		if (children.found.size() <= right)
+		{
+			return;
+		}
+
+		candidate = new Derivation(packed, left, right, getProbability(packed, leftProbability,
+				children.found.get(right).probability));
+		if (found.seen.add(candidate))
+		{
+			found.candidates.add(candidate);
+		}
+	}
+
+	/**
+	 * Gets a derivation of a node that was found before, at least as a candidate of the node it is a child of.
+	 */
+	private Derivation getDerivation(ParseForest.Node node, int k)
+	{
+		expand(node, k);
+		return derivations.get(node).found.get(k);
+	}
+
+	/**
+	 * Builds the tree of a derivation of a node.
+	 */
+	private SemanticNode getTree(ParseForest.Node node, int k)
+	{
+		Derivation derivation = getDerivation(node, k);
+		Rule rule = node.isTerminal() ? node.getRule() : derivation.packed.getRule();
+		SemanticNode tree = new SemanticNode(node.getLabel(), rule.getWeight(), rule.getAnnotation());
+
+		if (!node.isTerminal())
+		{
+			addChildren(tree, derivation);
+		}
+
+		return tree;
+	}
+
+	/**
+	 * Adds to a tree the children of a derivation, those of the intermediate node first.
+	 */
+	private void addChildren(SemanticNode tree, Derivation derivation)
+	{
+		if (derivation.packed.getLeft() != null)
+		{
+			addChildren(tree, getDerivation(derivation.packed.getLeft(), derivation.left));
+		}
+		tree.addChild(getTree(derivation.packed.getRight(), derivation.right));
+	}
+
+	public boolean hasNext()
+	{
+		if (root == null || !best.containsKey(root))
+		{
+			return false;
+		}
+
+		expand(root, rank);
+		return derivations.get(root).found.size() > rank;
+	}
+
+	/**
+	 * Builds the next most probable tree.
+	 *
+	 * @return The tree
+	 * @throws NoSuchElementException
+	 *             If there are no more trees
+	 */
+	public SemanticNode next()
+	{
+		SemanticNode tree;
+
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+
+		tree = getTree(root, rank);
+		probability = derivations.get(root).found.get(rank).probability;
+		rank++;
+
+		return tree;
+	}
+
+	/**
+	 * Gets the probability of the last tree returned by next(): the product of the probabilities of its
+	 * rules.
+	 *
+	 * @return The probability
+	 */
+	public double getProbability()
+	{
+		return probability;
+	}
+
+	public void remove()
+	{
+		throw new UnsupportedOperationException();
+	}
+}
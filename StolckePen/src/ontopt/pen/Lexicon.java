@@ -0,0 +1,251 @@
+package ontopt.pen;
+
+import java.nio.IntBuffer;
+
+/**
+ * The lexical rules of a grammar (rules of the form PRETERMINAL - word), indexed by word. For each terminal ID
+ * the lexicon holds the preterminals that can produce it, the probability of each lexical rule and the rule
+ * itself. The predictor does not expand these rules: the scanner looks up the current word and advances the
+ * states waiting for one of its preterminals. The lexicon is also indexed by preterminal, to spread the
+ * probability waiting for each preterminal over its words.
+ */
+public class Lexicon
+{
+    private static final int[] NO_ENTRIES = new int[0];
+
+    private static final double[] NO_PROBABILITIES = new double[0];
+
+    /**
+     * For each terminal ID, the Integer IDs of the preterminals that produce it
+     */
+    private int[][] preterminals;
+
+    /**
+     * For each terminal ID, the probability of each lexical rule, parallel to preterminals
+     */
+    private double[][] probabilities;
+
+    /**
+     * For each terminal ID, the ID of each lexical rule, parallel to preterminals
+     */
+    private int[][] rules;
+
+    /**
+     * For each dense nonterminal index, the terminal IDs the nonterminal produces through a lexical rule
+     */
+    private int[][] words;
+
+    /**
+     * For each dense nonterminal index, the probability of each lexical rule, parallel to words
+     */
+    private double[][] wordProbabilities;
+
+    /**
+     * The constructor. Collects the lexical rules of the grammar.
+     * 
+     * @param grammar
+     *            The grammar
+     */
+    public Lexicon(Grammar grammar)
+    {
+        int limit = grammar.getTerminalIDLimit();
+        int[] counts = new int[limit];
+        int[][] wordRules = new int[limit][];
+        Rule rule;
+        int terminal;
+
+        for (int pass = 0; pass < 2; pass++)
+        {
+            for (int i = 0; i < grammar.getRuleCount(); i++)
+            {
+                rule = grammar.getRule(i);
+                if (!rule.isLexical())
+                {
+                    continue;
+                }
+
+                terminal = grammar.getBodies()[grammar.getBodyOffsets()[i]];
+                if (pass == 0)
+                {
+                    counts[terminal]++;
+                }
+                else
+                {
+                    wordRules[terminal][counts[terminal]++] = i;
+                }
+            }
+
+            if (pass == 0)
+            {
+                for (int t = 0; t < limit; t++)
+                {
+                    wordRules[t] = counts[t] == 0 ? NO_ENTRIES : new int[counts[t]];
+                    counts[t] = 0;
+                }
+            }
+        }
+
+        index(grammar, wordRules);
+    }
+
+    /**
+     * The constructor. Takes the lexical rules of each word as they were collected before, e.g. in a grammar
+     * image.
+     * 
+     * @param grammar
+     *            The grammar
+     * @param offsets
+     *            For each terminal ID, the offset of its rules in ruleIDs, with one more at the end
+     * @param ruleIDs
+     *            The IDs of the lexical rules producing each terminal, in order
+     */
+    Lexicon(Grammar grammar, IntBuffer offsets, IntBuffer ruleIDs)
+    {
+        int limit = offsets.limit() - 1;
+        int[][] wordRules = new int[limit][];
+
+        for (int t = 0; t < limit; t++)
+        {
+            wordRules[t] = offsets.get(t + 1) == offsets.get(t) ? NO_ENTRIES
+                    : new int[offsets.get(t + 1) - offsets.get(t)];
+            for (int i = 0; i < wordRules[t].length; i++)
+            {
+                wordRules[t][i] = ruleIDs.get(offsets.get(t) + i);
+            }
+        }
+
+        index(grammar, wordRules);
+    }
+
+    /**
+     * Indexes the lexical rules by word and by preterminal.
+     */
+    private void index(Grammar grammar, int[][] wordRules)
+    {
+        int limit = wordRules.length;
+        int[] wordCounts = new int[grammar.getNonterminalCount()];
+        Rule rule;
+        int nonterminal;
+
+        for (int t = 0; t < limit; t++)
+        {
+            for (int i = 0; i < wordRules[t].length; i++)
+            {
+                wordCounts[grammar.getNonterminalIndex(grammar.getRule(wordRules[t][i]).getHead())]++;
+            }
+        }
+
+        words = new int[wordCounts.length][];
+        wordProbabilities = new double[wordCounts.length][];
+        for (int n = 0; n < wordCounts.length; n++)
+        {
+            words[n] = wordCounts[n] == 0 ? NO_ENTRIES : new int[wordCounts[n]];
+            wordProbabilities[n] = wordCounts[n] == 0 ? NO_PROBABILITIES : new double[wordCounts[n]];
+            wordCounts[n] = 0;
+        }
+
+        preterminals = new int[limit][];
+        probabilities = new double[limit][];
+        rules = new int[limit][];
+
+        for (int t = 0; t < limit; t++)
+        {
+            if (wordRules[t].length == 0)
+            {
+                preterminals[t] = NO_ENTRIES;
+                probabilities[t] = NO_PROBABILITIES;
+                rules[t] = NO_ENTRIES;
+                continue;
+            }
+
+            preterminals[t] = new int[wordRules[t].length];
+            probabilities[t] = new double[wordRules[t].length];
+            rules[t] = wordRules[t];
+            for (int i = 0; i < wordRules[t].length; i++)
+            {
+                rule = grammar.getRule(wordRules[t][i]);
+                preterminals[t][i] = rule.getHead();
+                probabilities[t][i] = rule.getProbability();
+
+                nonterminal = grammar.getNonterminalIndex(rule.getHead());
+                words[nonterminal][wordCounts[nonterminal]] = t;
+                wordProbabilities[nonterminal][wordCounts[nonterminal]++] = probabilities[t][i];
+            }
+        }
+    }
+
+    /**
+     * Gets the preterminals that produce a terminal.
+     * 
+     * @param terminal
+     *            The Integer ID of the terminal
+     * @return The Integer IDs of the preterminals, possibly none
+     */
+    public int[] getPreterminals(Integer terminal)
+    {
+        if (terminal < 0 || terminal >= preterminals.length)
+        {
+            return NO_ENTRIES;
+        }
+
+        return preterminals[terminal];
+    }
+
+    /**
+     * Gets the probabilities of the lexical rules producing a terminal, parallel to getPreterminals().
+     * 
+     * @param terminal
+     *            The Integer ID of the terminal
+     * @return The probabilities
+     */
+    public double[] getProbabilities(Integer terminal)
+    {
+        if (terminal < 0 || terminal >= probabilities.length)
+        {
+            return NO_PROBABILITIES;
+        }
+
+        return probabilities[terminal];
+    }
+
+    /**
+     * Gets the IDs of the lexical rules producing a terminal, parallel to getPreterminals().
+     * 
+     * @param terminal
+     *            The Integer ID of the terminal
+     * @return The rule IDs
+     */
+    public int[] getRules(Integer terminal)
+    {
+        if (terminal < 0 || terminal >= rules.length)
+        {
+            return NO_ENTRIES;
+        }
+
+        return rules[terminal];
+    }
+
+    /**
+     * Gets the words a preterminal produces.
+     * 
+     * @param nonterminal
+     *            The dense index of the preterminal
+     * @return The terminal IDs of the words, none if it is not a preterminal
+     */
+    public int[] getWords(int nonterminal)
+    {
+        return words[nonterminal];
+    }
+
+    /**
+     * Gets the probabilities of the lexical rules of a preterminal, parallel to getWords().
+     * 
+     * @param nonterminal
+     *            The dense index of the preterminal
+     * @return The probabilities
+     */
+    public double[] getWordProbabilities(int nonterminal)
+    {
+        return wordProbabilities[nonterminal];
+    }
+}
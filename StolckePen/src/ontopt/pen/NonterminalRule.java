@@ -26,7 +26,6 @@ public class NonterminalRule extends Rule
      * Represents the body of the rule. e.g. HEAD - B1, B2, ..., Bn Everything to the right of - is the body.
      */
     protected ArrayList<Integer> body;
-    protected Integer head;
 
     /**
      * The Constructor
@@ -89,6 +88,16 @@ public class NonterminalRule extends Rule
     	return this.body.size();
     }
     
+    public boolean isLexical() {
+    	if (getHead() == null || !Grammar.isNonterminal(getHead()) || this.body.size() != 1) {
+    		return false;
+    	}
+    	
+    	// A word, not the unknown (<?>) nor the empty (<>) terminal
+    	Integer symbol = this.body.get(0);
+    	return symbol > 0 && !Grammar.isNonterminal(symbol);
+    }
+    
     /**
      * gets the string representation of this rule.
      * 
@@ -128,6 +137,11 @@ public class NonterminalRule extends Rule
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
+
+		// The rules of a grammar have theirs computed once, from its flat arrays
+		if (id >= 0 && grammar != null && (result = grammar.getRuleHash(this)) != 0)
+			return result;
+		result = 1;
 		result = prime * result + ((body == null) ? 0 : body.hashCode());
 		result = prime * result + ((head == null) ? 0 : head.hashCode());
 		return result;
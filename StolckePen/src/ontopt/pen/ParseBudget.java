@@ -0,0 +1,73 @@
+package ontopt.pen;
+
+/**
+ * <p>
+ * The limits of a parse (see EarleyParser.parseSentence(Sentence, ParseBudget)): a time limit, and limits on
+ * the number of states of a column and of the whole chart. The parser checks them as it processes each
+ * state, and gives up on the sentence once one is exceeded, returning what it parsed so far. 0 leaves a limit
+ * out.
+ * </p>
+ * <p>
+ * A budget holds no state of its own, so one can be shared by all the parses and threads.
+ * </p>
+ */
+public class ParseBudget
+{
+	private final long timeLimit;
+
+	private final int maxColumnStates;
+
+	private final int maxChartStates;
+
+	/**
+	 * The constructor
+	 * 
+	 * @param timeLimit
+	 *            The longest a parse may take, in milliseconds
+	 * @param maxColumnStates
+	 *            The most states a column may hold
+	 * @param maxChartStates
+	 *            The most states the chart may hold
+	 */
+	public ParseBudget(long timeLimit, int maxColumnStates, int maxChartStates)
+	{
+		if (timeLimit < 0 || maxColumnStates < 0 || maxChartStates < 0)
+		{
+			throw new IllegalArgumentException("The limits of a budget cannot be negative");
+		}
+
+		this.timeLimit = timeLimit;
+		this.maxColumnStates = maxColumnStates;
+		this.maxChartStates = maxChartStates;
+	}
+
+	/**
+	 * Gets the longest a parse may take.
+	 * 
+	 * @return The time limit in milliseconds, 0 if there is none
+	 */
+	public long getTimeLimit()
+	{
+		return timeLimit;
+	}
+
+	/**
+	 * Gets the most states a column may hold.
+	 * 
+	 * @return The limit, 0 if there is none
+	 */
+	public int getMaxColumnStates()
+	{
+		return maxColumnStates;
+	}
+
+	/**
+	 * Gets the most states the chart may hold.
+	 * 
+	 * @return The limit, 0 if there is none
+	 */
+	public int getMaxChartStates()
+	{
+		return maxChartStates;
+	}
+}
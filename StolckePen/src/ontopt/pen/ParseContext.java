@@ -0,0 +1,1807 @@
+package ontopt.pen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The state of one parse: the chart, the scratch space of the predictor and the options in effect. It
+ * implements the Earley's chart parsing algorithm on behalf of an EarleyParser, reading the shared
+ * CompiledGrammar without locking it.
+ * </p>
+ * <p>
+ * A context is used by one thread at a time. The parser keeps one per thread for parseSentence(), and each
+ * ParseSession has its own.
+ * </p>
+ */
+class ParseContext
+{
+	/**
+	 * A list of charts columns, being the Earley parser chart, composed of n+1
+	 * columns, where n = number of words in sentence. A column is added as each word is scanned.
+	 */
+	private ArrayList<ChartColumn> chart;
+	/**
+	 * The ID of the word following the column being processed, or null at the end of the sentence
+	 */
+	private Integer lookaheadTerminal;
+	/**
+	 * Whether the lookahead applies to the column being processed
+	 */
+	private boolean columnLookahead;
+	/**
+	 * The dense indexes of the preterminals producing lookaheadTerminal
+	 */
+	private int[] lookaheadPreterminals;
+	/**
+	 * The forward probability waiting for each nonterminal in the column being processed, indexed by dense
+	 * nonterminal index. It is gathered from the states that are not predicted themselves, and consumed once
+	 * per column by the predictor.
+	 */
+	private double[] predictionMass;
+	/**
+	 * The nonterminals with some forward probability in predictionMass, in order of arrival
+	 */
+	private int[] pendingNonterminals;
+	private int pendingCount;
+	private boolean[] pending;
+	/**
+	 * Scratch space of the predictor: the forward probability summed for each predicted rule, by its position
+	 * in the prediction, and indexed by rule ID the prediction in which each rule was last touched and its
+	 * position there. Each predicted rule is listed once in predictedRules.
+	 */
+	private double[] predictedForward;
+	private int[] predictedStamp;
+	private int[] predictedPosition;
+	private int[] predictedRules;
+	private int predictionCount;
+	/**
+	 * The predictions made last, the most recently used last
+	 */
+	private LinkedHashMap<PredictionKey, Prediction> predictions;
+	private int predictionCacheSize;
+	/**
+	 * The states of the column being processed that gained probability after being processed, and must pass
+	 * the difference on
+	 */
+	private ArrayDeque<State> agenda;
+	/**
+	 * A state is processed again only if it gained more than this fraction of its probability. This bounds
+	 * the iterations over cycles of unit and empty rules, whose probabilities form converging series.
+	 */
+	private static final double PROPAGATION_THRESHOLD = 1e-12;
+
+	private final EarleyParser parser;
+
+	private final Grammar grammar;
+
+	/**
+	 * The left corner closures of the nonterminals, precompiled from the transitive matrix R_L
+	 */
+	private final PredictionTable predictionTable;
+
+	/**
+	 * The words and preterminals each nonterminal can begin with
+	 */
+	private final FirstSets firstSets;
+
+	/**
+	 * A dummy rule. This is the first rule to be put in the chart. it initializes the parsing process
+	 */
+	private final NonterminalRule dummieRule;
+
+	/**
+	 * The options of the parser, read when each call begins, or once for all the calls of a session
+	 */
+	private boolean lookahead;
+
+	private boolean viterbi;
+
+	private boolean scaling;
+
+	private double beamThreshold;
+
+	private int beamWidth;
+
+	private int treeLimit;
+
+	/**
+	 * The number of stop requests the parser had received when the current or last call began: the only
+	 * record of when a parse began, so the parse and isStopped() see the same stops
+	 */
+	private int stopRequests;
+
+	/**
+	 * The budget of the current call, if any, the time it ends, in System.nanoTime(), and the number of
+	 * states of the columns before the one being processed
+	 */
+	private ParseBudget budget;
+	private long deadline;
+	private int earlierStates;
+	private int budgetChecks;
+
+	/**
+	 * Why the current call gave up, as in ParseResult
+	 */
+	private byte status;
+
+	/**
+	 * The listener of the current call, or null
+	 */
+	private ParseListener listener;
+
+	/**
+	 * A prefix shared by sentences of a batch (see getLogProbabilities()): the words that may follow it, and
+	 * the sentences that end with it
+	 */
+	private static class TrieNode
+	{
+		private final LinkedHashMap<String, TrieNode> children = new LinkedHashMap<String, TrieNode>();
+
+		private final ArrayList<Integer> ends = new ArrayList<Integer>();
+
+		/**
+		 * The first sentence with the prefix, where the prefix probabilities are computed
+		 */
+		private final Sentence sentence;
+
+		private TrieNode(Sentence sentence)
+		{
+			this.sentence = sentence;
+		}
+	}
+
+	/**
+	 * What a prediction depends on: the nonterminals waiting in the column, sorted, and the
+	 * next word if the lookahead applies
+	 */
+	private static class PredictionKey
+	{
+		private static final int NO_LOOKAHEAD = Integer.MIN_VALUE;
+
+		private static final int END_OF_SENTENCE = Integer.MIN_VALUE + 1;
+
+		private final int[] nonterminals;
+
+		private final int lookahead;
+
+		private final int hash;
+
+		private PredictionKey(int[] nonterminals, int lookahead)
+		{
+			this.nonterminals = nonterminals;
+			this.lookahead = lookahead;
+			this.hash = Arrays.hashCode(nonterminals) * 31 + lookahead;
+		}
+
+		public boolean equals(Object o)
+		{
+			PredictionKey other = (PredictionKey) o;
+
+			return lookahead == other.lookahead && Arrays.equals(nonterminals, other.nonterminals);
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+	}
+
+	/**
+	 * The rules predicted for a key, each once, and for each nonterminal of the key the position among them
+	 * of each rule of its closure in the prediction table (-1 for the rules skipped by the lookahead)
+	 */
+	private static class Prediction
+	{
+		private final int[] rules;
+
+		private final int[][] positions;
+
+		private Prediction(int[] rules, int[][] positions)
+		{
+			this.rules = rules;
+			this.positions = positions;
+		}
+	}
+
+	/**
+	 * The constructor. Allocates the scratch space of the parse, sized after the grammar.
+	 * 
+	 * @param parser
+	 *            The parser the context parses for
+	 */
+	ParseContext(EarleyParser parser)
+	{
+		CompiledGrammar compiled = parser.getCompiledGrammar();
+
+		this.parser = parser;
+		grammar = compiled.getGrammar();
+		predictionTable = compiled.getPredictionTable();
+		firstSets = compiled.getFirstSets();
+		dummieRule = compiled.getDummyRule();
+		stopRequests = parser.getStopRequests();
+
+		predictionMass = new double[grammar.getNonterminalCount()];
+		pendingNonterminals = new int[grammar.getNonterminalCount()];
+		pending = new boolean[grammar.getNonterminalCount()];
+		predictedForward = new double[grammar.getRuleCount()];
+		predictedStamp = new int[grammar.getRuleCount()];
+		predictedPosition = new int[grammar.getRuleCount()];
+		predictedRules = new int[grammar.getRuleCount()];
+		agenda = new ArrayDeque<State>();
+		predictions = new LinkedHashMap<PredictionKey, Prediction>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PredictionKey, Prediction> eldest)
+			{
+				return size() > predictionCacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Reads the options of the parser and the stop requests before a call.
+	 */
+	private void begin()
+	{
+		readOptions();
+		resume();
+	}
+
+	/**
+	 * Reads the options of the parser: before each call, or when a session is created, whose calls must all
+	 * build its chart the same way.
+	 */
+	void readOptions()
+	{
+		lookahead = parser.isPredictionLookahead();
+		viterbi = parser.isViterbi();
+		scaling = parser.isScaling();
+		beamThreshold = parser.getBeamThreshold();
+		beamWidth = parser.getBeamWidth();
+		treeLimit = parser.getTreeLimit();
+		predictionCacheSize = parser.getPredictionCacheSize();
+		listener = parser.getParseListener();
+	}
+
+	/**
+	 * Reads the stop requests before a call, keeping the options read before.
+	 */
+	private void resume()
+	{
+		stopRequests = parser.getStopRequests();
+		status = ParseResult.COMPLETE;
+	}
+
+	/**
+	 * Checks if the parser was asked to stop since the current or last call began.
+	 * 
+	 * @return true if it was
+	 */
+	boolean isStopped()
+	{
+		return parser.getStopRequests() != stopRequests;
+	}
+
+	/**
+	 * Checks if the parser was asked to stop since the current call began, or if the call exceeded its
+	 * budget, and records why. The clock is only read every 64 checks.
+	 * 
+	 * @param i
+	 *            The index of the column being processed
+	 * @return true if the call must give up
+	 */
+	private boolean isStopped(int i)
+	{
+		int size;
+
+		if (isStopped())
+		{
+			status = ParseResult.STOPPED;
+			return true;
+		}
+		if (budget == null)
+		{
+			return false;
+		}
+
+		size = chart.get(i).size();
+		if (budget.getMaxColumnStates() > 0 && size > budget.getMaxColumnStates())
+		{
+			status = ParseResult.COLUMN_LIMIT;
+		}
+		else if (budget.getMaxChartStates() > 0 && earlierStates + size > budget.getMaxChartStates())
+		{
+			status = ParseResult.CHART_LIMIT;
+		}
+		else if (budget.getTimeLimit() > 0 && (budgetChecks++ & 63) == 0 && System.nanoTime() - deadline > 0)
+		{
+			status = ParseResult.TIME_LIMIT;
+		}
+
+		return status != ParseResult.COMPLETE;
+	}
+
+	/**
+	 * Parses a sentence
+	 * 
+	 * @param sentence
+	 *            The sentence to parse
+	 * @return A list of possible parse trees, or null if the parse was stopped
+	 */
+	ArrayList<SemanticNode> parseSentence(Sentence sentence)
+	{
+		begin();
+		try
+		{
+			if (!parseColumns(sentence))
+				return null;
+			return getTrees();
+		}
+		finally
+		{
+			chart = null;
+		}
+	}
+
+	/**
+	 * Parses a sentence within a budget (see EarleyParser.parseSentence(Sentence, ParseBudget)).
+	 * 
+	 * @param sentence
+	 *            The sentence to parse
+	 * @param budget
+	 *            The budget
+	 * @return The result, complete or partial
+	 */
+	ParseResult parseSentence(Sentence sentence, ParseBudget budget)
+	{
+		ArrayList<SemanticNode> trees = null;
+		long start = System.nanoTime();
+		int[] columnSizes;
+		int completed = 0;
+
+		begin();
+		this.budget = budget;
+		deadline = start + budget.getTimeLimit() * 1000000L;
+		budgetChecks = 0;
+		try
+		{
+			if (parseColumns(sentence))
+			{
+				trees = getTrees();
+			}
+
+			columnSizes = new int[chart.size()];
+			for (int i = 0; i < columnSizes.length; i++)
+			{
+				columnSizes[i] = chart.get(i).size();
+				if (chart.get(i).isClosed())
+				{
+					completed++;
+				}
+			}
+			return new ParseResult(status, sentence, trees, columnSizes, completed, System.nanoTime() - start);
+		}
+		finally
+		{
+			this.budget = null;
+			chart = null;
+		}
+	}
+
+	/**
+	 * Parses a sentence into a forest (see EarleyParser.parseForest()).
+	 * 
+	 * @param sentence
+	 *            The sentence to parse
+	 * @return The forest, or null if the parse was stopped
+	 */
+	ParseForest parseForest(Sentence sentence)
+	{
+		ParseForest forest;
+
+		begin();
+		try
+		{
+			if (!parseColumns(sentence))
+				return null;
+			forest = new ParseForest(grammar, chart, viterbi);
+			return forest;
+		}
+		finally
+		{
+			chart = null;
+		}
+	}
+
+	/**
+	 * Computes the probability of a sentence (see EarleyParser.getLogProbability()). No tree is built.
+	 * 
+	 * @param sentence
+	 *            The sentence
+	 * @return The natural logarithm of the probability, or NaN if the parse was stopped
+	 */
+	double getLogProbability(Sentence sentence)
+	{
+		double logProbability;
+
+		begin();
+		try
+		{
+			if (!parseColumns(sentence))
+				return Double.NaN;
+
+			logProbability = getLogProbability(sentence.getSentenceSize(), sentence);
+			return logProbability;
+		}
+		finally
+		{
+			chart = null;
+		}
+	}
+
+	/**
+	 * Computes the probability of a sentence from the roots of its last column.
+	 * 
+	 * @param last
+	 *            The index of the last column, i.e. the length of the sentence
+	 * @param sentence
+	 *            The sentence, with the prefix probabilities of its words
+	 * @return The natural logarithm of the probability
+	 */
+	private double getLogProbability(int last, Sentence sentence)
+	{
+		ArrayList<State> roots = chart.get(last).getRoots();
+		double inner = 0.;
+
+		for (int i = 0; i < roots.size(); i++)
+		{
+			if (roots.get(i).getRule() != dummieRule)
+			{
+				inner += roots.get(i).getInnerProbability();
+			}
+		}
+
+		// Scaled, the inner probability of the roots is relative to the prefix probability of the sentence
+		if (scaling && last > 0)
+		{
+			return sentence.getLogPrefix(last - 1) + Math.log(inner);
+		}
+		return Math.log(inner);
+	}
+
+	/**
+	 * Computes the probabilities of a batch of sentences, parsing the prefixes they share once (see
+	 * EarleyParser.getLogProbabilities()).
+	 * 
+	 * @param sentences
+	 *            The sentences
+	 * @return The natural logarithms of the probabilities, in the order of the sentences, or null if the
+	 *         parse was stopped
+	 */
+	double[] getLogProbabilities(List<? extends Sentence> sentences)
+	{
+		double[] logProbabilities = new double[sentences.size()];
+		TrieNode root;
+		TrieNode node;
+		TrieNode child;
+		Sentence sentence;
+
+		if (sentences.isEmpty())
+		{
+			return logProbabilities;
+		}
+
+		root = new TrieNode(sentences.get(0));
+		for (int i = 0; i < sentences.size(); i++)
+		{
+			sentence = sentences.get(i);
+			node = root;
+			for (int k = 0; k < sentence.getSentenceSize(); k++)
+			{
+				child = node.children.get(sentence.getWord(k));
+				if (child == null)
+				{
+					child = new TrieNode(sentence);
+					node.children.put(sentence.getWord(k), child);
+				}
+				node = child;
+			}
+			node.ends.add(i);
+		}
+
+		begin();
+		chart = startChart();
+		if (listener != null)
+		{
+			listener.sentenceStarted(sentences.get(0));
+		}
+		try
+		{
+			return parseTrie(root, 0, sentences, logProbabilities) ? logProbabilities : null;
+		}
+		finally
+		{
+			chart = null;
+		}
+	}
+
+	/**
+	 * Parses the sentences that share a prefix, the chart holding the columns up to the one after it. The
+	 * column is completed once, and each word that may follow is scanned into a column of its own, after the
+	 * columns of the previous one are dropped: the columns of the prefix are complete, so they are shared
+	 * by every branch as they are. With a beam, which states of the column are kept depends on the word, so
+	 * each word is scanned from a copy of it when several follow.
+	 * 
+	 * @param node
+	 *            The prefix
+	 * @param index
+	 *            The length of the prefix, i.e. the index of its last column
+	 * @param sentences
+	 *            The sentences of the batch
+	 * @param logProbabilities
+	 *            The probabilities of the sentences, filled in as they end
+	 * @return false if the parse was stopped
+	 */
+	private boolean parseTrie(TrieNode node, int index, List<? extends Sentence> sentences, double[] logProbabilities)
+	{
+		TrieNode single = node.children.size() == 1 && node.ends.isEmpty() ? node.children.values().iterator().next() : null;
+		boolean branchCopies = (beamThreshold > 0. || beamWidth > 0) && node.children.size() > 1;
+		ChartColumn column;
+
+		// A column followed by several words is completed without the lookahead, which depends on the word
+		if (single != null)
+		{
+			if (!completeColumn(index, single.sentence))
+				return false;
+		}
+		else if (!completeColumn(index, node.sentence, lookahead && node.children.isEmpty()))
+		{
+			return false;
+		}
+
+		for (int i = 0; i < node.ends.size(); i++)
+		{
+			logProbabilities[node.ends.get(i)] = getLogProbability(index, node.sentence);
+			copyPrefix(node.sentence, sentences.get(node.ends.get(i)), index);
+		}
+
+		column = chart.get(index);
+		for (TrieNode child : node.children.values())
+		{
+			chart.subList(index + 1, chart.size()).clear();
+			if (branchCopies)
+			{
+				chart.set(index, new ChartColumn(column));
+			}
+			copyPrefix(node.sentence, child.sentence, index);
+			chart.add(new ChartColumn(grammar));
+			scanColumn(index, child.sentence);
+			if (!parseTrie(child, index + 1, sentences, logProbabilities))
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies the prefix probabilities of the first words of a sentence to another sentence that begins with
+	 * the same words.
+	 */
+	private static void copyPrefix(Sentence from, Sentence to, int length)
+	{
+		if (from == to)
+		{
+			return;
+		}
+
+		for (int k = 0; k < length; k++)
+		{
+			to.updatePrefix(from.getPrefix(k), k);
+			to.updateLogPrefix(from.getLogPrefix(k), k);
+			to.updatePrunedFraction(from.getPrunedFraction(k), k);
+		}
+	}
+
+	/**
+	 * Fills a new chart with the columns of a sentence, up to the one after its last word.
+	 * 
+	 * @param sentence
+	 *            The sentence to parse
+	 * @return false if the parse was stopped
+	 */
+	private boolean parseColumns(Sentence sentence)
+	{
+		chart = startChart();
+		if (listener != null)
+		{
+			listener.sentenceStarted(sentence);
+		}
+		
+		for (int i = 0; i < sentence.getSentenceSize() + 1; i++)
+		{
+			if (!completeColumn(i, sentence))
+				return false;
+			
+			if(i<sentence.getSentenceSize()){
+				
+			chart.add(new ChartColumn(grammar));
+			scanColumn(i, sentence);
+		
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the probability of each word being the next one of a session, given the words fed so far (see
+	 * EarleyParser.getNextWordDistribution()).
+	 * 
+	 * @param session
+	 *            The session
+	 * @return The probabilities indexed by terminal ID, or null if the parse was stopped
+	 */
+	double[] getNextWordDistribution(ParseSession session)
+	{
+		int index = session.size();
+
+		resume();
+		chart = session.getChart();
+		try
+		{
+			if (!completeColumn(index, session.getSentence(), false))
+			{
+				return null;
+			}
+			return getNextWordDistribution(index, session.getSentence());
+		}
+		finally
+		{
+			chart = null;
+		}
+	}
+
+	/**
+	 * Gathers the next word distribution of a complete column.
+	 * 
+	 * @param index
+	 *            The index of the column
+	 * @param sentence
+	 *            The sentence up to the column
+	 * @return The probabilities indexed by terminal ID, all 0 if the prefix probability is 0
+	 */
+	private double[] getNextWordDistribution(int index, Sentence sentence)
+	{
+		double[] distribution = new double[grammar.getTerminalIDLimit()];
+		double[] preterminalMass = new double[grammar.getNonterminalCount()];
+		Lexicon lexicon = grammar.getLexicon();
+		double anyWord = 0.;
+		double prefix = 1.;
+		int[] words;
+		double[] probabilities;
+		State curState;
+		Integer next;
+
+		for (int j = 0; j < chart.get(index).size(); j++)
+		{
+			curState = chart.get(index).getState(j);
+			if (!(curState.getRule() instanceof NonterminalRule) || curState.isComplete() || curState.isPruned())
+			{
+				continue;
+			}
+
+			next = curState.getNextConstituent();
+			if (Grammar.isNonterminal(next))
+			{
+				preterminalMass[grammar.getNonterminalIndex(next)] += curState.getForwardProbability();
+			}
+			else if (next.equals(Grammar.UNKNOWN_TERMINAL))
+			{
+				anyWord += curState.getForwardProbability();
+			}
+			else if (next > 0)
+			{
+				distribution[next] += curState.getForwardProbability();
+			}
+		}
+
+		for (int n = 0; n < preterminalMass.length; n++)
+		{
+			if (preterminalMass[n] == 0.)
+			{
+				continue;
+			}
+			words = lexicon.getWords(n);
+			probabilities = lexicon.getWordProbabilities(n);
+			for (int k = 0; k < words.length; k++)
+			{
+				distribution[words[k]] += preterminalMass[n] * probabilities[k];
+			}
+		}
+
+		// With scaling the forward probabilities are already relative to the prefix probability
+		if (!scaling && index > 0)
+		{
+			prefix = sentence.getPrefix(index - 1);
+		}
+		if (prefix == 0.)
+		{
+			return new double[distribution.length];
+		}
+		for (int t = 1; t < distribution.length; t++)
+		{
+			distribution[t] = (distribution[t] + anyWord) / prefix;
+		}
+		distribution[0] = anyWord / prefix;
+
+		return distribution;
+	}
+
+	/**
+	 * Creates the first column of a chart, holding the dummy state.
+	 * 
+	 * @return The chart
+	 */
+	ArrayList<ChartColumn> startChart()
+	{
+		ArrayList<ChartColumn> newChart = new ArrayList<ChartColumn>();
+		State curState = new State(dummieRule);
+
+		curState.setForwardProbability(1.);
+		curState.setInnerProbability(1.);
+		curState.setViterbi(1., -1, -1);
+		newChart.add(new ChartColumn(grammar));
+		newChart.get(0).addState(curState);
+
+		return newChart;
+	}
+
+	/**
+	 * Advances the chart of a session over a word: the column of the word is completed, knowing the word
+	 * for the lookahead, and the word is scanned into a new column.
+	 * 
+	 * @param session
+	 *            The session
+	 * @param word
+	 *            The next word
+	 * @return false if the parse was stopped, leaving the chart incomplete
+	 */
+	boolean feed(ParseSession session, String word)
+	{
+		int index = session.getSentence().getSentenceSize();
+
+		resume();
+		chart = session.getChart();
+		try
+		{
+			session.getSentence().addWord(word);
+			if (index == 0 && listener != null)
+			{
+				listener.sentenceStarted(session.getSentence());
+			}
+			if (!completeColumn(index, session.getSentence()))
+			{
+				return false;
+			}
+			chart.add(new ChartColumn(grammar));
+			scanColumn(index, session.getSentence());
+			return true;
+		}
+		finally
+		{
+			chart = null;
+		}
+	}
+
+	/**
+	 * Completes the last column of the chart of a session and gets its parse trees.
+	 * 
+	 * @param session
+	 *            The session
+	 * @return The parse trees, or null if the parse was stopped
+	 */
+	ArrayList<SemanticNode> finish(ParseSession session)
+	{
+		resume();
+		chart = session.getChart();
+		try
+		{
+			if (!completeColumn(session.getSentence().getSentenceSize(), session.getSentence()))
+			{
+				return null;
+			}
+			return getTrees();
+		}
+		finally
+		{
+			chart = null;
+		}
+	}
+
+	/**
+	 * Processes the states of a column until no more can be added: the states scanned into it, and those
+	 * they complete and predict.
+	 * 
+	 * @param i
+	 *            The index of the column
+	 * @param sentence
+	 *            The sentence being parsed, up to the word of the column at least
+	 * @return false if the parse was stopped
+	 */
+	private boolean completeColumn(int i, Sentence sentence)
+	{
+		return completeColumn(i, sentence, lookahead);
+	}
+
+	/**
+	 * Processes the states of a column until no more can be added, unless it was completed before.
+	 * 
+	 * @param i
+	 *            The index of the column
+	 * @param sentence
+	 *            The sentence being parsed, up to the word of the column at least
+	 * @param useLookahead
+	 *            Whether the predictor may skip the rules that cannot begin with the next word
+	 * @return false if the parse was stopped
+	 */
+	private boolean completeColumn(int i, Sentence sentence, boolean useLookahead)
+	{
+		if (chart.get(i).isClosed())
+			return true;
+
+		if (i == 0)
+		{
+			return completeInitialColumn();
+		}
+
+		if (!processColumn(i, sentence, useLookahead))
+			return false;
+
+		if (listener != null)
+		{
+			listener.columnDone(i, chart.get(i));
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the first column of the chart by a copy of that of the grammar, which is the same for every
+	 * sentence, building it the first time. It is completed without lookahead, which does not change the
+	 * probabilities. The grammar keeps a copy of its own as the template, so that the states of a chart are
+	 * never those of another parse.
+	 * 
+	 * @return false if the parse was stopped
+	 */
+	private boolean completeInitialColumn()
+	{
+		CompiledGrammar compiled = parser.getCompiledGrammar();
+		ChartColumn initial = compiled.getInitialColumn(viterbi);
+		ArrayList<ChartColumn> sentenceChart;
+		ChartColumn start = chart.get(0);
+
+		if (initial == null)
+		{
+			sentenceChart = chart;
+			chart = startChart();
+			try
+			{
+				if (!processColumn(0, null, false))
+					return false;
+				initial = chart.get(0);
+			}
+			finally
+			{
+				chart = sentenceChart;
+			}
+			compiled.setInitialColumn(viterbi, new ChartColumn(initial));
+			chart.set(0, initial);
+		}
+		else
+		{
+			// Built by an earlier parse, within the budget of that one
+			chart.set(0, new ChartColumn(initial));
+			earlierStates = 0;
+			if (isStopped(0))
+			{
+				chart.set(0, start);
+				return false;
+			}
+		}
+
+		if (listener != null)
+		{
+			listener.columnDone(0, chart.get(0));
+		}
+		return true;
+	}
+
+	/**
+	 * Processes the states of a column until no more can be added.
+	 * 
+	 * @param i
+	 *            The index of the column
+	 * @param sentence
+	 *            The sentence being parsed, up to the word of the column at least
+	 * @param useLookahead
+	 *            Whether the predictor may skip the rules that cannot begin with the next word
+	 * @return false if the parse was stopped
+	 */
+	private boolean processColumn(int i, Sentence sentence, boolean useLookahead)
+	{
+		State curState;
+
+		// Discard the predictions a stopped parse may have left behind
+		for (int k = 0; k < pendingCount; k++)
+		{
+			pending[pendingNonterminals[k]] = false;
+			predictionMass[pendingNonterminals[k]] = 0.;
+		}
+		pendingCount = 0;
+		agenda.clear();
+
+		earlierStates = 0;
+		for (int k = 0; k < i; k++)
+		{
+			earlierStates += chart.get(k).size();
+		}
+
+		if(isStopped(i))
+			return false;
+		
+		columnLookahead = useLookahead;
+		if (useLookahead)
+		{
+			setLookahead(sentence, i);
+		}
+		
+		int j = 0;
+		for (;;)
+		{
+			if(isStopped(i))
+				return false;
+			
+			if (!agenda.isEmpty())
+			{
+				curState = agenda.poll();
+			}
+			else if (j < chart.get(i).size())
+			{
+				curState = chart.get(i).getState(j++);
+			}
+			else
+			{
+				// Every state of the column has been seen: predict the waiting nonterminals all at once,
+				// then process the new states (empty ones may lead to further predictions)
+				if (pendingCount == 0)
+					break;
+				predictor(i);
+				continue;
+			}
+			
+			process(curState, i);
+		}
+
+		chart.get(i).close();
+		return true;
+	}
+
+	/**
+	 * Scans the word of a complete column into the next one, applying the beam first.
+	 * 
+	 * @param i
+	 *            The index of the word, and of its column
+	 * @param sentence
+	 *            The sentence being parsed
+	 */
+	private void scanColumn(int i, Sentence sentence)
+	{
+		if (beamThreshold > 0. || beamWidth > 0)
+		{
+			prune(i, sentence);
+		}
+		scanner(i, sentence);
+		if (listener != null)
+		{
+			listener.prefixProbability(i, sentence.getPrefix(i), sentence.getLogPrefix(i));
+		}
+	}
+
+	/**
+	 * Processes a state of the column, passing on to the states derived from it the probability it gained
+	 * since it was last processed. The first time a state is processed, the derivations it takes part in
+	 * are recorded as well.
+	 * 
+	 * @param stateIn
+	 *            The state to process
+	 * @param index
+	 *            The index of the column being processed
+	 */
+	private void process(State stateIn, int index)
+	{
+		boolean first = !stateIn.isProcessed();
+		double forward = stateIn.getForwardProbability() - stateIn.getPropagatedForward();
+		double inner = stateIn.getInnerProbability() - stateIn.getPropagatedInner();
+		List<State> completed;
+
+		stateIn.setQueued(false);
+		stateIn.setPropagated();
+
+		if (stateIn.getRule() instanceof TerminalRule)
+		{
+			// The states waiting for the terminal were advanced when it was scanned
+			return;
+		}
+		else if (stateIn.isComplete())
+		{
+			completer(stateIn, inner, first);
+			if (first && stateIn.getStart() == index)
+			{
+				chart.get(index).addEmptyCompletion(stateIn);
+			}
+		}
+		else if (Grammar.isNonterminal(stateIn.getNextConstituent()))
+		{
+			// Do not process other predicted states
+			if (stateIn.getOrigin() != State.STATE_PREDICTED) addPredictionMass(stateIn.getNextConstituent(), forward);
+
+			// Nullable constituents already completed in this column
+			completed = chart.get(index).getEmptyCompletions(stateIn.getNextConstituent());
+			for (int k = 0; k < completed.size(); k++)
+			{
+				complete(stateIn, completed.get(k), forward * completed.get(k).getPropagatedInner(),
+						inner * completed.get(k).getPropagatedInner(), first);
+			}
+		}
+		else if (stateIn.getNextConstituent().equals(Grammar.EMPTY_TERMINAL))
+		{
+			advance(stateIn, terminalState(Grammar.EMPTY_TERMINAL, "", index, index), forward, inner, first);
+		}
+		// States waiting for a word are scanned once the column is complete
+	}
+
+	/**
+	 * Sets the one word lookahead for the column being processed.
+	 * 
+	 * @param sentence
+	 *            The sentence being parsed
+	 * @param index
+	 *            The index of the column
+	 */
+	private void setLookahead(Sentence sentence, int index)
+	{
+		int[] preterminals;
+
+		if (index >= sentence.getSentenceSize())
+		{
+			lookaheadTerminal = null;
+			lookaheadPreterminals = new int[0];
+			return;
+		}
+
+		lookaheadTerminal = grammar.getTerminal(sentence.getWord(index));
+		preterminals = grammar.getLexicon().getPreterminals(lookaheadTerminal);
+		lookaheadPreterminals = new int[preterminals.length];
+		for (int k = 0; k < preterminals.length; k++)
+		{
+			lookaheadPreterminals[k] = grammar.getNonterminalIndex(preterminals[k]);
+		}
+	}
+
+	/**
+	 * Gets the parse trees associated to the current charts: one for each derivation packed in the chart, up
+	 * to the tree limit, or the most probable one in Viterbi mode.
+	 * 
+	 * @return list of parse trees
+	 */
+	ArrayList<SemanticNode> getTrees()
+	{
+		ArrayList<State> ruleRoots = chart.get(chart.size() - 1).getRoots();
+		ArrayList<SemanticNode> sentenceRoots = new ArrayList<SemanticNode>();
+		State best = null;
+
+		if (viterbi)
+		{
+			for (int i = 0; i < ruleRoots.size(); i++)
+			{
+				if (best == null || ruleRoots.get(i).getViterbiProbability() > best.getViterbiProbability())
+				{
+					best = ruleRoots.get(i);
+				}
+			}
+			if (best != null)
+			{
+				sentenceRoots.add(getTree(best));
+			}
+			return sentenceRoots;
+		}
+
+		// A state holds every derivation of its dotted rule, so the trees are read through the forest
+		if (!ruleRoots.isEmpty())
+		{
+			sentenceRoots.addAll(new ParseForest(grammar, chart, false).getTrees(treeLimit));
+		}
+
+		Collections.sort(sentenceRoots);
+		return sentenceRoots;
+	}
+
+	/**
+	 * Recursive method to get the most probable parse tree in Viterbi mode. Creates TreeNodes from the
+	 * chartrow and then recurses on its most probable derivation.
+	 * 
+	 * @param node
+	 *            The chartrow
+	 * @return The parse tree
+	 */
+	private SemanticNode getTree(State node)
+	{
+		ArrayList<State> children = new ArrayList<State>();
+		SemanticNode root;
+		State item;
+		State child;
+
+		Rule rule = node.getRule();
+
+		if (rule instanceof NonterminalRule)
+		{
+			root = new SemanticNode(grammar.getDataType(rule.getHead()), rule.getWeight(), rule.getAnnotation());
+		}
+		else
+		{
+			root = new SemanticNode(((TerminalRule) rule).getWord(), rule.getWeight(), rule.getAnnotation());
+		}
+
+		// Walk the derivation back to the start of the rule, collecting the children right to left
+		item = node;
+		while (item != null)
+		{
+			if (item.hasViterbiBackPointer())
+			{
+				child = chart.get(item.getEnd()).getState(item.getViterbiChild());
+				children.add(child);
+				item = getPredecessor(child, item.getViterbiPredecessor());
+			}
+			else
+			{
+				item = null;
+			}
+		}
+
+		for (int i = children.size() - 1; i >= 0; i--)
+		{
+			root.addChild(getTree(children.get(i)));
+		}
+
+		return root;
+	}
+
+	/**
+	 * Gets the predecessor of a derivation of a state.
+	 * 
+	 * @param child
+	 *            The child of the derivation
+	 * @param predecessor
+	 *            The state of the predecessor, as recorded in the back pointer
+	 * @return The predecessor, which ends where the child begins, or null if there is none
+	 */
+	private State getPredecessor(State child, int predecessor)
+	{
+		if (predecessor < 0)
+		{
+			return null;
+		}
+
+		return chart.get(child.getStart()).getState(predecessor);
+	}
+
+	/**
+	 * Gathers the forward probability of a state that has a nonterminal to the right of the dot, so that the
+	 * nonterminal is predicted once for the whole column (Stolcke's collective prediction).
+	 * 
+	 * @param constituent
+	 *            The nonterminal a state is waiting for
+	 * @param forward
+	 *            The forward probability of the state not gathered yet
+	 */
+	private void addPredictionMass(Integer constituent, double forward)
+	{
+		int nonterminal = grammar.getNonterminalIndex(constituent);
+
+		if (!pending[nonterminal])
+		{
+			pending[nonterminal] = true;
+			pendingNonterminals[pendingCount++] = nonterminal;
+		}
+		predictionMass[nonterminal] += forward;
+	}
+
+	/**
+	 * The predictor Process. Creates new states representing top-down expectations generated during the
+	 * parsing process. The Predictor is applied to the nonterminals that some state has to the right of the
+	 * dot, once per column, with the forward probability gathered by addPredictionMass(). Each rule in the
+	 * left corner closure of the nonterminals results in exactly one new state, whose forward probability
+	 * sums R_L * P times the probability waiting for every nonterminal that predicts it. These new states are
+	 * placed into the same chart entry as the generating states. They begin and end at the point in the input
+	 * where the generating states end. With the lookahead enabled, the rules that cannot begin with the next
+	 * word are skipped. Which rules are predicted for the waiting nonterminals is looked up in the prediction
+	 * cache first (see getPrediction()).
+	 * 
+	 * @param index
+	 *            The index of the column being processed
+	 */
+	private void predictor(int index)
+	{
+		Prediction prediction = getPrediction();
+		double[] ruleProbabilities = grammar.getRuleProbabilities();
+		State newState;
+		Rule curRule;
+		int[] positions;
+		double[] probabilities;
+		int nonterminal;
+		double mass;
+
+		Arrays.fill(predictedForward, 0, prediction.rules.length, 0.);
+		for (int k = 0; k < pendingCount; k++)
+		{
+			nonterminal = pendingNonterminals[k];
+			mass = predictionMass[nonterminal];
+			predictionMass[nonterminal] = 0.;
+			pending[nonterminal] = false;
+
+			positions = prediction.positions[k];
+			probabilities = predictionTable.getProbabilities(nonterminal);
+			for (int r = 0; r < positions.length; r++)
+			{
+				if (positions[r] >= 0)
+				{
+					predictedForward[positions[r]] += mass * probabilities[r];
+				}
+			}
+		}
+		pendingCount = 0;
+
+		for (int k = 0; k < prediction.rules.length; k++)
+		{
+			curRule = grammar.getRule(prediction.rules[k]);
+
+			newState = new State(curRule, index, index);
+			newState.setOrigin(State.STATE_PREDICTED);
+			newState.setForwardProbability(predictedForward[k]);
+			newState.setInnerProbability(ruleProbabilities[prediction.rules[k]]);
+			newState.setViterbi(ruleProbabilities[prediction.rules[k]], -1, -1);
+			newState = enqueue(newState, index, true, false);
+			if (listener != null)
+			{
+				listener.predicted(newState);
+			}
+		}
+	}
+
+	/**
+	 * Gets the rules to predict for the nonterminals waiting in the column, from the prediction cache if they
+	 * were predicted before with the same lookahead. The nonterminals are sorted first, so that the same set
+	 * reached in another order is the same key.
+	 * 
+	 * @return The prediction
+	 */
+	private Prediction getPrediction()
+	{
+		PredictionKey key;
+		Prediction prediction;
+		int lookaheadKey = PredictionKey.NO_LOOKAHEAD;
+
+		if (columnLookahead)
+		{
+			lookaheadKey = lookaheadTerminal == null ? PredictionKey.END_OF_SENTENCE : lookaheadTerminal;
+		}
+		Arrays.sort(pendingNonterminals, 0, pendingCount);
+		key = new PredictionKey(Arrays.copyOf(pendingNonterminals, pendingCount), lookaheadKey);
+
+		if (predictionCacheSize <= 0)
+		{
+			predictions.clear();
+			return predict(key);
+		}
+
+		prediction = predictions.get(key);
+		parser.countPrediction(prediction != null);
+		if (prediction == null)
+		{
+			prediction = predict(key);
+			predictions.put(key, prediction);
+		}
+
+		return prediction;
+	}
+
+	/**
+	 * Gathers the rules in the left corner closures of the nonterminals of a key, in the order they are
+	 * reached. With the lookahead enabled, the rules that cannot begin with the next word are skipped.
+	 * 
+	 * @param key
+	 *            The nonterminals and the lookahead
+	 * @return The prediction
+	 */
+	private Prediction predict(PredictionKey key)
+	{
+		int[][] positions = new int[key.nonterminals.length][];
+		int[] rules;
+		int rule;
+		int predicted = 0;
+
+		predictionCount++;
+
+		for (int k = 0; k < key.nonterminals.length; k++)
+		{
+			rules = predictionTable.getRules(key.nonterminals[k]);
+			positions[k] = new int[rules.length];
+			for (int r = 0; r < rules.length; r++)
+			{
+				rule = rules[r];
+				if (predictedStamp[rule] != predictionCount)
+				{
+					predictedStamp[rule] = predictionCount;
+					predictedPosition[rule] = -1;
+					if (!columnLookahead || firstSets.canStartWith(rule, lookaheadTerminal, lookaheadPreterminals))
+					{
+						predictedPosition[rule] = predicted;
+						predictedRules[predicted++] = rule;
+					}
+				}
+				positions[k][r] = predictedPosition[rule];
+			}
+		}
+
+		return new Prediction(Arrays.copyOf(predictedRules, predicted), positions);
+	}
+
+	/**
+	 * The scanner is applied once the column of a word is complete. It examines the word and incorporates it
+	 * into the chart, in the next column. The states waiting for the word itself (or for any word, <?>) are
+	 * advanced over it. For each preterminal that produces the word according to the lexicon, if some state is
+	 * waiting for it, one complete lexical state is created, whose forward probability sums the forward
+	 * probability waiting for the preterminal: the completer will then advance the waiting states. The
+	 * probabilities of all the scanned states add up to the prefix probability of the sentence up to the word
+	 * (with scaling, to its ratio to the previous one, by which the next column is then scaled).
+	 * 
+	 * @param index
+	 *            the index of the word, and of its column
+	 * @param sentence
+	 *            The sentence being parsed
+	 */
+	private void scanner(int index, Sentence sentence)
+	{
+		String word = sentence.getWord(index);
+		Integer terminal = grammar.getTerminal(word);
+		Lexicon lexicon = grammar.getLexicon();
+		int[] preterminals = lexicon.getPreterminals(terminal);
+		double[] probabilities = lexicon.getProbabilities(terminal);
+		int[] rules = lexicon.getRules(terminal);
+		List<State> waiting;
+		State wordState = null;
+		State newState;
+		double prefix = 0.;
+		double logPrefix;
+		double forward;
+
+		// States waiting for the word itself, or for any word
+		prefix += scanTerminal(index, terminal, word);
+		if (!terminal.equals(Grammar.UNKNOWN_TERMINAL))
+		{
+			prefix += scanTerminal(index, Grammar.UNKNOWN_TERMINAL, word);
+		}
+
+		// States waiting for a preterminal of the word
+		for (int k = 0; k < preterminals.length; k++)
+		{
+			waiting = chart.get(index).getStatesWaitingFor(preterminals[k]);
+			if (waiting.isEmpty())
+			{
+				continue;
+			}
+
+			forward = 0.;
+			for (int j = 0; j < waiting.size(); j++)
+			{
+				forward += waiting.get(j).getForwardProbability();
+			}
+			forward *= probabilities[k];
+
+			if (wordState == null)
+			{
+				wordState = terminalState(terminal, word, index, index + 1);
+			}
+
+			newState = new State(grammar.getRule(rules[k]), index, index + 1);
+			newState.setDot(1);
+			newState.setOrigin(State.STATE_SCANNED);
+			newState.setForwardProbability(forward);
+			newState.setInnerProbability(probabilities[k]);
+			newState.setViterbi(probabilities[k], -1, wordState.getState());
+			newState = enqueue(newState, index + 1);
+			if (!viterbi)
+			{
+				newState.addBackPointer(-1, wordState.getState());
+			}
+			if (listener != null)
+			{
+				listener.scanned(newState);
+			}
+
+			prefix += forward;
+		}
+
+		if (!scaling)
+		{
+			sentence.updatePrefix(prefix, index);
+			sentence.updateLogPrefix(Math.log(prefix), index);
+			return;
+		}
+
+		// The scanned states sum the probability of the word given the previous ones
+		logPrefix = Math.log(prefix);
+		if (index > 0)
+		{
+			logPrefix += sentence.getLogPrefix(index - 1);
+		}
+		if (prefix > 0.)
+		{
+			chart.get(index + 1).scale(1. / prefix);
+		}
+		sentence.updatePrefix(Math.exp(logPrefix), index);
+		sentence.updateLogPrefix(logPrefix, index);
+	}
+
+	/**
+	 * Applies the beam to the states of a column that scan its word, before it is scanned. They are ranked by
+	 * the probability they add to the scan: their forward probability, times that of the lexical rule for
+	 * those waiting for a preterminal of the word. The other states add nothing to the next column, so they
+	 * are left as they are: a state waiting for a nonterminal passes its probability on through the states
+	 * it predicted, which are ranked themselves. The probability of the pruned states is reported to the
+	 * sentence, as a fraction of that of the scan without pruning.
+	 * 
+	 * @param index
+	 *            the index of the word, and of its column
+	 * @param sentence
+	 *            The sentence being parsed
+	 */
+	private void prune(int index, Sentence sentence)
+	{
+		Integer terminal = grammar.getTerminal(sentence.getWord(index));
+		Lexicon lexicon = grammar.getLexicon();
+		int[] preterminals = lexicon.getPreterminals(terminal);
+		double[] probabilities = lexicon.getProbabilities(terminal);
+		ChartColumn column = chart.get(index);
+		double[] scanned = new double[column.size()];
+		double[] ranked = new double[column.size()];
+		double cutoff = 0.;
+		double pruned = 0.;
+		double total = 0.;
+		State curState;
+		int count = 0;
+
+		for (int j = 0; j < column.size(); j++)
+		{
+			curState = column.getState(j);
+			if (curState.getRule() instanceof NonterminalRule && !curState.isComplete())
+			{
+				scanned[j] = getScanProbability(curState, terminal, preterminals, probabilities);
+				if (scanned[j] > 0.)
+				{
+					ranked[count++] = scanned[j];
+					total += scanned[j];
+				}
+			}
+		}
+		if (count == 0)
+		{
+			sentence.updatePrunedFraction(0., index);
+			return;
+		}
+		Arrays.sort(ranked, 0, count);
+
+		if (beamThreshold > 0.)
+		{
+			cutoff = ranked[count - 1] * beamThreshold;
+		}
+		if (beamWidth > 0 && beamWidth < count)
+		{
+			cutoff = Math.max(cutoff, ranked[count - beamWidth]);
+		}
+
+		for (int j = 0; j < column.size(); j++)
+		{
+			if (scanned[j] > 0. && scanned[j] < cutoff)
+			{
+				column.getState(j).setPruned(true);
+				pruned += scanned[j];
+			}
+		}
+
+		column.removePruned();
+		sentence.updatePrunedFraction(pruned / total, index);
+	}
+
+	/**
+	 * Gets the probability a state adds to the scan of a word, as the scanner would: its forward probability
+	 * if it is waiting for the word or for any word, times the probability of the lexical rule if it is
+	 * waiting for a preterminal of the word, 0 otherwise.
+	 * 
+	 * @param state
+	 *            The incomplete state
+	 * @param terminal
+	 *            The ID of the word
+	 * @param preterminals
+	 *            The preterminals of the word
+	 * @param probabilities
+	 *            The probabilities of the preterminals producing the word
+	 * @return The probability
+	 */
+	private static double getScanProbability(State state, Integer terminal, int[] preterminals, double[] probabilities)
+	{
+		Integer next = state.getNextConstituent();
+
+		if (next.equals(terminal) || next.equals(Grammar.UNKNOWN_TERMINAL))
+		{
+			return state.getForwardProbability();
+		}
+		for (int k = 0; k < preterminals.length; k++)
+		{
+			if (next == preterminals[k])
+			{
+				return state.getForwardProbability() * probabilities[k];
+			}
+		}
+		return 0.;
+	}
+
+	/**
+	 * Advances over a word the states of its column that are waiting for a terminal symbol.
+	 * 
+	 * @param index
+	 *            the index of the word, and of its column
+	 * @param terminal
+	 *            The terminal the states are waiting for: the word itself or <?>
+	 * @param word
+	 *            The word
+	 * @return The sum of the forward probabilities of the scanned states
+	 */
+	private double scanTerminal(int index, Integer terminal, String word)
+	{
+		List<State> waiting = chart.get(index).getStatesWaitingFor(terminal);
+		State wordState;
+		double prefix = 0.;
+
+		if (waiting.isEmpty())
+		{
+			return prefix;
+		}
+
+		wordState = terminalState(terminal, word, index, index + 1);
+		for (int j = 0; j < waiting.size(); j++)
+		{
+			advance(waiting.get(j), wordState, waiting.get(j).getForwardProbability(),
+					waiting.get(j).getInnerProbability(), true);
+			prefix += waiting.get(j).getForwardProbability();
+		}
+
+		return prefix;
+	}
+
+	/**
+	 * Gets the state representing a scanned terminal, adding it to the chart the first time.
+	 * 
+	 * @param terminal
+	 *            The terminal symbol
+	 * @param word
+	 *            The word read, or the empty string for the empty terminal
+	 * @param start
+	 *            The position where the terminal begins
+	 * @param end
+	 *            The position where the terminal ends, i.e. the column of the state
+	 * @return The terminal state
+	 */
+	private State terminalState(Integer terminal, String word, int start, int end)
+	{
+		State newState = new State(new TerminalRule(terminal, word, grammar), start, end);
+		State existing = chart.get(end).getState(newState);
+
+		if (existing != null)
+		{
+			return existing;
+		}
+
+		newState.setOrigin(State.STATE_SCANNED);
+		newState.setForwardProbability(1.);
+		newState.setInnerProbability(1.);
+		newState.setViterbi(1., -1, -1);
+		chart.get(end).addState(newState);
+		return newState;
+	}
+
+	/**
+	 * Advances the dot of a state over a scanned terminal, possibly the empty one. Scanning a terminal does
+	 * not change the probabilities of the state.
+	 * 
+	 * @param stateIn
+	 *            The state waiting for the terminal
+	 * @param terminal
+	 *            The terminal state
+	 * @param forward
+	 *            The forward probability of stateIn to pass on
+	 * @param inner
+	 *            The inner probability of stateIn to pass on
+	 * @param link
+	 *            Whether to record the derivation, i.e. if it was not recorded before
+	 */
+	private void advance(State stateIn, State terminal, double forward, double inner, boolean link)
+	{
+		State newState = new State(stateIn.getRule(), stateIn.getStart(), terminal.getEnd());
+
+		newState.setOrigin(State.STATE_SCANNED);
+		newState.setDot(stateIn.getDot() + 1);
+		newState.setForwardProbability(forward);
+		newState.setInnerProbability(inner);
+		newState.setViterbi(stateIn.getViterbiProbability(), stateIn.getState(), terminal.getState());
+		newState = enqueue(newState, terminal.getEnd());
+		if (link && !viterbi)
+		{
+			newState.addBackPointer(stateIn.getState(), terminal.getState());
+		}
+		if (listener != null)
+		{
+			listener.scanned(newState);
+		}
+	}
+
+	/**
+	 * The completer is applied to a state when its dot has reached the right end of the rule. Intuitively,
+	 * the presence of such a state represents the fact that the parser has successfully discovered a
+	 * particular grammatical category over some span of the input. The purpose of the completer is to find
+	 * and advance all previously created states that were looking for this grammatical category at this
+	 * position in he input. New states are then created by copying the older state, advancing the dot over
+	 * the expected category and installing the new state in the current chart entry.
+	 * 
+	 * The states are merged by dotted rule and span, so the completer passes on only the inner probability
+	 * the complete state gained since it was last processed, times the probabilities of the waiting states
+	 * that were already processed. The waiting states processed later take it from the other side (see
+	 * process()), so that every pair is accounted for exactly once, and recorded as a derivation once.
+	 * Unit productions are followed through their own states, so their closure is summed as a series
+	 * rather than read from the transitive matrix R_U.
+	 * 
+	 * @param iState
+	 *            The row of the chart
+	 * @param inner
+	 *            The inner probability of iState to pass on
+	 * @param link
+	 *            Whether the state is processed for the first time
+	 */
+	private void completer(State iState, double inner, boolean link)
+	{
+		int chartIndex = iState.getStart();//figures out which chart to check
+		// Only the states waiting for the completed constituent can be advanced. The list is live, so states
+		// added to the same column while iterating (empty constituents) are visited as well; they are not
+		// processed yet, and will take this state from the other side.
+		List<State> waiting = chart.get(chartIndex).getStatesWaitingFor(iState.getRule().getHead());
+		State jState;
+		for (int i = 0; i < waiting.size(); i++)
+		{
+			jState = waiting.get(i);
+			if (jState.isProcessed())
+			{
+				complete(jState, iState, jState.getPropagatedForward() * inner, jState.getPropagatedInner() * inner, link);
+			}
+		}
+	}
+
+	/**
+	 * Advances the dot of a state over a complete state of the nonterminal it is waiting for.
+	 * 
+	 * @param jState
+	 *            The state waiting for the nonterminal
+	 * @param iState
+	 *            The complete state
+	 * @param forward
+	 *            The forward probability to add to the new state
+	 * @param inner
+	 *            The inner probability to add to the new state
+	 * @param link
+	 *            Whether to record the derivation, i.e. if it was not recorded before
+	 */
+	private void complete(State jState, State iState, double forward, double inner, boolean link)
+	{
+		State newRow = new State(jState.getRule(), jState.getStart(), iState.getEnd());
+
+		newRow.setOrigin(State.STATE_COMPLETED);
+		newRow.setDot(jState.getDot() + 1);
+		newRow.setForwardProbability(forward);
+		newRow.setInnerProbability(inner);
+		newRow.setViterbi(jState.getViterbiProbability() * iState.getViterbiProbability(), jState.getState(), iState.getState());
+		newRow = enqueue(newRow, iState.getEnd());
+		if (newRow == null)
+		{
+			return;
+		}
+		if (link && !viterbi)
+		{
+			newRow.addBackPointer(jState.getState(), iState.getState());
+		}
+		if (listener != null)
+		{
+			listener.completed(newRow);
+		}
+	}
+
+	/**
+	 * Adds the chartrow to the chart if it does not already exist. Otherwise its probabilities are added to
+	 * the existing row, which takes its derivation if it is more probable, and which is queued to be processed again if it was already processed and gained enough
+	 * probability.
+	 * 
+	 * @param row
+	 *            the row to add
+	 * @param index
+	 *            the index of the chart
+	 * @return The row in the chart, or null if it is not kept
+	 */
+	private State enqueue(State stateIn, int index, boolean sumForwardProbabilities, boolean sumInnerProbabilities)
+	{
+		if (stateIn.getRule().getHead() == null)
+		{
+			return null;
+		}
+
+		State stateExisting = chart.get(index).getState(stateIn);
+
+		if (stateExisting == null)
+		{
+			chart.get(index).addState(stateIn);
+			return stateIn;
+		}
+
+		if (sumForwardProbabilities) {
+			stateExisting.setForwardProbability(stateExisting.getForwardProbability() + stateIn.getForwardProbability());
+		}
+		
+		if (sumInnerProbabilities){
+				stateExisting.setInnerProbability(stateExisting.getInnerProbability() + stateIn.getInnerProbability());
+		}
+
+		// In Viterbi mode a better derivation must reach the states derived from this one as well
+		boolean improved = stateExisting.maxViterbi(stateIn) && viterbi;
+
+		if (stateExisting.isProcessed() && !stateExisting.isQueued()
+				&& (improved || stateExisting.getForwardProbability() - stateExisting.getPropagatedForward() > PROPAGATION_THRESHOLD * stateExisting.getForwardProbability()
+				|| stateExisting.getInnerProbability() - stateExisting.getPropagatedInner() > PROPAGATION_THRESHOLD * stateExisting.getInnerProbability()))
+		{
+			stateExisting.setQueued(true);
+			agenda.add(stateExisting);
+		}
+
+		return stateExisting;
+	}
+
+	private State enqueue(State stateIn, int index)
+	{
+		return enqueue(stateIn, index, true, true);
+	}	
+
+	/**
+	 * Prints the chart
+	 */
+	@SuppressWarnings("unused")
+	private void printChart()
+	{
+		for (int i = 0; i < chart.size(); i++)
+		{
+			System.out.println("ChartColumn " + i);
+			System.out.println(chart.get(i).toString());
+		}
+	}
+}
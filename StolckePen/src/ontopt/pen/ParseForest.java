@@ -0,0 +1,685 @@
+package ontopt.pen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * <p>
+ * The parses of a sentence as a shared packed parse forest, read from the chart. Each constituent, a symbol
+ * over a span of the sentence, is a single node however many parses share it, and lists its alternative
+ * derivations as packed nodes. The forest takes space polynomial in the length of the sentence, where the
+ * trees returned by EarleyParser.parseSentence() may be exponentially many.
+ * </p>
+ * <p>
+ * The forest is binarized as the chart is: a packed node holds the rule, the node of the rule up to its
+ * last symbol (an intermediate node, or null if the last symbol is the first one) and the node of its last
+ * symbol. An intermediate node is a rule with its dot over a span, and lists its derivations in the same
+ * way. A cycle of unit or empty rules makes the forest cyclic.
+ * </p>
+ * <p>
+ * The nodes hold the inner probabilities of the states they were read from, which are relative to the
+ * prefix probability when the parser scales its columns. In Viterbi mode only the most probable derivation
+ * of each node is kept.
+ * </p>
+ */
+public class ParseForest
+{
+	/**
+	 * A symbol or an intermediate node of the forest
+	 */
+	public static class Node
+	{
+		private final String label;
+
+		private final Integer symbol;
+
+		private final Rule rule;
+
+		private final int dot;
+
+		private final int start;
+
+		private final int end;
+
+		private double inner;
+
+		private double viterbi;
+
+		private final ArrayList<PackedNode> alternatives;
+
+		private Node(String label, Integer symbol, Rule rule, int dot, int start, int end)
+		{
+			this.label = label;
+			this.symbol = symbol;
+			this.rule = rule;
+			this.dot = dot;
+			this.start = start;
+			this.end = end;
+			this.alternatives = new ArrayList<PackedNode>();
+		}
+
+		/**
+		 * Gets the label of the node: the name of its symbol, the word of a terminal, or the rule with its dot
+		 * for an intermediate node.
+		 *
+		 * @return The label
+		 */
+		public String getLabel()
+		{
+			return label;
+		}
+
+		/**
+		 * Gets the ID of the symbol of the node.
+		 *
+		 * @return The ID, or null for an intermediate node
+		 */
+		public Integer getSymbol()
+		{
+			return symbol;
+		}
+
+		/**
+		 * Gets the rule of an intermediate node, or of the word of a terminal node.
+		 *
+		 * @return The rule, or null for a nonterminal node
+		 */
+		public Rule getRule()
+		{
+			return rule;
+		}
+
+		/**
+		 * Gets the number of symbols of the rule of an intermediate node its span covers.
+		 *
+		 * @return The position of the dot, 0 for the other nodes
+		 */
+		public int getDot()
+		{
+			return dot;
+		}
+
+		public int getStart()
+		{
+			return start;
+		}
+
+		public int getEnd()
+		{
+			return end;
+		}
+
+		/**
+		 * Gets the inner probability of the node: the probability of the words of its span given its symbol,
+		 * summed over its derivations. That of a word is 1, or the factor its column was scaled by.
+		 *
+		 * @return The inner probability
+		 */
+		public double getInnerProbability()
+		{
+			return inner;
+		}
+
+		public boolean isTerminal()
+		{
+			return rule instanceof TerminalRule;
+		}
+
+		public boolean isIntermediate()
+		{
+			return symbol == null;
+		}
+
+		/**
+		 * Gets the alternative derivations of the node.
+		 *
+		 * @return The packed nodes, none for a terminal node
+		 */
+		public List<PackedNode> getAlternatives()
+		{
+			return Collections.unmodifiableList(alternatives);
+		}
+
+		public String toString()
+		{
+			return label + " [" + start + "-" + end + "]";
+		}
+	}
+
+	/**
+	 * One derivation of a node: a rule, the node of the symbols of the rule before the last one, and the node
+	 * of the last one
+	 */
+	public static class PackedNode
+	{
+		private final Rule rule;
+
+		private final Node left;
+
+		private final Node right;
+
+		private PackedNode(Rule rule, Node left, Node right)
+		{
+			this.rule = rule;
+			this.left = left;
+			this.right = right;
+		}
+
+		public Rule getRule()
+		{
+			return rule;
+		}
+
+		/**
+		 * Gets the intermediate node of the symbols of the rule before the last one.
+		 *
+		 * @return The node, or null if the last symbol is the first one
+		 */
+		public Node getLeft()
+		{
+			return left;
+		}
+
+		/**
+		 * Gets the node of the last symbol of the rule.
+		 *
+		 * @return The node
+		 */
+		public Node getRight()
+		{
+			return right;
+		}
+	}
+
+	/**
+	 * A node passes on the outside probability it gains only if it is more than this fraction of what it
+	 * passed on before. This bounds the iterations over cycles of unit and empty rules.
+	 */
+	private static final double OUTSIDE_THRESHOLD = 1e-12;
+
+	private final Grammar grammar;
+
+	private ArrayList<ChartColumn> chart;
+
+	private final boolean viterbi;
+
+	private Node root;
+
+	private int nodeCount;
+
+	private int packedCount;
+
+	/**
+	 * The nonterminal nodes by the column where they end, indexed by symbol and start
+	 */
+	private final ArrayList<HashMap<Long, Node>> symbols;
+
+	/**
+	 * The nodes read from each state of the chart
+	 */
+	private final HashMap<State, Node> nodes;
+
+	/**
+	 * Reads the forest of a parsed chart, from the complete states of the root that span the sentence.
+	 *
+	 * @param grammar
+	 *            The grammar of the chart
+	 * @param chart
+	 *            The chart, completed up to its last column
+	 * @param viterbi
+	 *            Whether the chart keeps only the most probable derivation of each state
+	 */
+	ParseForest(Grammar grammar, ArrayList<ChartColumn> chart, boolean viterbi)
+	{
+		ArrayList<State> roots = chart.get(chart.size() - 1).getRoots();
+
+		this.grammar = grammar;
+		this.chart = chart;
+		this.viterbi = viterbi;
+		this.symbols = new ArrayList<HashMap<Long, Node>>();
+		this.nodes = new HashMap<State, Node>();
+		for (int i = 0; i < chart.size(); i++)
+		{
+			symbols.add(new HashMap<Long, Node>());
+		}
+
+		for (int i = 0; i < roots.size(); i++)
+		{
+			// The dummy state, in the first column, has no body to advance over
+			if (roots.get(i).getDot() > 0)
+			{
+				root = getNode(roots.get(i));
+			}
+		}
+
+		this.chart = null;
+		symbols.clear();
+		nodes.clear();
+	}
+
+	/**
+	 * Gets the node of the root symbol over the whole sentence.
+	 *
+	 * @return The root, or null if the sentence has no parse
+	 */
+	public Node getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * Gets the number of symbol, terminal and intermediate nodes of the forest.
+	 *
+	 * @return The number of nodes
+	 */
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+
+	/**
+	 * Gets the number of packed nodes of the forest, i.e. of derivations of its nodes.
+	 *
+	 * @return The number of packed nodes
+	 */
+	public int getPackedNodeCount()
+	{
+		return packedCount;
+	}
+
+	/**
+	 * Counts the parse trees of the sentence, in time linear in the size of the forest.
+	 *
+	 * @return The number of trees, infinite if the forest is cyclic
+	 */
+	public double countTrees()
+	{
+		if (root == null)
+		{
+			return 0.;
+		}
+
+		return countTrees(root, new IdentityHashMap<Node, Double>());
+	}
+
+	private double countTrees(Node node, IdentityHashMap<Node, Double> counts)
+	{
+		Double count = counts.get(node);
+		double sum = 0.;
+		PackedNode packed;
+
+		if (node.isTerminal())
+		{
+			return 1.;
+		}
+		if (count != null)
+		{
+			// NaN marks the nodes being counted: reaching one again means a cycle
+			return count.isNaN() ? Double.POSITIVE_INFINITY : count;
+		}
+
+		counts.put(node, Double.NaN);
+		for (int i = 0; i < node.alternatives.size(); i++)
+		{
+			packed = node.alternatives.get(i);
+			sum += (packed.left == null ? 1. : countTrees(packed.left, counts)) * countTrees(packed.right, counts);
+		}
+		counts.put(node, sum);
+
+		return sum;
+	}
+
+	/**
+	 * Adds the expected number of uses of each rule in the parses of the sentence, given the sentence: the
+	 * counts of the E step of the inside-outside algorithm. The outside probability of each node is passed
+	 * down from the root, from the longest spans to the shortest, and each derivation of a node that begins
+	 * a rule adds to the count of the rule its outside probability times its inside probability, over the
+	 * probability of the sentence. A node that gains outside probability after passing it on, along a cycle
+	 * of unit or empty rules, passes the difference on again, as the parser does with inner probabilities.
+	 *
+	 * @param counts
+	 *            The counts, indexed by rule ID
+	 */
+	public void addExpectedCounts(double[] counts)
+	{
+		IdentityHashMap<Node, double[]> outside = new IdentityHashMap<Node, double[]>();
+		PriorityQueue<Node> queue = new PriorityQueue<Node>(11, new Comparator<Node>()
+		{
+			public int compare(Node a, Node b)
+			{
+				return (b.end - b.start) - (a.end - a.start);
+			}
+		});
+		double[] values;
+		double sentence;
+		double delta;
+		double left;
+		double right;
+		PackedNode packed;
+		Node node;
+
+		if (root == null || root.inner <= 0.)
+		{
+			return;
+		}
+
+		// The outside probability passed on, the part not passed on yet, and whether it is queued, of each node
+		sentence = root.inner;
+		outside.put(root, new double[] { 0., 1., 1. });
+		queue.add(root);
+		while (!queue.isEmpty())
+		{
+			node = queue.poll();
+			values = outside.get(node);
+			delta = values[1];
+			values[0] += delta;
+			values[1] = 0.;
+			values[2] = 0.;
+
+			for (int i = 0; i < node.alternatives.size(); i++)
+			{
+				packed = node.alternatives.get(i);
+				left = packed.left == null ? packed.rule.getProbability() : packed.left.inner;
+				right = packed.right.inner;
+
+				if (packed.left == null)
+				{
+					counts[packed.rule.getID()] += delta * left * right / sentence;
+				}
+				else
+				{
+					passOutside(outside, queue, packed.left, delta * right);
+				}
+				if (!packed.right.isTerminal())
+				{
+					passOutside(outside, queue, packed.right, delta * left);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds outside probability to a node, queueing it unless it is queued already or the probability is
+	 * negligible.
+	 */
+	private static void passOutside(IdentityHashMap<Node, double[]> outside, PriorityQueue<Node> queue, Node node,
+			double probability)
+	{
+		double[] values = outside.get(node);
+
+		if (values == null)
+		{
+			values = new double[3];
+			outside.put(node, values);
+		}
+
+		values[1] += probability;
+		if (values[2] == 0. && values[1] > OUTSIDE_THRESHOLD * values[0])
+		{
+			values[2] = 1.;
+			queue.add(node);
+		}
+	}
+
+	/**
+	 * Iterates over the parse trees of the sentence from the most probable down, building each one when it is
+	 * asked for (see KBestIterator).
+	 *
+	 * @return The iterator
+	 */
+	public KBestIterator getBestTrees()
+	{
+		return new KBestIterator(this);
+	}
+
+	/**
+	 * Builds a parse tree of the sentence from the first derivation of each node, which in Viterbi mode is
+	 * the most probable one.
+	 *
+	 * @return The tree, or null if the sentence has no parse
+	 */
+	public SemanticNode getTree()
+	{
+		List<SemanticNode> trees = getTrees(1);
+
+		return trees.isEmpty() ? null : trees.get(0);
+	}
+
+	/**
+	 * Builds parse trees of the sentence, up to a limit. The derivations that go round a cycle are left out.
+	 *
+	 * @param limit
+	 *            The most trees to build
+	 * @return The trees
+	 */
+	public List<SemanticNode> getTrees(int limit)
+	{
+		if (root == null || limit < 1)
+		{
+			return new ArrayList<SemanticNode>();
+		}
+
+		return getTrees(root, limit, new IdentityHashMap<Node, Boolean>());
+	}
+
+	/**
+	 * Builds the trees of a symbol node.
+	 */
+	private List<SemanticNode> getTrees(Node node, int limit, IdentityHashMap<Node, Boolean> path)
+	{
+		ArrayList<SemanticNode> trees = new ArrayList<SemanticNode>();
+		List<List<SemanticNode>> sequences;
+		SemanticNode tree;
+		PackedNode packed;
+
+		if (node.isTerminal())
+		{
+			trees.add(new SemanticNode(node.label, node.rule.getWeight(), node.rule.getAnnotation()));
+			return trees;
+		}
+
+		path.put(node, Boolean.TRUE);
+		for (int i = 0; i < node.alternatives.size() && trees.size() < limit; i++)
+		{
+			packed = node.alternatives.get(i);
+			sequences = getSequences(packed, limit - trees.size(), path);
+			for (int j = 0; j < sequences.size(); j++)
+			{
+				tree = new SemanticNode(node.label, packed.rule.getWeight(), packed.rule.getAnnotation());
+				for (int k = 0; k < sequences.get(j).size(); k++)
+				{
+					tree.addChild(sequences.get(j).get(k).getCloneOfNode());
+				}
+				trees.add(tree);
+			}
+		}
+		path.remove(node);
+
+		return trees;
+	}
+
+	/**
+	 * Builds the sequences of children trees of a derivation.
+	 */
+	private List<List<SemanticNode>> getSequences(PackedNode packed, int limit, IdentityHashMap<Node, Boolean> path)
+	{
+		ArrayList<List<SemanticNode>> sequences = new ArrayList<List<SemanticNode>>();
+		List<List<SemanticNode>> prefixes = new ArrayList<List<SemanticNode>>();
+		List<SemanticNode> lasts;
+		ArrayList<SemanticNode> sequence;
+
+		if (path.containsKey(packed.right) || (packed.left != null && path.containsKey(packed.left)))
+		{
+			return sequences;
+		}
+
+		if (packed.left == null)
+		{
+			prefixes.add(new ArrayList<SemanticNode>());
+		}
+		else
+		{
+			path.put(packed.left, Boolean.TRUE);
+			for (int i = 0; i < packed.left.alternatives.size() && prefixes.size() < limit; i++)
+			{
+				prefixes.addAll(getSequences(packed.left.alternatives.get(i), limit - prefixes.size(), path));
+			}
+			path.remove(packed.left);
+		}
+
+		for (int i = 0; i < prefixes.size() && sequences.size() < limit; i++)
+		{
+			lasts = getTrees(packed.right, limit - sequences.size(), path);
+			for (int j = 0; j < lasts.size(); j++)
+			{
+				sequence = new ArrayList<SemanticNode>(prefixes.get(i));
+				sequence.add(lasts.get(j));
+				sequences.add(sequence);
+			}
+		}
+
+		return sequences;
+	}
+
+	/**
+	 * Gets the node of a state of the chart, reading its derivations the first time.
+	 *
+	 * @param state
+	 *            A state whose dot is past its first symbol, or a terminal state
+	 * @return The node
+	 */
+	private Node getNode(State state)
+	{
+		Rule rule = state.getRule();
+		Node node = nodes.get(state);
+		PackedNode packed;
+		Long key;
+
+		if (node != null)
+		{
+			return node;
+		}
+
+		if (rule instanceof TerminalRule)
+		{
+			node = new Node(((TerminalRule) rule).getWord(), rule.getHead(), rule, 0, state.getStart(), state.getEnd());
+			// Scaled, a word stands for the factor of its column, so that the products of inner
+			// probabilities along the forest match those of the chart
+			node.inner = state.getEnd() > state.getStart() ? chart.get(state.getEnd()).getScale() : 1.;
+			nodes.put(state, node);
+			nodeCount++;
+			return node;
+		}
+
+		if (!state.isComplete())
+		{
+			node = new Node(getDottedRule((NonterminalRule) rule, state.getDot()), null, rule, state.getDot(),
+					state.getStart(), state.getEnd());
+			nodes.put(state, node);
+			nodeCount++;
+		}
+		else
+		{
+			// The complete states of the rules of a symbol over the same span share its node
+			key = Long.valueOf(((long) rule.getHead() << 32) | state.getStart());
+			node = symbols.get(state.getEnd()).get(key);
+			if (node == null)
+			{
+				node = new Node(grammar.getDataType(rule.getHead()), rule.getHead(), null, 0, state.getStart(),
+						state.getEnd());
+				symbols.get(state.getEnd()).put(key, node);
+				nodeCount++;
+			}
+			nodes.put(state, node);
+		}
+		node.inner += state.getInnerProbability();
+
+		if (viterbi)
+		{
+			// The most probable derivation of the symbol comes first
+			if (state.hasViterbiBackPointer())
+			{
+				packed = getPackedNode(state, state.getViterbiPredecessor(), state.getViterbiChild());
+				if (state.getViterbiProbability() > node.viterbi)
+				{
+					addAlternative(node, packed, 0);
+					node.viterbi = state.getViterbiProbability();
+				}
+				else
+				{
+					addAlternative(node, packed, node.alternatives.size());
+				}
+			}
+		}
+		else
+		{
+			for (int i = 0; i < state.getBackPointerCount(); i++)
+			{
+				packed = getPackedNode(state, state.getPredecessor(i), state.getChild(i));
+				addAlternative(node, packed, node.alternatives.size());
+			}
+		}
+
+		return node;
+	}
+
+	/**
+	 * Adds a derivation to a node, unless it has it already: the derivations of the states of the rules of a
+	 * symbol lead to the same node.
+	 */
+	private void addAlternative(Node node, PackedNode packed, int index)
+	{
+		PackedNode other;
+
+		for (int i = 0; i < node.alternatives.size(); i++)
+		{
+			other = node.alternatives.get(i);
+			if (other.rule == packed.rule && other.left == packed.left && other.right == packed.right)
+			{
+				return;
+			}
+		}
+
+		node.alternatives.add(index, packed);
+		packedCount++;
+	}
+
+	/**
+	 * Gets the label of an intermediate node, e.g. "S - NP . VP"
+	 */
+	private String getDottedRule(NonterminalRule rule, int dot)
+	{
+		StringBuilder label = new StringBuilder(grammar.getDataType(rule.getHead())).append(" -");
+
+		for (int i = 0; i < rule.getBody().size(); i++)
+		{
+			label.append(i == dot ? " . " : " ").append(grammar.getDataType(rule.getBody().get(i)));
+		}
+
+		return label.toString();
+	}
+
+	/**
+	 * Reads a derivation of a state.
+	 */
+	private PackedNode getPackedNode(State state, int predecessor, int child)
+	{
+		State childState = chart.get(state.getEnd()).getState(child);
+		State predecessorState = null;
+
+		if (predecessor >= 0)
+		{
+			predecessorState = chart.get(childState.getStart()).getState(predecessor);
+		}
+
+		// The predicted state of the rule, with its dot before the first symbol, has no node
+		return new PackedNode(state.getRule(),
+				predecessorState == null || predecessorState.getDot() == 0 ? null : getNode(predecessorState),
+				getNode(childState));
+	}
+}
@@ -0,0 +1,72 @@
+package ontopt.pen;
+
+/**
+ * <p>
+ * Receives the events of the parses of an EarleyParser, as they happen, to trace them (see
+ * EarleyParser.setParseListener()). Without a listener, the parser does not build any event.
+ * </p>
+ * <p>
+ * A listener is called from the thread of each parse, so one shared by several threads must synchronize
+ * itself. The states are those of the chart: a listener must not modify them, and should copy what it keeps,
+ * since they may still gain probability. The first column of the chart is the same for every sentence, and
+ * is only built, with its predictions and completions, by the first parse.
+ * </p>
+ */
+public interface ParseListener
+{
+	/**
+	 * A sentence begins to be parsed.
+	 * 
+	 * @param sentence
+	 *            The sentence; its words are fed one at a time to a ParseSession, and the sentences of a batch
+	 *            (see EarleyParser.getLogProbabilities()) are parsed together, as the first one
+	 */
+	void sentenceStarted(Sentence sentence);
+
+	/**
+	 * A rule was predicted in a column.
+	 * 
+	 * @param state
+	 *            The predicted state, which ends in its column
+	 */
+	void predicted(State state);
+
+	/**
+	 * The dot of a state was advanced over a word, or the empty terminal, or a preterminal state was created
+	 * for a word.
+	 * 
+	 * @param state
+	 *            The new state
+	 */
+	void scanned(State state);
+
+	/**
+	 * The dot of a state was advanced over a complete state.
+	 * 
+	 * @param state
+	 *            The new state
+	 */
+	void completed(State state);
+
+	/**
+	 * A column was completed: no more states are predicted or completed into it.
+	 * 
+	 * @param index
+	 *            The index of the column
+	 * @param column
+	 *            The column
+	 */
+	void columnDone(int index, ChartColumn column);
+
+	/**
+	 * A word was scanned, which gives the prefix probability up to it.
+	 * 
+	 * @param index
+	 *            The index of the word
+	 * @param prefix
+	 *            The prefix probability, which may underflow to 0
+	 * @param logPrefix
+	 *            Its natural logarithm
+	 */
+	void prefixProbability(int index, double prefix, double logPrefix);
+}
@@ -0,0 +1,173 @@
+package ontopt.pen;
+
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * The outcome of a parse with a budget (see EarleyParser.parseSentence(Sentence, ParseBudget)). A complete
+ * parse has its trees. One that was stopped, or that exceeded its budget, has none, but the prefix
+ * probabilities of the words scanned before it gave up are kept in the sentence, and the size of the chart
+ * tells how far it went.
+ * </p>
+ */
+public class ParseResult
+{
+	public static final byte COMPLETE = 0;
+
+	/**
+	 * The parse was stopped by EarleyParser.stopParsing()
+	 */
+	public static final byte STOPPED = 1;
+
+	/**
+	 * The parse took longer than the time limit of its budget
+	 */
+	public static final byte TIME_LIMIT = 2;
+
+	/**
+	 * A column grew beyond the limit of its budget
+	 */
+	public static final byte COLUMN_LIMIT = 3;
+
+	/**
+	 * The chart grew beyond the limit of its budget
+	 */
+	public static final byte CHART_LIMIT = 4;
+
+	private static final String[] STATUS_NAMES = { "complete", "stopped", "time limit", "column limit",
+			"chart limit" };
+
+	private final byte status;
+
+	private final Sentence sentence;
+
+	private final ArrayList<SemanticNode> trees;
+
+	private final int[] columnSizes;
+
+	private final int completedColumns;
+
+	private final long time;
+
+	ParseResult(byte status, Sentence sentence, ArrayList<SemanticNode> trees, int[] columnSizes,
+			int completedColumns, long time)
+	{
+		this.status = status;
+		this.sentence = sentence;
+		this.trees = trees;
+		this.columnSizes = columnSizes;
+		this.completedColumns = completedColumns;
+		this.time = time;
+	}
+
+	/**
+	 * Gets how the parse ended: COMPLETE, STOPPED, TIME_LIMIT, COLUMN_LIMIT or CHART_LIMIT.
+	 * 
+	 * @return The status
+	 */
+	public byte getStatus()
+	{
+		return status;
+	}
+
+	public boolean isComplete()
+	{
+		return status == COMPLETE;
+	}
+
+	/**
+	 * Gets the parse trees of the sentence.
+	 * 
+	 * @return The trees, or null if the parse is not complete
+	 */
+	public ArrayList<SemanticNode> getTrees()
+	{
+		return trees;
+	}
+
+	/**
+	 * Gets the sentence, which holds the prefix probabilities of the words scanned.
+	 * 
+	 * @return The sentence
+	 */
+	public Sentence getSentence()
+	{
+		return sentence;
+	}
+
+	/**
+	 * Gets the number of words scanned, whose prefix probabilities are known: all of them unless the parse
+	 * gave up.
+	 * 
+	 * @return The number of words
+	 */
+	public int getScannedWords()
+	{
+		return columnSizes.length - 1;
+	}
+
+	/**
+	 * Gets the natural logarithm of the prefix probability of the words scanned.
+	 * 
+	 * @return The logarithm, 0 if no word was scanned
+	 */
+	public double getLogPrefix()
+	{
+		return getScannedWords() == 0 ? 0. : sentence.getLogPrefix(getScannedWords() - 1);
+	}
+
+	/**
+	 * Gets the number of columns of the chart that were completed. The column after the last one is the one
+	 * the parse gave up on, if any.
+	 * 
+	 * @return The number of columns
+	 */
+	public int getCompletedColumns()
+	{
+		return completedColumns;
+	}
+
+	/**
+	 * Gets the number of states of each column of the chart.
+	 * 
+	 * @return The sizes, by column
+	 */
+	public int[] getColumnSizes()
+	{
+		return columnSizes.clone();
+	}
+
+	/**
+	 * Gets the number of states of the chart.
+	 * 
+	 * @return The number of states
+	 */
+	public int getChartSize()
+	{
+		int size = 0;
+
+		for (int i = 0; i < columnSizes.length; i++)
+		{
+			size += columnSizes[i];
+		}
+
+		return size;
+	}
+
+	/**
+	 * Gets the time the parse took.
+	 * 
+	 * @return The time in nanoseconds
+	 */
+	public long getTime()
+	{
+		return time;
+	}
+
+	public String toString()
+	{
+		return STATUS_NAMES[status] + ": " + getScannedWords() + " of " + sentence.getSentenceSize()
+				+ " words scanned, " + completedColumns + " columns completed, " + getChartSize() + " states, "
+				+ (time / 1000000) + " ms";
+	}
+}
@@ -0,0 +1,149 @@
+package ontopt.pen;
+
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * An incremental parse: the words of a sentence are fed one at a time, and the prefix probability of the
+ * words seen so far is available after each of them, as when the parser is used as a language model. The
+ * chart is kept between calls and grows by one column per word, so nothing is parsed twice.
+ * </p>
+ * <p>
+ * A session is created by EarleyParser.newSession(). It parses in a context of its own, so the parser can
+ * run several sessions, and parseSentence(), at the same time, from any threads; a single session must not
+ * be used by two threads at once. The parser options (lookahead, beam, scaling, Viterbi) and its listener
+ * are read when the session is created, and apply to all its calls: changing them afterwards does not
+ * affect the session, whose columns must all be built the same way.
+ * </p>
+ */
+public class ParseSession
+{
+    private final ParseContext context;
+
+    /**
+     * The chart of the words fed so far. Its last column is not complete until the next word is known.
+     */
+    private final ArrayList<ChartColumn> chart;
+
+    private final PenSentence sentence;
+
+    /**
+     * Whether the session can take more words: it cannot once finished, or if a call was stopped
+     */
+    private boolean open;
+
+    ParseSession(EarleyParser parser)
+    {
+        this.context = new ParseContext(parser);
+        this.context.readOptions();
+        this.chart = context.startChart();
+        this.sentence = new PenSentence();
+        this.open = true;
+    }
+
+    /**
+     * Feeds the next word of the sentence.
+     * 
+     * @param word
+     *            The word
+     * @return The prefix probability of the words fed so far, NaN if the parser was stopped
+     * @throws IllegalStateException
+     *             If the session was finished or stopped
+     */
+    public double feed(String word)
+    {
+        checkOpen();
+        if (!context.feed(this, word))
+        {
+            open = false;
+            return Double.NaN;
+        }
+
+        return sentence.getPrefix(sentence.getSentenceSize() - 1);
+    }
+
+    /**
+     * Gets the natural logarithm of the prefix probability of the words fed so far. It stays accurate when
+     * the parser scales its columns and the prefix probability underflows.
+     * 
+     * @return The logarithm of the prefix probability, 0 if no word was fed
+     */
+    public double getLogPrefix()
+    {
+        if (sentence.getSentenceSize() == 0)
+        {
+            return 0.;
+        }
+
+        return sentence.getLogPrefix(sentence.getSentenceSize() - 1);
+    }
+
+    /**
+     * Gets the probability of each word being the next one, given the words fed so far.
+     * 
+     * @return The probabilities indexed by terminal ID (see EarleyParser.getNextWordDistribution()), null if
+     *         the parser was stopped
+     * @throws IllegalStateException
+     *             If the session was finished or stopped
+     */
+    public double[] getNextWordDistribution()
+    {
+        double[] distribution;
+
+        checkOpen();
+        distribution = context.getNextWordDistribution(this);
+        if (distribution == null)
+        {
+            open = false;
+        }
+
+        return distribution;
+    }
+
+    /**
+     * Ends the sentence and gets its parse trees. No more words can be fed afterwards.
+     * 
+     * @return The parse trees of the words fed, or null if the parser was stopped
+     * @throws IllegalStateException
+     *             If the session was finished or stopped
+     */
+    public ArrayList<SemanticNode> finish()
+    {
+        checkOpen();
+        open = false;
+        return context.finish(this);
+    }
+
+    /**
+     * Gets the words fed so far, with their prefix probabilities.
+     * 
+     * @return The sentence
+     */
+    public PenSentence getSentence()
+    {
+        return sentence;
+    }
+
+    /**
+     * Gets the number of words fed so far.
+     * 
+     * @return The number of words
+     */
+    public int size()
+    {
+        return sentence.getSentenceSize();
+    }
+
+    ArrayList<ChartColumn> getChart()
+    {
+        return chart;
+    }
+
+    private void checkOpen()
+    {
+        if (!open)
+        {
+            throw new IllegalStateException("The session is finished");
+        }
+    }
+}
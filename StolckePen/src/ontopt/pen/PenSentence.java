@@ -39,6 +39,17 @@ public class PenSentence extends Sentence
         tokenize(sentence);
     }
 
+    /**
+     * Appends a word to the sentence, as it is parsed incrementally
+     * 
+     * @param word
+     *            the word to append
+     */
+    public void addWord(String word)
+    {
+        _sentence.add(word);
+    }
+
     protected void tokenize(String sentence)
     {
         BreakIterator it = BreakIterator.getWordInstance();
@@ -116,12 +127,11 @@ public class PenSentence extends Sentence
     }
 
 	public void updatePrefix(double prob, int index) {
-		System.out.println(prefixProbabilities.size());
 		if (prefixProbabilities.size()==index){
 			prefixProbabilities.add(prob);
 		}
 		else {
-			prefixProbabilities.set(index,prefixProbabilities.get(index) + prob);
+			prefixProbabilities.set(index,prob);
 		}
 	}
 
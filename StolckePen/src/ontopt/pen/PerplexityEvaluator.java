@@ -0,0 +1,281 @@
+package ontopt.pen;
+
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Evaluates the grammar as a language model over a file of sentences, one per line. For each sentence, the
+ * log probability of each word given the previous ones is taken from consecutive prefix probabilities, and
+ * that of the end of the sentence from the probability of the whole sentence. The corpus perplexity counts
+ * the end of each sentence as a word, as is usual for n-gram models.
+ * </p>
+ * <p>
+ * The sentences are parsed on a pool of threads, with the columns scaled so that the probabilities are kept
+ * as logarithms, and no tree is built. The results are written in the order of the input as tab separated
+ * values: the line number of the sentence, its number of words, its natural log probability and the
+ * conditional log probabilities of its words and of its end, separated by spaces. Sentences the grammar
+ * cannot generate have a log probability of -Infinity, as have their words from the first one the grammar
+ * cannot continue with, and are left out of the perplexity.
+ * </p>
+ */
+public class PerplexityEvaluator
+{
+	private final EarleyParser parser;
+
+	private final int threads;
+
+	/**
+	 * The score of one sentence
+	 */
+	private static class Score
+	{
+		private final int line;
+
+		private final int words;
+
+		private final double logProbability;
+
+		private final double[] conditionals;
+
+		private Score(int line, int words, double logProbability, double[] conditionals)
+		{
+			this.line = line;
+			this.words = words;
+			this.logProbability = logProbability;
+			this.conditionals = conditionals;
+		}
+	}
+
+	/**
+	 * The constructor. The sentences are parsed by a parser of the evaluator over the compiled grammar of the
+	 * one given, with its beam, and with the scaling and the lookahead enabled, which do not change the
+	 * probabilities, and Viterbi parsing disabled. The parser given is left as it is.
+	 *
+	 * @param parser
+	 *            The parser of the grammar
+	 * @param threads
+	 *            The number of threads
+	 */
+	public PerplexityEvaluator(EarleyParser parser, int threads)
+	{
+		if (threads < 1)
+		{
+			throw new IllegalArgumentException("The number of threads must be positive");
+		}
+
+		this.parser = new EarleyParser(parser.getCompiledGrammar());
+		this.threads = threads;
+		this.parser.setBeamThreshold(parser.getBeamThreshold());
+		this.parser.setBeamWidth(parser.getBeamWidth());
+		this.parser.setPredictionCacheSize(parser.getPredictionCacheSize());
+		this.parser.setParseListener(parser.getParseListener());
+		this.parser.setScaling(true);
+		this.parser.setPredictionLookahead(true);
+		this.parser.setViterbi(false);
+	}
+
+	/**
+	 * Scores every sentence of a reader and reports the perplexity.
+	 *
+	 * @param reader
+	 *            The sentences, one per line
+	 * @param out
+	 *            The stream where the scores are written
+	 * @param report
+	 *            The stream where the corpus statistics are printed
+	 * @throws IOException
+	 *             If the sentences could not be read
+	 */
+	public void run(BufferedReader reader, PrintStream out, PrintStream report) throws IOException
+	{
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<Score>> pending = new ArrayDeque<Future<Score>>();
+		double[] totals = new double[4];
+		int line = 0;
+		String buffer;
+
+		try
+		{
+			out.println("#line\twords\tlogprob\tword_logprobs");
+			while ((buffer = reader.readLine()) != null)
+			{
+				line++;
+				if (buffer.trim().length() == 0)
+				{
+					continue;
+				}
+
+				pending.add(workers.submit(score(line, new PenSentence(buffer))));
+				if (pending.size() >= 16 * threads)
+				{
+					write(pending.poll().get(), out, totals);
+				}
+			}
+			while (!pending.isEmpty())
+			{
+				write(pending.poll().get(), out, totals);
+			}
+			out.flush();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return;
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+
+		report(report, totals);
+	}
+
+	/**
+	 * Creates the task scoring a sentence.
+	 */
+	private Callable<Score> score(final int line, final PenSentence sentence)
+	{
+		return new Callable<Score>()
+		{
+			public Score call()
+			{
+				int words = sentence.getSentenceSize();
+				double logProbability = parser.getLogProbability(sentence);
+				double[] conditionals = new double[words + 1];
+				double previous = 0.;
+
+				for (int i = 0; i < words; i++)
+				{
+					conditionals[i] = getConditional(sentence.getLogPrefix(i), previous);
+					previous = sentence.getLogPrefix(i);
+				}
+				conditionals[words] = getConditional(logProbability, previous);
+
+				return new Score(line, words, logProbability, conditionals);
+			}
+		};
+	}
+
+	/**
+	 * Gets the log probability of a word given the previous ones, from the log prefix probabilities up to
+	 * the word and before it.
+	 *
+	 * @return The conditional log probability, -Infinity once the prefix probability is 0
+	 */
+	private static double getConditional(double logPrefix, double previous)
+	{
+		if (previous == Double.NEGATIVE_INFINITY)
+		{
+			return Double.NEGATIVE_INFINITY;
+		}
+
+		return logPrefix - previous;
+	}
+
+	/**
+	 * Writes the score of a sentence and adds it to the totals: sentences, words, log probability of the
+	 * sentences with a parse and the words, ends included, they contribute.
+	 */
+	private static void write(Score score, PrintStream out, double[] totals)
+	{
+		StringBuilder line = new StringBuilder();
+
+		line.append(score.line).append('\t').append(score.words).append('\t').append(score.logProbability)
+				.append('\t');
+		for (int i = 0; i < score.conditionals.length; i++)
+		{
+			if (i > 0)
+			{
+				line.append(' ');
+			}
+			line.append(score.conditionals[i]);
+		}
+		out.println(line);
+
+		totals[0]++;
+		totals[1] += score.words;
+		if (!Double.isInfinite(score.logProbability) && !Double.isNaN(score.logProbability))
+		{
+			totals[2] += score.logProbability;
+			totals[3] += score.words + 1;
+		}
+	}
+
+	/**
+	 * Prints the corpus statistics.
+	 */
+	private static void report(PrintStream report, double[] totals)
+	{
+		double crossEntropy = -totals[2] / totals[3] / Math.log(2.);
+
+		report.println("sentences:      " + (long) totals[0]);
+		report.println("words:          " + (long) totals[1]);
+		report.println("scored tokens:  " + (long) totals[3] + " (words and sentence ends with a parse)");
+		report.println("log prob:       " + totals[2]);
+		report.println("cross entropy:  " + crossEntropy + " bits/token");
+		report.println("perplexity:     " + Math.pow(2., crossEntropy));
+	}
+
+	public static void main(String[] args)
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		if (args.length < 2 || args.length > 4)
+		{
+			System.out.println("Usage:\n");
+			System.out.println("java -cp pen.jar ontopt.pen.PerplexityEvaluator <grammar> <sentences_file> [threads] [scores_file]");
+			return;
+		}
+
+		try
+		{
+			if (args.length >= 3)
+			{
+				threads = Integer.parseInt(args[2]);
+			}
+
+			EarleyParser parser = new EarleyParser(args[0]);
+			BufferedReader reader = new BufferedReader(new FileReader(args[1]));
+			PrintStream out = args.length == 4 ? new PrintStream(new FileOutputStream(args[3]), false, "UTF-8") : System.out;
+
+			try
+			{
+				new PerplexityEvaluator(parser, threads).run(reader, out, System.err);
+			}
+			finally
+			{
+				reader.close();
+				if (out != System.out)
+				{
+					out.close();
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			System.out.println("The number of threads must be an integer: " + args[2]);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		catch (GrammarException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
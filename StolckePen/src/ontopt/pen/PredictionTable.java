@@ -0,0 +1,107 @@
+package ontopt.pen;
+
+import java.util.ArrayList;
+
+/**
+ * Precompiled prediction closures for the Stolcke Earley parser. For each nonterminal Z, the table holds every
+ * rule Y - v that the predictor adds when a state is waiting for Z, together with the factor R_L(Z, Y) * P(Y - v)
+ * that multiplies the forward probability waiting for Z. The pairs are kept in primitive arrays indexed by the
+ * dense nonterminal index, so that predicting a nonterminal is a plain array walk. Lexical rules are left out:
+ * they are looked up in the Lexicon by the scanner.
+ */
+public class PredictionTable
+{
+    /**
+     * For each nonterminal index, the IDs of the rules in its left corner closure
+     */
+    private int[][] rules;
+
+    /**
+     * For each nonterminal index, the factor R_L * P associated to each rule in <code>rules</code>
+     */
+    private double[][] probabilities;
+
+    /**
+     * The constructor. Builds the table from the left corner relation and the rule probabilities.
+     * 
+     * @param grammar
+     *            The grammar
+     * @param rMatrix
+     *            The transitive matrix computed for the grammar
+     */
+    public PredictionTable(Grammar grammar, TransitiveMatrix rMatrix)
+    {
+        int nonterminals = grammar.getNonterminalCount();
+        int[] headOffsets = grammar.getHeadOffsets();
+        int[] headRules = grammar.getHeadRules();
+        double[] ruleProbabilities = grammar.getRuleProbabilities();
+        ArrayList<Integer> closure = new ArrayList<Integer>();
+        ArrayList<Double> factors = new ArrayList<Double>();
+        int rule;
+        double rValue;
+
+        rules = new int[nonterminals][];
+        probabilities = new double[nonterminals][];
+
+        for (int z = 0; z < nonterminals; z++)
+        {
+            closure.clear();
+            factors.clear();
+
+            // For each entry in the R matrix which is not zero and has Z as a row
+            for (int y = 0; y < nonterminals; y++)
+            {
+                rValue = rMatrix.getTransitiveLCRelation(z, y);
+                if (rValue <= 0.)
+                {
+                    continue;
+                }
+
+                for (int k = headOffsets[y]; k < headOffsets[y + 1]; k++)
+                {
+                    // Lexical rules are left to the scanner
+                    rule = headRules[k];
+                    if (grammar.getRule(rule).isLexical())
+                    {
+                        continue;
+                    }
+
+                    closure.add(rule);
+                    factors.add(rValue * ruleProbabilities[rule]);
+                }
+            }
+
+            rules[z] = new int[closure.size()];
+            probabilities[z] = new double[closure.size()];
+            for (int i = 0; i < closure.size(); i++)
+            {
+                rules[z][i] = closure.get(i);
+                probabilities[z][i] = factors.get(i);
+            }
+        }
+    }
+
+    /**
+     * Gets the IDs of the rules predicted for a nonterminal.
+     * 
+     * @param nonterminal
+     *            The dense index of the nonterminal
+     * @return The rule IDs
+     */
+    public int[] getRules(int nonterminal)
+    {
+        return rules[nonterminal];
+    }
+
+    /**
+     * Gets the factors R_L * P of the rules predicted for a nonterminal, parallel to getRules().
+     * 
+     * @param nonterminal
+     *            The dense index of the nonterminal
+     * @return The factors
+     */
+    public double[] getProbabilities(int nonterminal)
+    {
+        return probabilities[nonterminal];
+    }
+}
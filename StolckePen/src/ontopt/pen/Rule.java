@@ -24,6 +24,12 @@ public abstract class Rule
 
     protected String annotation;
 
+    /**
+     * The ID of the rule in its grammar, or -1 if the rule does not belong to the grammar (e.g. the rules
+     * created while parsing)
+     */
+    protected int id = -1;
+
     /**
      * An Integer representing the rule weight
      */
@@ -103,7 +109,36 @@ public abstract class Rule
         this.head = pHead;
     }
     
+    /**
+     * Gets the ID of this rule in its grammar.
+     * 
+     * @return The ID, or -1 if the rule was not read from the grammar
+     */
+    public int getID()
+    {
+        return id;
+    }
+
+    /**
+     * Sets the ID of this rule. Called by the grammar when the rule is added.
+     * 
+     * @param pID
+     *            The ID of the rule
+     */
+    protected void setID(int pID)
+    {
+        this.id = pID;
+    }
+
     public abstract Integer size();
+
+    /**
+     * Checks if this is a lexical rule, i.e. a nonterminal producing a single word. Lexical rules are kept in
+     * the lexicon of the grammar and are not expanded by the predictor.
+     * 
+     * @return true if the rule is lexical, false otherwise
+     */
+    public abstract boolean isLexical();
     
     public abstract String getLeftmost();
 
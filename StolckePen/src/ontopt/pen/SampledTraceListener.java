@@ -0,0 +1,101 @@
+package ontopt.pen;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Passes on to another listener the events of one sentence in every so many, so that a long run can be
+ * traced at a fraction of the cost. The sentences are counted across all the threads; the events of a
+ * sentence are passed on from the thread that parses it.
+ * </p>
+ */
+public class SampledTraceListener implements ParseListener
+{
+	private final ParseListener target;
+
+	private final int period;
+
+	private final AtomicLong sentences = new AtomicLong();
+
+	/**
+	 * Whether the sentence being parsed on each thread is traced
+	 */
+	private final ThreadLocal<Boolean> sampled = new ThreadLocal<Boolean>()
+	{
+		@Override
+		protected Boolean initialValue()
+		{
+			return Boolean.FALSE;
+		}
+	};
+
+	/**
+	 * The constructor
+	 * 
+	 * @param target
+	 *            The listener the sampled events are passed on to
+	 * @param period
+	 *            One sentence in this many is traced, the first one included
+	 */
+	public SampledTraceListener(ParseListener target, int period)
+	{
+		if (period < 1)
+		{
+			throw new IllegalArgumentException("The sampling period must be positive");
+		}
+
+		this.target = target;
+		this.period = period;
+	}
+
+	public void sentenceStarted(Sentence sentence)
+	{
+		boolean traced = sentences.getAndIncrement() % period == 0;
+
+		sampled.set(traced);
+		if (traced)
+		{
+			target.sentenceStarted(sentence);
+		}
+	}
+
+	public void predicted(State state)
+	{
+		if (sampled.get())
+		{
+			target.predicted(state);
+		}
+	}
+
+	public void scanned(State state)
+	{
+		if (sampled.get())
+		{
+			target.scanned(state);
+		}
+	}
+
+	public void completed(State state)
+	{
+		if (sampled.get())
+		{
+			target.completed(state);
+		}
+	}
+
+	public void columnDone(int index, ChartColumn column)
+	{
+		if (sampled.get())
+		{
+			target.columnDone(index, column);
+		}
+	}
+
+	public void prefixProbability(int index, double prefix, double logPrefix)
+	{
+		if (sampled.get())
+		{
+			target.prefixProbability(index, prefix, logPrefix);
+		}
+	}
+}
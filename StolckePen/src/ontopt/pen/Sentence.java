@@ -8,9 +8,22 @@ public abstract class Sentence {
 	
 	protected ArrayList<Double> prefixProbabilities;
 	
+	/**
+	 * The natural logarithms of the prefix probabilities. They stay accurate when the probabilities
+	 * themselves underflow, if the parser scales its columns.
+	 */
+	protected ArrayList<Double> logPrefixProbabilities;
+	
+	/**
+	 * The fraction of the prefix probabilities removed by the beam of the parser, if any
+	 */
+	protected ArrayList<Double> prunedFractions;
+	
 	public Sentence()
 	{
 		prefixProbabilities = new ArrayList<Double>();
+		logPrefixProbabilities = new ArrayList<Double>();
+		prunedFractions = new ArrayList<Double>();
 	}
 	
     public void setSentence(String sentence)
@@ -39,5 +52,82 @@ public abstract class Sentence {
     
     public abstract double getPrefix(int index);
     
+    /**
+     * Sets the logarithm of the prefix probability of the sentence up to the word at the specified index.
+     * 
+     * @param logProb
+     *            the natural logarithm of the prefix probability
+     * @param index
+     *            the index of the last word of the prefix
+     */
+    public void updateLogPrefix(double logProb, int index)
+    {
+        if (logPrefixProbabilities.size() == index)
+        {
+            logPrefixProbabilities.add(logProb);
+        }
+        else
+        {
+            logPrefixProbabilities.set(index, logProb);
+        }
+    }
+    
+    /**
+     * Gets the natural logarithm of the prefix probability of the sentence up to the word at the specified
+     * index.
+     * 
+     * @param index
+     *            the index of the last word of the prefix
+     * @return the logarithm of the prefix probability
+     */
+    public double getLogPrefix(int index)
+    {
+        return logPrefixProbabilities.get(index);
+    }
+    
+    /**
+     * Sets the fraction of the prefix probability up to the word at the specified index that the beam of the
+     * parser removed: the probability the pruned states would have added when scanning the word, over the
+     * probability all the states of the column would have added.
+     * 
+     * @param fraction
+     *            the pruned fraction, between 0 and 1
+     * @param index
+     *            the index of the word
+     */
+    public void updatePrunedFraction(double fraction, int index)
+    {
+        while (prunedFractions.size() < index)
+        {
+            prunedFractions.add(0.);
+        }
+        if (prunedFractions.size() == index)
+        {
+            prunedFractions.add(fraction);
+        }
+        else
+        {
+            prunedFractions.set(index, fraction);
+        }
+    }
+    
+    /**
+     * Gets the fraction of the prefix probability up to the word at the specified index that the beam of the
+     * parser removed. The losses compound: the prefix probability of a word is relative to the states that
+     * survived the beams of the previous columns.
+     * 
+     * @param index
+     *            the index of the word
+     * @return the pruned fraction, 0 if nothing was pruned
+     */
+    public double getPrunedFraction(int index)
+    {
+        if (index >= prunedFractions.size())
+        {
+            return 0.;
+        }
+        return prunedFractions.get(index);
+    }
+    
     public abstract double getSentenceSize(int index);
 }
@@ -23,12 +23,16 @@ import java.util.Arrays;
 
 public class State
 {
-	public final static Double INVALID_PROBABILITY = -1.;
+	public final static double INVALID_PROBABILITY = -1.;
 	
-	public static final int STATE_UNKNOWN   = -1;
-	public static final int STATE_SCANNED   =  1;
-	public static final int STATE_COMPLETED =  2;
-	public static final int STATE_PREDICTED =  3;
+	public static final byte STATE_UNKNOWN   = -1;
+	public static final byte STATE_SCANNED   =  1;
+	public static final byte STATE_COMPLETED =  2;
+	public static final byte STATE_PREDICTED =  3;
+	
+	private static final long[] NO_BACK_POINTERS = new long[0];
+	
+	private static final long NO_BACK_POINTER = -1L;
 	
     /**
      * The list of all chart rows
@@ -36,26 +40,23 @@ public class State
     private ArrayList<State> stateList;
 
     /**
-     * The list of rules that contributed to the present state of this row
+     * The derivations of this row. Each one packs the state of the row this one was advanced from (its
+     * predecessor, with the dot one position to the left, in the column where the child begins; -1 when there
+     * is none) and the state of the child the dot was advanced over (in the column of this row).
      */
-    private ArrayList<Integer> parents;
+    private long[] backPointers;
+
+    private int backPointerCount;
 
-    
     /**
      * The process that created the state (Predictor, Scanner or Completer).
      */
-    private int origin;
-    
-    /**
-     * The process that created the state (Predictor, Scanner or Completer),
-     * encoded as a string.
-     */
-    private String originString;
+    private byte origin;
 
     /**
      * The state of the row. A unique identifier
      */
-    private Integer state;
+    private int state;
 
     /**
      * The index of where the dot is located in reference to body of the rule
@@ -68,19 +69,47 @@ public class State
     private Rule rule;
 
     /**
-     * holds the position of the beginning of the rule in index 0 holds the position of the dot in index 1
+     * The position of the beginning of the rule in the input
+     */
+    private int start;
+
+    /**
+     * The position of the dot in the input
      */
-    private int[] positions;
+    private int end;
 
     /**
      * Holds the forward probability in this state (each State represents a state)
      */
-    private Double forwardProbability;
+    private double forwardProbability;
     
     /**
      * Holds the inner probability in this state (each State represents a state)
      */
-    private Double innerProbability;
+    private double innerProbability;
+    
+    /**
+     * The part of the forward and inner probabilities that has already been passed on to the rows derived
+     * from this one. The parser propagates only the difference when a row gains probability after being
+     * processed.
+     */
+    private double propagatedForward;
+
+    private double propagatedInner;
+
+    private boolean processed;
+
+    /**
+     * The probability of the most probable derivation of this row (Viterbi parsing), and that derivation,
+     * packed like the back pointers
+     */
+    private double viterbiProbability;
+
+    private long viterbiBackPointer = NO_BACK_POINTER;
+
+    private boolean queued;
+
+    private boolean pruned;
     
     /**
      * The constructor
@@ -90,12 +119,12 @@ public class State
      */
     public State(Rule pRule)
     {
-        this(pRule, new int[2]);
+        this(pRule, 0, 0);
     }
     
-    public State(Rule pRule, int[] pPositions)
+    public State(Rule pRule, int pStart, int pEnd)
     {
-    	this(pRule, pPositions, INVALID_PROBABILITY, INVALID_PROBABILITY);
+    	this(pRule, pStart, pEnd, INVALID_PROBABILITY, INVALID_PROBABILITY);
     }
 
     /**
@@ -103,73 +132,107 @@ public class State
      * 
      * @param pRule
      *            The rule used in this row
-     * @param pPositions
-     *            An array where the first value corresponds to where the rule begins and the second to where
-     *            the dot lies always in respect to the input sentence.
+     * @param pStart
+     *            The position in the input sentence where the rule begins
+     * @param pEnd
+     *            The position in the input sentence where the dot lies
      * @param forwardProbabilityIn
      *            The forward probability that will be associated to this state.
      * @param innerProbabilityIn
      *            The inner probability that will be associated to this state.
      */
-    public State(Rule pRule, int[] pPositions, Double forwardProbabilityIn, Double innerProbabilityIn)
+    public State(Rule pRule, int pStart, int pEnd, double forwardProbabilityIn, double innerProbabilityIn)
     {
-        parents   = new ArrayList<Integer>();
+        backPointers = NO_BACK_POINTERS;
         this.rule = pRule;
-        positions = pPositions;
+        start     = pStart;
+        end       = pEnd;
         
-        this.origin       = State.STATE_UNKNOWN;
-        this.originString = "unknown";
+        this.origin = State.STATE_UNKNOWN;
         
         this.forwardProbability = forwardProbabilityIn;
         this.innerProbability   = innerProbabilityIn;
     }
 
     /**
-     * Gets the row corresponding to the specified state
+     * Copies a state, with its probabilities and derivations, to be added to another column.
      * 
-     * @param pState
-     *            The state to look for
-     * @return The row with the state
+     * @param other
+     *            The state to copy
      */
-    public State getStateFromState(Integer pState)
+    public State(State other)
     {
-        return (State) stateList.get(pState.intValue());
+        backPointers = Arrays.copyOf(other.backPointers, other.backPointerCount);
+        backPointerCount = other.backPointerCount;
+        origin = other.origin;
+        dot = other.dot;
+        rule = other.rule;
+        start = other.start;
+        end = other.end;
+        forwardProbability = other.forwardProbability;
+        innerProbability = other.innerProbability;
+        propagatedForward = other.propagatedForward;
+        propagatedInner = other.propagatedInner;
+        processed = other.processed;
+        viterbiProbability = other.viterbiProbability;
+        viterbiBackPointer = other.viterbiBackPointer;
+        queued = other.queued;
+        pruned = other.pruned;
     }
 
     /**
-     * Sets the name of the originString
+     * Gets the row corresponding to the specified state
      * 
-     * @param p
-     *            The name to be set
+     * @param pState
+     *            The state to look for
+     * @return The row with the state
      */
-    protected void setOriginString(String p)
+    public State getStateFromState(int pState)
     {
-        originString = p;
+        return stateList.get(pState);
     }
     
-    protected void setOrigin(int originIn) {
+    protected void setOrigin(byte originIn) {
     	this.origin = originIn;
     }
     
-    protected int getOrigin() {
+    protected byte getOrigin() {
     	return this.origin;
     }
 
-    protected void setForwardProbability(Double pIn)
+    /**
+     * Gets the name of the process that created the state.
+     * 
+     * @return The name of the process
+     */
+    public String getOriginString() {
+    	switch (origin) {
+    	case STATE_SCANNED:
+    		return "Scanner";
+    	case STATE_COMPLETED:
+    		return "Completer";
+    	case STATE_PREDICTED:
+    		return "Predictor";
+    	default:
+    		return "unknown";
+    	}
+    }
+
+    protected void setForwardProbability(double pIn)
     {
     	this.forwardProbability = pIn;
     }
     
-    protected void setInnerProbability(Double pIn)
+    protected void setInnerProbability(double pIn)
     {
     	this.innerProbability = pIn;
     }
     
-    public Double getForwardProbability() {
+    public double getForwardProbability() {
     	return this.forwardProbability;
     }
     
-    public Double getInnerProbability() {
+    public double getInnerProbability() {
     	return this.innerProbability;
     }
     
@@ -182,7 +245,7 @@ public class State
     protected void incState(ArrayList<State> pStateList)
     {
         this.stateList = pStateList;
-        state = new Integer(this.stateList.size());
+        state = this.stateList.size();
         stateList.add(this);
     }
 
@@ -212,70 +275,215 @@ public class State
      * 
      * @return The state of this row
      */
-    public Integer getState()
+    public int getState()
     {
         return state;
     }
 
     /**
-     * Adds a new parent to this row
+     * Adds a derivation to this row
+     * 
+     * @param predecessor
+     *            the state of the row this one was advanced from, or -1 if there is none
+     * @param child
+     *            the state of the row the dot was advanced over
+     */
+    public void addBackPointer(int predecessor, int child)
+    {
+        if (backPointerCount == backPointers.length)
+        {
+            backPointers = Arrays.copyOf(backPointers, Math.max(2, backPointerCount * 2));
+        }
+        backPointers[backPointerCount++] = pack(predecessor, child);
+    }
+
+    private static long pack(int predecessor, int child)
+    {
+        return ((long) predecessor << 32) | (child & 0xffffffffL);
+    }
+
+    /**
+     * Gets the number of derivations of this row
+     * 
+     * @return the number of back pointers
+     */
+    public int getBackPointerCount()
+    {
+        return backPointerCount;
+    }
+
+    /**
+     * Gets the predecessor of a derivation of this row. It lies in the column where the child begins.
+     * 
+     * @param index
+     *            the index of the derivation
+     * @return the state of the predecessor, or -1 if there is none
+     */
+    public int getPredecessor(int index)
+    {
+        return (int) (backPointers[index] >> 32);
+    }
+
+    /**
+     * Gets the child of a derivation of this row. It lies in the same column as this row.
      * 
-     * @param s
-     *            the parent to add
+     * @param index
+     *            the index of the derivation
+     * @return the state of the child
      */
-    public void addParentState(Integer s)
+    public int getChild(int index)
     {
-        parents.add(s);
+        return (int) backPointers[index];
     }
 
     /**
-     * Adds a list of parents to this row
+     * Multiplies the probabilities of this row by a factor, before it is processed. Used to scale the columns
+     * of the chart.
      * 
-     * @param s
-     *            the list of parents
+     * @param factor
+     *            The factor
      */
-    public void addParentStates(ArrayList<Integer> s)
+    protected void scale(double factor)
+    {
+        forwardProbability *= factor;
+        innerProbability *= factor;
+        viterbiProbability *= factor;
+    }
+
+    public double getViterbiProbability()
     {
-        for (int i = 0; i < s.size(); i++)
+        return viterbiProbability;
+    }
+
+    /**
+     * Sets the most probable derivation of this row.
+     * 
+     * @param probability
+     *            The probability of the derivation
+     * @param predecessor
+     *            the state of the row this one was advanced from, or -1 if there is none
+     * @param child
+     *            the state of the row the dot was advanced over, or -1 if there is none
+     */
+    protected void setViterbi(double probability, int predecessor, int child)
+    {
+        viterbiProbability = probability;
+        viterbiBackPointer = pack(predecessor, child);
+    }
+
+    /**
+     * Takes the most probable derivation of another row for the same item, if it is more probable than the
+     * one of this row.
+     * 
+     * @param stateIn
+     *            The other row
+     * @return true if the derivation of this row changed
+     */
+    protected boolean maxViterbi(State stateIn)
+    {
+        if (stateIn.viterbiProbability > viterbiProbability)
         {
-            if (!parents.contains(s.get(i)))
-            {
-                parents.add(s.get(i));
-            }
+            viterbiProbability = stateIn.viterbiProbability;
+            viterbiBackPointer = stateIn.viterbiBackPointer;
+            return true;
         }
+
+        return false;
     }
 
     /**
-     * Gets the list of parents
+     * Checks if this row has a most probable derivation, i.e. if it was not predicted
      * 
-     * @return list of parents
+     * @return true if it has
+     */
+    public boolean hasViterbiBackPointer()
+    {
+        return viterbiBackPointer != NO_BACK_POINTER;
+    }
+
+    public int getViterbiPredecessor()
+    {
+        return (int) (viterbiBackPointer >> 32);
+    }
+
+    public int getViterbiChild()
+    {
+        return (int) viterbiBackPointer;
+    }
+
+    protected double getPropagatedForward()
+    {
+        return propagatedForward;
+    }
+
+    protected double getPropagatedInner()
+    {
+        return propagatedInner;
+    }
+
+    /**
+     * Marks the current probabilities of this row as passed on to the rows derived from it.
      */
-    public ArrayList<Integer> getParents()
+    protected void setPropagated()
     {
-        return parents;
+        propagatedForward = forwardProbability;
+        propagatedInner = innerProbability;
+        processed = true;
     }
 
     /**
-     * gets the array corresponding to the position of where this rule begins and where the dot lies. These
-     * values are in respect to the input sentence.
+     * Checks if this row has been processed at least once
      * 
-     * @return
+     * @return true if it has
      */
-    public int[] getPositions()
+    protected boolean isProcessed()
+    {
+        return processed;
+    }
+
+    protected boolean isQueued()
     {
-        return positions;
+        return queued;
+    }
+
+    protected void setQueued(boolean queued)
+    {
+        this.queued = queued;
+    }
+
+    /**
+     * Checks if this row was dropped by the beam: it is kept in the chart, but not advanced any further
+     * 
+     * @return true if it was pruned
+     */
+    public boolean isPruned()
+    {
+        return pruned;
+    }
+
+    protected void setPruned(boolean pruned)
+    {
+        this.pruned = pruned;
     }
 
     /**
-     * Sets the array of positions where the first value corresponds to where the rule begins and the second
-     * to where the dot lies always in respect to the input sentence.
+     * Gets the position in the input sentence where the rule of this row begins.
      * 
-     * @param positions
-     *            the array of positions
+     * @return The position where the rule begins
      */
-    protected void setPositions(int[] positions)
+    public int getStart()
     {
-        this.positions = positions;
+        return start;
+    }
+
+    /**
+     * Gets the position in the input sentence where the dot lies.
+     * 
+     * @return The position of the dot
+     */
+    public int getEnd()
+    {
+        return end;
     }
 
     /**
@@ -319,7 +527,8 @@ public class State
     }
 
     /**
-     * Check if this row is equal to another.
+     * Check if this row is equal to another: same dotted rule over the same span. The derivations are not
+     * compared, they are merged into the row.
      * 
      * @param stateIn
      *            The row to compare to
@@ -327,22 +536,20 @@ public class State
      */
     public boolean equals(State stateIn)
     {
-        return (stateIn.rule.equals(this.rule) && stateIn.positions[0] == this.positions[0] && stateIn.positions[1] == this.positions[1] && this.getParents().equals(stateIn.getParents()));
+        return (stateIn.dot == this.dot && stateIn.start == this.start && stateIn.end == this.end && stateIn.rule.equals(this.rule));
     }
 
     @Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
-		result = prime * result + ((parents == null) ? 0 : parents.hashCode());
-		result = prime * result + Arrays.hashCode(positions);
+		result = prime * result + dot;
+		result = prime * result + start;
+		result = prime * result + end;
 		result = prime * result + ((rule == null) ? 0 : rule.hashCode());
 		return result;
 	}
 
-//	Automatically generated equals method
-//  TODO: merge with previous equals, which requires a State as input.
-
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -351,22 +558,25 @@ public class State
 			return false;
 		if (getClass() != obj.getClass())
 			return false;
-		State other = (State) obj;
-		if (parents == null) {
-			if (other.parents != null)
-				return false;
-		} else if (!parents.equals(other.parents))
-			return false;
-		if (!Arrays.equals(positions, other.positions))
-			return false;
-		if (rule == null) {
-			if (other.rule != null)
-				return false;
-		} else if (!rule.equals(other.rule))
-			return false;
-		return true;
+		return equals((State) obj);
 	}
 
+    private String backPointersToString()
+    {
+        StringBuilder s = new StringBuilder("[");
+
+        for (int i = 0; i < backPointerCount; i++)
+        {
+            if (i > 0)
+            {
+                s.append(", ");
+            }
+            s.append(getPredecessor(i)).append('/').append(getChild(i));
+        }
+
+        return s.append(']').toString();
+    }
+
 	/**
      * gets the string representation of this row.
      * 
@@ -374,6 +584,6 @@ public class State
      */
     public String toString()
     {
-        return state + " " + rule.toString() + " [" + positions[0] + " " + positions[1] + "]" + " " + getParents().toString() + " " + originString + " " + dot + " {for:"+this.forwardProbability+", inn:"+this.innerProbability+"}";
+        return state + " " + rule.toString() + " [" + start + " " + end + "]" + " " + backPointersToString() + " " + getOriginString() + " " + dot + " {for:"+this.forwardProbability+", inn:"+this.innerProbability+"}";
     }
 }
\ No newline at end of file
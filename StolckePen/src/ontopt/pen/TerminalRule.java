@@ -58,6 +58,10 @@ public class TerminalRule extends Rule
     	return 1;
     }
     
+    public boolean isLexical() {
+    	return false;
+    }
+    
     /**
      * Gets a string representation of this rule
      * 
@@ -0,0 +1,55 @@
+package ontopt.pen;
+
+import java.io.PrintStream;
+
+/**
+ * <p>
+ * Prints the events of the parses as text, one per line: the trace the parser used to print on the standard
+ * output. The events of parses on different threads are interleaved.
+ * </p>
+ */
+public class TextTraceListener implements ParseListener
+{
+	private final PrintStream out;
+
+	/**
+	 * The constructor
+	 * 
+	 * @param out
+	 *            The stream where the trace is printed
+	 */
+	public TextTraceListener(PrintStream out)
+	{
+		this.out = out;
+	}
+
+	public synchronized void sentenceStarted(Sentence sentence)
+	{
+		out.println("\n%%Sentence: " + sentence);
+	}
+
+	public synchronized void predicted(State state)
+	{
+		out.println("	%prediction: " + state);
+	}
+
+	public synchronized void scanned(State state)
+	{
+		out.println("	%scan: " + state);
+	}
+
+	public synchronized void completed(State state)
+	{
+		out.println("	%completion: " + state);
+	}
+
+	public synchronized void columnDone(int index, ChartColumn column)
+	{
+		out.println("%%Column " + index + ": " + column.size() + " states");
+	}
+
+	public synchronized void prefixProbability(int index, double prefix, double logPrefix)
+	{
+		out.println("Prefix probability " + index + ": " + prefix + " (log " + logPrefix + ")");
+	}
+}
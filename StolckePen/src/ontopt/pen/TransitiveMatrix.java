@@ -1,4 +1,6 @@
 package ontopt.pen;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -13,6 +15,12 @@ import matrix.Matrix;
 public class TransitiveMatrix {
 	private Matrix probTransLCMatrix;
 	private Matrix probTransUnitMatrix;
+	// R_L and R_U when they are read from a grammar image rather than computed; the Matrix fields are null then
+	private SparseMatrix sparseLCMatrix;
+	private SparseMatrix sparseUnitMatrix;
+	// The names of the nonterminals of the sparse matrices, by dense index, for the String keyed maps
+	private List<String> nonTerminalList;
+	// Built with the matrix when it is computed, or from the sparse matrices on the first use of the String methods
 	private HashMap<String, HashMap<String, Double >> probLCHash;
 	private HashMap<String, HashMap<String, Double >> probUnitHash;
 
@@ -22,7 +30,11 @@ public class TransitiveMatrix {
 	public static TransitiveMatrix getMatrix(Grammar grammar){
 		TransitiveMatrix rMatrix = new TransitiveMatrix();
 
-		ArrayList<String> nonTerminalList= new ArrayList<String>(grammar.getNonterminals());
+		// Rows and columns follow the dense nonterminal indexes of the grammar
+		ArrayList<String> nonTerminalList= new ArrayList<String>();
+		for (int i=0; i< grammar.getNonterminalCount(); i++) {
+			nonTerminalList.add(grammar.getDataType(grammar.getNonterminalID(i)));
+		}
 		Matrix[] r=probabilisticTransitiveRelation(nonTerminalList, grammar);
 		
     	rMatrix.probTransLCMatrix = computeInverseIdMinusMatrix(r[0], nonTerminalList.size());
@@ -34,7 +46,25 @@ public class TransitiveMatrix {
     	return rMatrix;
 	}
 	/**
-	 * Build matrix for left corner and unit relations.
+	 * Build the transitive matrix from the R_L and R_U matrices computed before and read from a grammar image.
+	 * The matrices are not copied: the entries are looked up in them, and the String keyed maps are only built
+	 * if the methods taking names are called.
+	 */
+	static TransitiveMatrix getMatrix(Grammar grammar, SparseMatrix leftCorner, SparseMatrix unit){
+		TransitiveMatrix rMatrix = new TransitiveMatrix();
+
+		ArrayList<String> nonTerminalList= new ArrayList<String>();
+		for (int i=0; i< grammar.getNonterminalCount(); i++) {
+			nonTerminalList.add(grammar.getDataType(grammar.getNonterminalID(i)));
+		}
+
+		rMatrix.nonTerminalList = nonTerminalList;
+		rMatrix.sparseLCMatrix = leftCorner;
+		rMatrix.sparseUnitMatrix = unit;
+		return rMatrix;
+	}
+	/**
+	 * Build matrix for left corner and unit relations. The nonterminals are in the order of their dense indexes.
 	 */
 	
 	public static Matrix[] probabilisticTransitiveRelation(List<String> nonTerminals, Grammar grammar) {
@@ -44,28 +74,28 @@ public class TransitiveMatrix {
 		
 		double[][] leftCornerProbabilities = new double[nrNonTerminals][nrNonTerminals];
 		double[][] UnitProbabilities = new double[nrNonTerminals][nrNonTerminals];
+		int[] headOffsets = grammar.getHeadOffsets();
+		int[] headRules = grammar.getHeadRules();
+		int[] bodyOffsets = grammar.getBodyOffsets();
+		int[] bodies = grammar.getBodies();
+		double[] ruleProbabilities = grammar.getRuleProbabilities();
 		for (int i=0; i< nrNonTerminals; i++) {
-			String lhs = nonTerminals.get(i);
-			ArrayList<Rule> rules = grammar.getAllRulesWithHead(lhs);
-			for (Rule r : rules){
-				if ( nonTerminals.contains(r.getLeftmost())){//check if not terminal
+			for (int k = headOffsets[i]; k < headOffsets[i + 1]; k++){
+				int r = headRules[k];
+				if (bodyOffsets[r] == bodyOffsets[r + 1]) {
+					continue;
+				}
+				int leftmost = grammar.getNonterminalIndex(bodies[bodyOffsets[r]]);
+				if (leftmost >= 0){//check if not terminal
 					
-					leftCornerProbabilities[i][nonTerminals.indexOf(r.getLeftmost())]+=r.getWeight();
-					if (r.size()==1){
-						UnitProbabilities[i][nonTerminals.indexOf(r.getLeftmost())]+=r.getWeight();
+					leftCornerProbabilities[i][leftmost]+=ruleProbabilities[r];
+					if (bodyOffsets[r + 1] - bodyOffsets[r]==1){
+						UnitProbabilities[i][leftmost]+=ruleProbabilities[r];
 					}
 				}
 			}
 		}
 		
-		for (int i =0; i < nonTerminals.size(); i++) {
-			for (int j = 0; j < nonTerminals.size(); j++) {	
-			System.out.print(" " + leftCornerProbabilities[i][j]);	
-			}
-			System.out.println("");
-			}
-		
-		
 		Matrix[] r= new Matrix[2];
 		r[0]= new Matrix(leftCornerProbabilities);
 		r[1] = new Matrix(UnitProbabilities);
@@ -84,8 +114,6 @@ public class TransitiveMatrix {
 		Matrix identityMatrix = new Matrix(matrixArray);
 		
 		//R_{L} = inverse(I - P_{L}) 
-		(identityMatrix.minus(probLCMatrix)).inverse().print(10,10);
-		
 		return (identityMatrix.minus(probLCMatrix)).inverse();
 	}
 	
@@ -100,11 +128,8 @@ public class TransitiveMatrix {
 			HashMap<String, Double> temp_hash = new HashMap<String, Double>();
 			for (int columnIndex = 0; columnIndex<nonterminal_symbols.size(); columnIndex++) {
 				double prob = Matrix.get(rowIndex, columnIndex);
-				//System.out.println(Double.toString(prob));
 				if ( prob >0.) {
-					System.out.println(nonterminal_symbols.get(columnIndex));
 					temp_hash.put(nonterminal_symbols.get(columnIndex), prob);
-					//System.out.println(nonterminal_symbols.get(rowIndex)+" -->  " + nonterminal_symbols.get(columnIndex)+" = " + Double.toString(prob));
 				}
 			}
 			hash.put(nonterminal_symbols.get(rowIndex), temp_hash);
@@ -122,24 +147,54 @@ public class TransitiveMatrix {
 	 *            left most non terminal from the right hand side
 	 */
 	public double getTransitiveLCRelation(String lhs, String rhs){		
-		if (this.probLCHash.get(lhs).containsKey(rhs)){
-			return this.probLCHash.get(lhs).get(rhs);
+		if (getLCHash().get(lhs).containsKey(rhs)){
+			return getLCHash().get(lhs).get(rhs);
 		}
 		return 0;
 	}
+	/**
+	 * Get double from matrix, addressing the nonterminals by their dense index in the grammar
+	 * @param lhs
+	 *            index of the left hand of the rule
+	 * @param rhs
+	 *            index of the left most non terminal from the right hand side
+	 */
+	public double getTransitiveLCRelation(int lhs, int rhs){
+		if (this.probTransLCMatrix == null){
+			return this.sparseLCMatrix.get(lhs, rhs);
+		}
+		return this.probTransLCMatrix.get(lhs, rhs);
+	}
+	/**
+	 * Get double from the unit matrix, addressing the nonterminals by their dense index in the grammar
+	 * @param lhs
+	 *            index of the left hand of the rule
+	 * @param rhs
+	 *            index of the only nonterminal of the right hand side
+	 */
+	public double getTransitiveUnitRelation(int lhs, int rhs){
+		if (this.probTransUnitMatrix == null){
+			return this.sparseUnitMatrix.get(lhs, rhs);
+		}
+		return this.probTransUnitMatrix.get(lhs, rhs);
+	}
 	/**
 	 * Get all possible left corner transitive relation for a nonterminal
 	 */
 	public Set<Entry<String, Double>> getTransitiveLCRelationSet(String nonterminal){		
 		
-		return this.probLCHash.get(nonterminal).entrySet();
+		return getLCHash().get(nonterminal).entrySet();
 	}
 	/**
-	 * Get all possible unit transitive relation for a nonterminal
+	 * Get double from the unit matrix
+	 * @param lhs
+	 *            left hand of the rule
+	 * @param rhs
+	 *            only non terminal of the right hand side
 	 */
 	public double getTransitiveUnitRelation(String lhs, String rhs){
-		if (this.probUnitHash.get(lhs).containsKey(rhs)){
-			this.probUnitHash.get(lhs).get(rhs);
+		if (getUnitHash().get(lhs).containsKey(rhs)){
+			return getUnitHash().get(lhs).get(rhs);
 		}
 		return 0;
 	}
@@ -147,16 +202,88 @@ public class TransitiveMatrix {
 	 * print left corner matrix
 	 */
 	public void printRMatrix() {
-		for (String lhs : this.probLCHash.keySet()) {
+		HashMap<String, HashMap<String, Double >> probLCHash = getLCHash();
+		for (String lhs : probLCHash.keySet()) {
 			System.out.print("["+lhs+"]\n\t");
-			if (this.probLCHash.get("lhs") == null) {
+			if (probLCHash.get(lhs) == null) {
 				System.out.println("[null rhs]");
 				continue;
 			}
-			for (String rhs : this.probLCHash.get("lhs").keySet()) {
-				System.out.print("["+rhs+": "+this.probLCHash.get("lhs").get("rhs")+"] ");
+			for (String rhs : probLCHash.get(lhs).keySet()) {
+				System.out.print("["+rhs+": "+probLCHash.get(lhs).get(rhs)+"] ");
 			}
 			System.out.println();
 		}
 	}
+	/**
+	 * Get the left corner map, building it from the sparse matrix the first time. The matrix is shared by threads
+	 */
+	private synchronized HashMap<String, HashMap<String, Double>> getLCHash(){
+		if (this.probLCHash == null){
+			this.probLCHash = this.sparseLCMatrix.toHash(this.nonTerminalList);
+		}
+		return this.probLCHash;
+	}
+	/**
+	 * Get the unit map, building it from the sparse matrix the first time
+	 */
+	private synchronized HashMap<String, HashMap<String, Double>> getUnitHash(){
+		if (this.probUnitHash == null){
+			this.probUnitHash = this.sparseUnitMatrix.toHash(this.nonTerminalList);
+		}
+		return this.probUnitHash;
+	}
+	/**
+	 * The nonzero entries of a square matrix, row by row: the entries of row i are at offsets[i] to
+	 * offsets[i + 1] (excluded) of columns and values, in increasing order of column. The buffers are only read
+	 * with absolute gets, so threads can share them.
+	 */
+	static class SparseMatrix {
+		private final IntBuffer offsets;
+		private final IntBuffer columns;
+		private final DoubleBuffer values;
+
+		SparseMatrix(IntBuffer offsets, IntBuffer columns, DoubleBuffer values){
+			this.offsets = offsets;
+			this.columns = columns;
+			this.values = values;
+		}
+
+		/**
+		 * Get an entry, by a binary search of its row
+		 */
+		double get(int row, int column){
+			int low = offsets.get(row);
+			int high = offsets.get(row + 1) - 1;
+			while (low <= high){
+				int middle = (low + high) >>> 1;
+				int current = columns.get(middle);
+				if (current < column){
+					low = middle + 1;
+				} else if (current > column){
+					high = middle - 1;
+				} else {
+					return values.get(middle);
+				}
+			}
+			return 0.;
+		}
+
+		/**
+		 * Turn the matrix into a hashmap, as matrixToHash does
+		 */
+		HashMap<String, HashMap<String, Double>> toHash(List<String> nonterminal_symbols){
+			HashMap<String, HashMap<String, Double>> hash = new HashMap<String, HashMap<String, Double>>();
+			for (int rowIndex = 0; rowIndex<nonterminal_symbols.size(); rowIndex++) {
+				HashMap<String, Double> temp_hash = new HashMap<String, Double>();
+				for (int k = offsets.get(rowIndex); k < offsets.get(rowIndex + 1); k++) {
+					if (values.get(k) > 0.) {
+						temp_hash.put(nonterminal_symbols.get(columns.get(k)), values.get(k));
+					}
+				}
+				hash.put(nonterminal_symbols.get(rowIndex), temp_hash);
+			}
+			return hash;
+		}
+	}
 }
@@ -0,0 +1,773 @@
+package ontopt.pen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Parses ambiguous sentences of the Stolcke grammar, TOP ::= TOP TOP | a, where a sentence of n words has
+ * the Catalan number C(n - 1) of parses.
+ */
+public class EarleyParserTest
+{
+	private static final String STOLCKE = "resources/test/uva.stolcke.grammar";
+
+	/**
+	 * TOP ::= TOP A (0.5) | TOP B (0.3) | A (0.2), where A ::= x and B ::= y: "x" followed by n "y" has the
+	 * probability 0.2 x 0.3^n, and as a prefix 0.3^n
+	 */
+	private static final String EVIL = "resources/test/uva.evil.grammar";
+
+	private static final String SIMPLE = "resources/test/uva.simple.grammar";
+
+	/**
+	 * X ::= A (0.6) | B (0.4), where "fish" is both an A (0.5) and a B (1), and "swim" an A (0.5)
+	 */
+	private static final String AMBIGUOUS = "resources/test/uva.ambiguous.grammar";
+
+	/**
+	 * S ::= A B, where A ::= a (0.6) | <> (0.4) and B ::= b (0.7) | <> (0.3)
+	 */
+	private static final String NULLABLE = "resources/test/uva.nullable.grammar";
+
+	/**
+	 * S ::= T (0.5) | a (0.5), T ::= S (0.4) | b (0.6): a unit cycle, which derives "a" with probability
+	 * 0.5 / (1 - 0.5 x 0.4) and "b" with 0.3 / (1 - 0.2)
+	 */
+	private static final String CYCLE = "resources/test/uva.cycle.grammar";
+
+	private static final String[] SIMPLE_SENTENCES = { "mary feeds mary", "dog walks", "girl who lives feeds john",
+			"mary feeds girl who lives", "dog who chases mary walks", "boy who john feeds lives" };
+
+	private static final int[] CATALAN = { 1, 1, 2, 5, 14, 42 };
+
+	@Test
+	public void returnsEveryTree() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		ArrayList<SemanticNode> trees;
+		HashSet<String> distinct;
+		PenSentence sentence;
+		String words = "a";
+
+		for (int n = 1; n <= CATALAN.length; n++)
+		{
+			sentence = new PenSentence(words);
+			trees = parser.parseSentence(sentence);
+			assertEquals(words, CATALAN[n - 1], trees.size());
+			assertEquals(words, CATALAN[n - 1], (long) parser.parseForest(sentence).countTrees());
+
+			distinct = new HashSet<String>();
+			for (int i = 0; i < trees.size(); i++)
+			{
+				distinct.add(trees.get(i).getPenn());
+			}
+			assertEquals(words, trees.size(), distinct.size());
+
+			words += " a";
+		}
+	}
+
+	/**
+	 * A word is scanned as every preterminal the lexicon gives it, each state waiting for one of them at
+	 * once.
+	 */
+	@Test
+	public void scansEveryPreterminalOfAWord() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(AMBIGUOUS);
+
+		assertEquals(0.6 * 0.5 + 0.4, probability(parser, "fish"), 1e-12);
+		assertEquals(0.6 * 0.5, probability(parser, "swim"), 1e-12);
+		assertEquals(0., probability(parser, "cod"), 0.);
+		assertEquals(2, parser.parseSentence(new PenSentence("fish")).size());
+		assertEquals(1, parser.parseSentence(new PenSentence("swim")).size());
+	}
+
+	/**
+	 * The states completed by an empty constituent are found by the completer as well as those completed by
+	 * a word, in the column where the constituent ends.
+	 */
+	@Test
+	public void completesEmptyConstituents() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(NULLABLE);
+		PenSentence sentence = new PenSentence("a b");
+
+		assertEquals(0.6 * 0.3, probability(parser, "a"), 1e-12);
+		assertEquals(0.4 * 0.7, probability(parser, "b"), 1e-12);
+		assertEquals(0.6 * 0.7, probability(parser, sentence), 1e-12);
+		assertEquals(0.6, sentence.getPrefix(0), 1e-12);
+		assertEquals(0.42, sentence.getPrefix(1), 1e-12);
+		assertEquals(0., probability(parser, "b a"), 0.);
+		assertEquals(1, parser.parseSentence(new PenSentence("b")).size());
+		assertEquals(1, parser.parseSentence(new PenSentence("a b")).size());
+	}
+
+	/**
+	 * The predictions follow the left corner closure through the unit cycle, and the completions the unit
+	 * closure, summed as a series.
+	 */
+	@Test
+	public void sumsTheDerivationsOfAUnitCycle() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(CYCLE);
+		PenSentence sentence = new PenSentence("a");
+
+		assertEquals(0.625, probability(parser, sentence), 1e-9);
+		assertEquals(0.625, sentence.getPrefix(0), 1e-12);
+		assertEquals(0.375, probability(parser, "b"), 1e-9);
+		assertEquals(0., probability(parser, "a b"), 0.);
+		assertTrue(Double.isInfinite(parser.parseForest(new PenSentence("b")).countTrees()));
+	}
+
+	/**
+	 * The forest packs the C(11) = 58786 trees of twelve words in a number of nodes cubic in the length, and
+	 * its root has the probability of the sentence.
+	 */
+	@Test
+	public void packsTheTreesInAForest() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		String words = "a a a a a a a a a a a a";
+		ParseForest forest = parser.parseForest(new PenSentence(words));
+
+		assertEquals(58786., forest.countTrees(), 0.);
+		assertTrue(forest.getNodeCount() < 12 * 12 * 12);
+		assertEquals(probability(parser, words), forest.getRoot().getInnerProbability(), 1e-15);
+		assertEquals(58786 * Math.pow(0.7, 11) * Math.pow(0.3, 12), forest.getRoot().getInnerProbability(), 1e-15);
+		assertNull(parser.parseForest(new PenSentence("a b")).getRoot());
+	}
+
+	/**
+	 * A state is its dotted rule and span, whatever its derivations: column j of a Stolcke chart holds 2j + 2
+	 * states, for the C(7) = 429 trees of eight words, and a copy of a state is the same item with the same
+	 * back pointers.
+	 */
+	@Test
+	public void mergesTheStatesOfTheSameItem() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		PenSentence sentence = new PenSentence("a a a a a a a a");
+		ParseResult result = parser.parseSentence(sentence, new ParseBudget(0, 0, 0));
+		int[] sizes = result.getColumnSizes();
+		ChartColumn column = new ChartColumn(parser.getGrammar());
+		Rule rule = parser.getGrammar().getAllRulesWithHead("TOP").get(0);
+		State state = new State(rule, 0, 3, 0.1, 0.2);
+		State copy;
+
+		assertEquals(429, result.getTrees().size());
+		for (int j = 0; j < sizes.length; j++)
+		{
+			assertEquals(2 * j + 2, sizes[j]);
+		}
+
+		state.setDot(1);
+		column.addState(state);
+		state.addBackPointer(-1, 1);
+		state.addBackPointer(0, 2);
+		copy = new State(state);
+		assertTrue(copy.equals(state));
+		assertEquals(state.hashCode(), copy.hashCode());
+		assertTrue(column.getState(copy) == state);
+		assertEquals(2, copy.getBackPointerCount());
+		assertEquals(0, copy.getPredecessor(1));
+		assertEquals(2, copy.getChild(1));
+		assertEquals(0.1, copy.getForwardProbability(), 0.);
+		assertEquals(0.2, copy.getInnerProbability(), 0.);
+
+		copy = new State(rule, 0, 4, 0.1, 0.2);
+		copy.setDot(1);
+		assertFalse(copy.equals(state));
+		assertNull(column.getState(copy));
+	}
+
+	@Test
+	public void returnsAsManyTreesAsTheBestTrees() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		PenSentence sentence = new PenSentence("a a a");
+		KBestIterator best = parser.parseForest(sentence).getBestTrees();
+		int count = 0;
+
+		while (best.hasNext())
+		{
+			best.next();
+			count++;
+		}
+
+		assertEquals(2, count);
+		assertEquals(count, parser.parseSentence(sentence).size());
+	}
+
+	/**
+	 * The trees come from the most probable down, as many as the forest counts, and their probabilities add
+	 * up to that of the sentence.
+	 */
+	@Test
+	public void iteratesOverTheBestTreesInOrder() throws Exception
+	{
+		String[][] grammars = { { STOLCKE, "a", "a a a", "a a a a a" }, { AMBIGUOUS, "fish", "swim" },
+				{ NULLABLE, "a", "b", "a b" }, { SIMPLE, SIMPLE_SENTENCES[2], SIMPLE_SENTENCES[4] } };
+		EarleyParser parser;
+		KBestIterator best;
+		double previous;
+		double sum;
+		int count;
+
+		for (String[] grammar : grammars)
+		{
+			parser = new EarleyParser(grammar[0]);
+			for (int i = 1; i < grammar.length; i++)
+			{
+				best = parser.parseBest(new PenSentence(grammar[i]));
+				previous = 1.;
+				sum = 0.;
+				count = 0;
+				while (best.hasNext())
+				{
+					best.next();
+					assertTrue(grammar[i], best.getProbability() <= previous);
+					previous = best.getProbability();
+					sum += previous;
+					count++;
+				}
+
+				assertEquals(grammar[i], parser.parseForest(new PenSentence(grammar[i])).countTrees(), count, 0.);
+				assertEquals(grammar[i], probability(parser, grammar[i]), sum, 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void stopsAtTheTreeLimit() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+
+		parser.setTreeLimit(3);
+		assertEquals(3, parser.parseSentence(new PenSentence("a a a a a")).size());
+		assertEquals(1, parser.parseSentence(new PenSentence("a a")).size());
+	}
+
+	@Test
+	public void returnsTheMostProbableTreeInViterbiMode() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+
+		parser.setViterbi(true);
+		assertEquals(1, parser.parseSentence(new PenSentence("a a a a")).size());
+	}
+
+	/**
+	 * The Viterbi parse keeps the best derivation of each state, but sums the probabilities as usual.
+	 */
+	@Test
+	public void parsesInViterbiModeWithThePlainProbabilities() throws Exception
+	{
+		EarleyParser plain = new EarleyParser(AMBIGUOUS);
+		EarleyParser viterbi = new EarleyParser(AMBIGUOUS);
+		ArrayList<SemanticNode> trees;
+		String[] sentences = { SIMPLE_SENTENCES[2], SIMPLE_SENTENCES[4], "dog dog" };
+
+		viterbi.setViterbi(true);
+		trees = viterbi.parseSentence(new PenSentence("fish"));
+		assertEquals(1, trees.size());
+		assertEquals("(TOP (X (B \"fish\")))", trees.get(0).getPenn());
+		assertEquals(trees.get(0).getPenn(), plain.parseBest(new PenSentence("fish")).next().getPenn());
+		assertEquals(plain.getLogProbability(new PenSentence("fish")), viterbi.getLogProbability(new PenSentence("fish")),
+				1e-12);
+
+		plain = new EarleyParser(SIMPLE);
+		viterbi = new EarleyParser(SIMPLE);
+		viterbi.setViterbi(true);
+		for (int i = 0; i < sentences.length; i++)
+		{
+			assertEquals(sentences[i], plain.getLogProbability(new PenSentence(sentences[i])),
+					viterbi.getLogProbability(new PenSentence(sentences[i])), 1e-12);
+		}
+
+		plain = new EarleyParser(STOLCKE);
+		viterbi = new EarleyParser(STOLCKE);
+		viterbi.setViterbi(true);
+		assertEquals(plain.getLogProbability(new PenSentence("a a a a a")),
+				viterbi.getLogProbability(new PenSentence("a a a a a")), 1e-12);
+	}
+
+	/**
+	 * "girl" is scanned by NP ::= N (0.2 x 0.25) and NP ::= N RC (0.3 x 0.25), so a beam of one state loses
+	 * 0.4 of the prefix, then "who" by RC ::= WHO VP (0.4) and RC ::= WHO NP (0.6), losing 0.4 again: the
+	 * state pruned first could not have scanned "who", so that loss is the whole loss of the second prefix.
+	 */
+	@Test
+	public void reportsTheFractionOfThePrefixTheBeamPrunes() throws Exception
+	{
+		EarleyParser exact = new EarleyParser(SIMPLE);
+		EarleyParser beam = new EarleyParser(SIMPLE);
+		PenSentence exactSentence = new PenSentence("girl who lives feeds john");
+		PenSentence beamSentence = new PenSentence("girl who lives feeds john");
+
+		beam.setBeamWidth(1);
+		exact.getLogProbability(exactSentence);
+		beam.getLogProbability(beamSentence);
+
+		assertEquals(0.4, beamSentence.getPrunedFraction(0), 1e-12);
+		assertEquals(1 - beamSentence.getPrefix(0) / exactSentence.getPrefix(0), beamSentence.getPrunedFraction(0), 1e-12);
+		assertEquals(0.4, beamSentence.getPrunedFraction(1), 1e-12);
+		assertEquals(1 - beamSentence.getPrefix(1) / exactSentence.getPrefix(1), beamSentence.getPrunedFraction(1), 1e-12);
+
+		beam = new EarleyParser(SIMPLE);
+		beamSentence = new PenSentence("girl who lives feeds john");
+		beam.setBeamThreshold(0.7);
+		beam.getLogProbability(beamSentence);
+		assertEquals(1 - beamSentence.getPrefix(0) / exactSentence.getPrefix(0), beamSentence.getPrunedFraction(0), 1e-12);
+		assertEquals(0.4, beamSentence.getPrunedFraction(0), 1e-12);
+	}
+
+	/**
+	 * The states that do not scan the word are not ranked, so a beam of one state keeps a prefix whenever
+	 * the grammar has one, and a loose threshold keeps it exact.
+	 */
+	@Test
+	public void ranksOnlyTheStatesThatScan() throws Exception
+	{
+		EarleyParser exact = new EarleyParser(SIMPLE);
+		EarleyParser beam = new EarleyParser(SIMPLE);
+		PenSentence sentence;
+
+		beam.setBeamWidth(1);
+		assertEquals(exact.getLogProbability(new PenSentence("mary feeds mary")),
+				beam.getLogProbability(new PenSentence("mary feeds mary")), 1e-12);
+
+		beam = new EarleyParser(SIMPLE);
+		beam.setBeamThreshold(0.3);
+		sentence = new PenSentence("dog who chases mary walks");
+		assertEquals(exact.getLogProbability(new PenSentence("dog who chases mary walks")), beam.getLogProbability(sentence),
+				1e-12);
+		for (int i = 0; i < sentence.getSentenceSize(); i++)
+		{
+			assertEquals(0., sentence.getPrunedFraction(i), 0.);
+		}
+	}
+
+	/**
+	 * Each word following a shared prefix is pruned on its own, as in a parse of its sentence alone: a beam
+	 * of one state keeps B for "fish" (0.4 against 0.6 x 0.5), but must keep A for "swim".
+	 */
+	@Test
+	public void prunesEachBranchOfABatchOnItsOwn() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(AMBIGUOUS);
+		ArrayList<PenSentence> batch = new ArrayList<PenSentence>();
+		PenSentence single;
+		double[] scores;
+
+		parser.setBeamWidth(1);
+		batch.add(new PenSentence("fish"));
+		batch.add(new PenSentence("swim"));
+		scores = parser.getLogProbabilities(batch);
+
+		assertEquals(Math.log(0.4), scores[0], 1e-12);
+		assertEquals(Math.log(0.3), scores[1], 1e-12);
+		assertEquals(0.3 / 0.7, batch.get(0).getPrunedFraction(0), 1e-12);
+		assertEquals(0., batch.get(1).getPrunedFraction(0), 0.);
+
+		parser = new EarleyParser(SIMPLE);
+		parser.setBeamWidth(1);
+		batch.clear();
+		for (int i = 0; i < SIMPLE_SENTENCES.length; i++)
+		{
+			batch.add(new PenSentence(SIMPLE_SENTENCES[i]));
+		}
+		batch.add(new PenSentence("mary feeds john"));
+		batch.add(new PenSentence("mary walks"));
+		scores = parser.getLogProbabilities(batch);
+
+		for (int i = 0; i < batch.size(); i++)
+		{
+			single = new PenSentence(batch.get(i).toString());
+			assertEquals(single.toString(), parser.getLogProbability(single), scores[i], 1e-12);
+			for (int k = 0; k < single.getSentenceSize(); k++)
+			{
+				assertEquals(single.toString(), single.getPrunedFraction(k), batch.get(i).getPrunedFraction(k), 1e-12);
+			}
+		}
+	}
+
+	/**
+	 * The lookahead only leaves out the rules that could not be scanned, so the probabilities are those of a
+	 * plain parse, from a smaller chart.
+	 */
+	@Test
+	public void predictsWithTheLookaheadAsWithout() throws Exception
+	{
+		String[][] grammars = { { SIMPLE, SIMPLE_SENTENCES[0], SIMPLE_SENTENCES[2], SIMPLE_SENTENCES[4], "dog dog" },
+				{ STOLCKE, "a", "a a a a", "a b" }, { NULLABLE, "a", "b", "a b", "b a" }, { CYCLE, "a", "b", "a b" },
+				{ AMBIGUOUS, "fish", "swim" } };
+		ParseBudget unlimited = new ParseBudget(0, 0, 0);
+		EarleyParser plain;
+		EarleyParser lookahead;
+		PenSentence plainSentence;
+		PenSentence lookaheadSentence;
+		int plainStates = 0;
+		int lookaheadStates = 0;
+
+		for (String[] grammar : grammars)
+		{
+			plain = new EarleyParser(grammar[0]);
+			lookahead = new EarleyParser(grammar[0]);
+			lookahead.setPredictionLookahead(true);
+			for (int i = 1; i < grammar.length; i++)
+			{
+				plainSentence = new PenSentence(grammar[i]);
+				lookaheadSentence = new PenSentence(grammar[i]);
+				assertEquals(grammar[i], plain.getLogProbability(plainSentence), lookahead.getLogProbability(lookaheadSentence),
+						1e-12);
+				for (int k = 0; k < plainSentence.getSentenceSize(); k++)
+				{
+					assertEquals(grammar[i], plainSentence.getPrefix(k), lookaheadSentence.getPrefix(k), 1e-12);
+				}
+
+				plainStates += plain.parseSentence(new PenSentence(grammar[i]), unlimited).getChartSize();
+				lookaheadStates += lookahead.parseSentence(new PenSentence(grammar[i]), unlimited).getChartSize();
+			}
+		}
+		assertTrue(lookaheadStates < plainStates);
+	}
+
+	/**
+	 * Scaled, the columns give the probabilities of a plain parse, and keep them where those underflow.
+	 */
+	@Test
+	public void scalesTheColumnsWithoutChangingTheProbabilities() throws Exception
+	{
+		EarleyParser plain = new EarleyParser(EVIL);
+		EarleyParser scaled = new EarleyParser(EVIL);
+		StringBuilder words = new StringBuilder("x");
+		PenSentence plainSentence;
+		PenSentence scaledSentence;
+
+		scaled.setScaling(true);
+		for (String sentence : new String[] { "x", "x y x", "x x y y x" })
+		{
+			assertEquals(sentence, plain.getLogProbability(new PenSentence(sentence)),
+					scaled.getLogProbability(new PenSentence(sentence)), 1e-12);
+		}
+
+		for (int i = 0; i < 700; i++)
+		{
+			words.append(" y");
+		}
+		plainSentence = new PenSentence(words.toString());
+		scaledSentence = new PenSentence(words.toString());
+		assertEquals(Double.NEGATIVE_INFINITY, plain.getLogProbability(plainSentence), 0.);
+		assertEquals(Math.log(0.2) + 700 * Math.log(0.3), scaled.getLogProbability(scaledSentence), 1e-9);
+		assertEquals(600 * Math.log(0.3), scaledSentence.getLogPrefix(600), 1e-9);
+		assertEquals(plainSentence.getLogPrefix(100), scaledSentence.getLogPrefix(100), 1e-9);
+	}
+
+	/**
+	 * A sentence parsed again gets the same prefix probabilities, not their sum with the first ones.
+	 */
+	@Test
+	public void setsThePrefixesAgainOnASecondParse() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		PenSentence sentence = new PenSentence("a a");
+		double first;
+		double second;
+
+		parser.parseSentence(sentence);
+		first = sentence.getPrefix(0);
+		second = sentence.getPrefix(1);
+		assertEquals(Math.log(first), sentence.getLogPrefix(0), 1e-12);
+
+		parser.parseSentence(sentence);
+		assertEquals(first, sentence.getPrefix(0), 0.);
+		assertEquals(second, sentence.getPrefix(1), 0.);
+
+		parser.getLogProbabilities(Arrays.asList(sentence));
+		assertEquals(first, sentence.getPrefix(0), 1e-12);
+		assertEquals(second, sentence.getPrefix(1), 1e-12);
+		assertEquals(Math.log(first), sentence.getLogPrefix(0), 1e-12);
+	}
+
+	/**
+	 * A parse that outgrows its budget gives up with the prefix probabilities of the words it scanned.
+	 */
+	@Test
+	public void givesUpAtTheBudgetWithThePrefixesScanned() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(SIMPLE);
+		String words = "girl who lives feeds john";
+		PenSentence exact = new PenSentence(words);
+		ParseResult result = parser.parseSentence(exact, new ParseBudget(0, 0, 0));
+		int[] sizes = result.getColumnSizes();
+
+		assertTrue(result.isComplete());
+		assertEquals(1, result.getTrees().size());
+		assertEquals(6, sizes.length);
+
+		result = parser.parseSentence(new PenSentence(words), new ParseBudget(0, 0, sizes[0] + sizes[1] + sizes[2]));
+		assertEquals(ParseResult.CHART_LIMIT, result.getStatus());
+		assertNull(result.getTrees());
+		assertTrue(result.toString(), result.getScannedWords() > 0 && result.getScannedWords() < 5);
+		for (int k = 0; k < result.getScannedWords(); k++)
+		{
+			assertEquals(exact.getPrefix(k), result.getSentence().getPrefix(k), 1e-12);
+		}
+		assertEquals(exact.getLogPrefix(result.getScannedWords() - 1), result.getLogPrefix(), 1e-12);
+
+		// The first column was built by the first parse, but must fit the budget all the same
+		result = parser.parseSentence(new PenSentence(words), new ParseBudget(0, sizes[0] - 1, 0));
+		assertEquals(ParseResult.COLUMN_LIMIT, result.getStatus());
+		assertEquals(0, result.getScannedWords());
+		assertEquals(0, result.getCompletedColumns());
+
+		assertTrue(parser.parseSentence(new PenSentence(words), new ParseBudget(60000, 1000, 1000)).isComplete());
+	}
+
+	/**
+	 * "mary feeds mary" predicts the five rules of column 0 (TOP, S and the three of NP), the two of VP,
+	 * then the three of NP again. Scanned, each word gives one preterminal state, and the completer advances
+	 * NP and S, then VP, then NP, VP, S and TOP. The first column is only built by the first parse.
+	 */
+	@Test
+	public void tellsTheListenerEveryEvent() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(SIMPLE);
+		final int[] events = new int[6];
+		final double[] prefixes = new double[3];
+		PenSentence sentence = new PenSentence("mary feeds mary");
+
+		parser.setParseListener(new ParseListener()
+		{
+			public void sentenceStarted(Sentence sentence)
+			{
+				events[0]++;
+			}
+
+			public void predicted(State state)
+			{
+				events[1]++;
+			}
+
+			public void scanned(State state)
+			{
+				events[2]++;
+			}
+
+			public void completed(State state)
+			{
+				events[3]++;
+			}
+
+			public void columnDone(int index, ChartColumn column)
+			{
+				events[4]++;
+			}
+
+			public void prefixProbability(int index, double prefix, double logPrefix)
+			{
+				events[5]++;
+				prefixes[index] = prefix;
+			}
+		});
+
+		parser.parseSentence(sentence);
+		assertEquals("[1, 10, 3, 7, 4, 3]", Arrays.toString(events));
+		for (int i = 0; i < prefixes.length; i++)
+		{
+			assertEquals(sentence.getPrefix(i), prefixes[i], 0.);
+		}
+
+		Arrays.fill(events, 0);
+		parser.parseSentence(new PenSentence("mary feeds mary"));
+		assertEquals("[1, 5, 3, 7, 4, 3]", Arrays.toString(events));
+
+		Arrays.fill(events, 0);
+		parser.setParseListener(null);
+		parser.parseSentence(new PenSentence("mary feeds mary"));
+		assertEquals("[0, 0, 0, 0, 0, 0]", Arrays.toString(events));
+	}
+
+	/**
+	 * The sentences of a batch get the scores and the prefix probabilities of parses of their own, whether
+	 * they share a prefix, are a prefix of another or repeat one, with the lookahead and scaling as without.
+	 */
+	@Test
+	public void scoresABatchAsEachSentenceAlone() throws Exception
+	{
+		String[] words = { "mary feeds mary", "mary feeds girl who lives", "mary feeds girl", "mary walks",
+				"mary feeds mary", "dog who chases mary walks", "dog", "walks mary", "girl who lives feeds john" };
+		ArrayList<PenSentence> batch = new ArrayList<PenSentence>();
+		EarleyParser parser = new EarleyParser(SIMPLE);
+		PenSentence single;
+		double[] scores;
+
+		for (int options = 0; options < 4; options++)
+		{
+			parser.setPredictionLookahead((options & 1) != 0);
+			parser.setScaling((options & 2) != 0);
+			batch.clear();
+			for (int i = 0; i < words.length; i++)
+			{
+				batch.add(new PenSentence(words[i]));
+			}
+			scores = parser.getLogProbabilities(batch);
+
+			for (int i = 0; i < words.length; i++)
+			{
+				single = new PenSentence(words[i]);
+				assertEquals(words[i], parser.getLogProbability(single), scores[i], 1e-12);
+				for (int k = 0; k < single.getSentenceSize(); k++)
+				{
+					assertEquals(words[i], single.getLogPrefix(k), batch.get(i).getLogPrefix(k), 1e-12);
+				}
+			}
+		}
+		assertEquals(0, parser.getLogProbabilities(new ArrayList<PenSentence>()).length);
+	}
+
+	/**
+	 * The grammar is shared by the parses, so asking it about a name it does not know must not add a symbol.
+	 */
+	@Test
+	public void leavesTheGrammarAsIsWhenAskedAboutUnknownNames() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		Grammar grammar = parser.getGrammar();
+		int nonterminals = grammar.getNonterminalCount();
+		int terminals = grammar.getTerminalCount();
+
+		assertTrue(grammar.getAllRulesWithHead("NP").isEmpty());
+		assertTrue(grammar.getRulesContaining("dog").isEmpty());
+		assertEquals(2, grammar.getAllRulesWithHead("TOP").size());
+		assertEquals(nonterminals, grammar.getNonterminalCount());
+		assertEquals(terminals, grammar.getTerminalCount());
+		assertEquals(1, parser.parseSentence(new PenSentence("a a")).size());
+	}
+
+	/**
+	 * The threads sharing a parser start from copies of the same first column, so their parses give the
+	 * probabilities of parses on one thread, before and after.
+	 */
+	@Test
+	public void parsesOnSeveralThreadsAsOnOne() throws Exception
+	{
+		final EarleyParser parser = new EarleyParser(SIMPLE);
+		final double[] expected = new double[SIMPLE_SENTENCES.length];
+		final boolean[] same = new boolean[4];
+		Thread[] threads = new Thread[same.length];
+
+		for (int i = 0; i < expected.length; i++)
+		{
+			expected[i] = parser.getLogProbability(new PenSentence(SIMPLE_SENTENCES[i]));
+		}
+		// NP VT NP: 0.5 0.5 x 0.3 0.5 x 0.5 0.5
+		assertEquals(Math.log(0.009375), expected[0], 1e-12);
+
+		for (int t = 0; t < threads.length; t++)
+		{
+			final int thread = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					same[thread] = true;
+					for (int n = 0; n < 50; n++)
+					{
+						for (int i = 0; i < expected.length; i++)
+						{
+							same[thread] &= expected[i] == parser.getLogProbability(new PenSentence(SIMPLE_SENTENCES[i]));
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t].join();
+			assertTrue("thread " + t, same[t]);
+		}
+
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(SIMPLE_SENTENCES[i], expected[i], parser.getLogProbability(new PenSentence(SIMPLE_SENTENCES[i])), 0.);
+		}
+	}
+
+	/**
+	 * A sentence parsed again finds every prediction in the cache, and the probabilities are the same with
+	 * the cache disabled.
+	 */
+	@Test
+	public void predictsFromTheCacheAsWithout() throws Exception
+	{
+		EarleyParser cached = new EarleyParser(SIMPLE);
+		EarleyParser uncached = new EarleyParser(SIMPLE);
+		long misses;
+		long hits;
+
+		uncached.setPredictionCacheSize(0);
+		for (int i = 0; i < SIMPLE_SENTENCES.length; i++)
+		{
+			assertEquals(SIMPLE_SENTENCES[i], uncached.getLogProbability(new PenSentence(SIMPLE_SENTENCES[i])),
+					cached.getLogProbability(new PenSentence(SIMPLE_SENTENCES[i])), 0.);
+		}
+		assertEquals(0, uncached.getPredictionCacheHits());
+		assertTrue(cached.getPredictionCacheHits() > 0);
+
+		misses = cached.getPredictionCacheMisses();
+		hits = cached.getPredictionCacheHits();
+		cached.getLogProbability(new PenSentence(SIMPLE_SENTENCES[4]));
+		assertEquals(misses, cached.getPredictionCacheMisses());
+		assertTrue(cached.getPredictionCacheHits() > hits);
+	}
+
+	/**
+	 * A stop is seen by the parses that began before it, whatever the other threads parse afterwards.
+	 */
+	@Test
+	public void tellsEachThreadIfItsParseWasStopped() throws Exception
+	{
+		final EarleyParser parser = new EarleyParser(STOLCKE);
+		final boolean[] stopped = new boolean[1];
+		Thread other = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				parser.parseSentence(new PenSentence("a a"));
+				stopped[0] = parser.isStopped();
+			}
+		};
+
+		parser.parseSentence(new PenSentence("a"));
+		assertFalse(parser.isStopped());
+		parser.stopParsing();
+		other.start();
+		other.join();
+
+		assertFalse(stopped[0]);
+		assertTrue(parser.isStopped());
+	}
+
+	private static double probability(EarleyParser parser, String words)
+	{
+		return probability(parser, new PenSentence(words));
+	}
+
+	private static double probability(EarleyParser parser, Sentence sentence)
+	{
+		return Math.exp(parser.getLogProbability(sentence));
+	}
+}
@@ -0,0 +1,279 @@
+package ontopt.pen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Writes the images of the test grammars, and checks that they are read back as the grammars they were
+ * written from. The text grammars are checked first, with the files they include.
+ */
+public class GrammarImageTest
+{
+	private static final String SIMPLE = "resources/test/uva.simple.grammar";
+
+	private static final String STOLCKE = "resources/test/uva.stolcke.grammar";
+
+	/**
+	 * gramatica1.txt includes qqcoisa.txt, whose rules have weights and an annotation. The comments are not
+	 * rules.
+	 */
+	@Test
+	public void readsTheIncludedFiles() throws Exception
+	{
+		Grammar grammar = new Grammar("resources/test/gramatica1.txt");
+		Rule rule;
+
+		assertEquals(28, grammar.getRuleCount());
+		assertEquals(4, grammar.getAllRulesWithHead("TOP").size());
+		assertEquals("frase exacta", grammar.getAllRulesWithHead("TOP").get(0).getAnnotation());
+
+		assertEquals(2, grammar.getAllRulesWithHead("QUALQUERCOISA").size());
+		rule = grammar.getAllRulesWithHead("QUALQUERCOISA").get(1);
+		assertEquals(-10., rule.getWeight(), 0.);
+		assertEquals(1, (int) rule.size());
+		assertEquals(Grammar.UNKNOWN_TERMINAL, ((NonterminalRule) rule).getBody().get(0));
+		// The accent is read in the default charset, whatever it is
+		assertTrue(rule.getAnnotation().startsWith("qualquer ") && rule.getAnnotation().endsWith("tomo"));
+	}
+
+	/**
+	 * The files are read at once, but their rules are added in the order their includes are found, each file
+	 * once.
+	 */
+	@Test
+	public void addsTheIncludedRulesInOrder() throws Exception
+	{
+		File directory = File.createTempFile("grammar", "");
+		String[][] files = { { "main", "> a", "> b", "0.5 # TOP ::= A", "0.5 # TOP ::= B" },
+				{ "a", "> c", "> b", "1 # A ::= C" }, { "b", "1 # B ::= b" }, { "c", "1 # C ::= c" } };
+		Grammar grammar;
+		FileWriter writer;
+
+		directory.delete();
+		directory.mkdir();
+		try
+		{
+			for (String[] file : files)
+			{
+				writer = new FileWriter(new File(directory, file[0]));
+				for (int i = 1; i < file.length; i++)
+				{
+					writer.write(file[i] + "\n");
+				}
+				writer.close();
+			}
+
+			grammar = new Grammar(new File(directory, "main").getPath());
+			assertEquals(5, grammar.getRuleCount());
+			assertEquals("TOP", grammar.getDataType(grammar.getRule(0).getHead()));
+			assertEquals("TOP", grammar.getDataType(grammar.getRule(1).getHead()));
+			assertEquals("A", grammar.getDataType(grammar.getRule(2).getHead()));
+			assertEquals("B", grammar.getDataType(grammar.getRule(3).getHead()));
+			assertEquals("C", grammar.getDataType(grammar.getRule(4).getHead()));
+			assertEquals(Math.log(0.5), new EarleyParser(new File(directory, "main").getPath())
+					.getLogProbability(new PenSentence("c")), 1e-12);
+		}
+		finally
+		{
+			for (String[] file : files)
+			{
+				new File(directory, file[0]).delete();
+			}
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void readsTheRulesAndTheMatrices() throws Exception
+	{
+		check(SIMPLE);
+		check(STOLCKE);
+	}
+
+	/**
+	 * The flat arrays of the rules hold what the Rule objects do, for the Penn grammar too, whose rules
+	 * headed by terminals have no dense index.
+	 */
+	@Test
+	public void storesTheRulesFlat() throws Exception
+	{
+		checkFlat(new Grammar(SIMPLE));
+		checkFlat(new Grammar(STOLCKE));
+		checkFlat(new Grammar("resources/test/uva.penn0121.grammar.noprob"));
+	}
+
+	@Test
+	public void parsesAsTheTextGrammar() throws Exception
+	{
+		File image = write(STOLCKE);
+
+		try
+		{
+			EarleyParser text = new EarleyParser(STOLCKE);
+			EarleyParser binary = new EarleyParser(image.getPath());
+
+			for (String sentence : new String[] { "a", "a a a", "a a a a a", "a b" })
+			{
+				assertEquals(sentence, text.getLogProbability(new PenSentence(sentence)),
+						binary.getLogProbability(new PenSentence(sentence)), 0.);
+			}
+		}
+		finally
+		{
+			image.delete();
+		}
+	}
+
+	@Test
+	public void refusesAnImageOfAnotherVersion() throws Exception
+	{
+		File image = write(STOLCKE);
+		RandomAccessFile file = new RandomAccessFile(image, "rw");
+
+		try
+		{
+			file.seek(4);
+			file.writeInt(GrammarImage.VERSION + 1);
+			file.close();
+
+			new Grammar(image.getPath());
+			fail("An image of another version was read");
+		}
+		catch (GrammarException e)
+		{
+			// The image is refused, rather than read as an empty grammar
+		}
+		finally
+		{
+			file.close();
+			image.delete();
+		}
+	}
+
+	@Test
+	public void refusesATruncatedImage() throws Exception
+	{
+		File image = write(SIMPLE);
+		RandomAccessFile file = new RandomAccessFile(image, "rw");
+
+		try
+		{
+			file.setLength(file.length() / 2);
+			file.close();
+
+			new Grammar(image.getPath());
+			fail("A truncated image was read");
+		}
+		catch (GrammarException e)
+		{
+			assertTrue(e.toString(), e.toString().contains("Truncated"));
+		}
+		finally
+		{
+			file.close();
+			image.delete();
+		}
+	}
+
+	private static void check(String grammarFile) throws Exception
+	{
+		CompiledGrammar text = new CompiledGrammar(grammarFile);
+		File image = write(grammarFile);
+		CompiledGrammar binary;
+		String lhs;
+		String rhs;
+		int size;
+
+		try
+		{
+			binary = new CompiledGrammar(image.getPath());
+		}
+		finally
+		{
+			image.delete();
+		}
+
+		checkFlat(binary.getGrammar());
+		assertTrue(binary.getGrammar().getLoadTime() > 0);
+		assertEquals(text.getGrammar().getRuleCount(), binary.getGrammar().getRuleCount());
+		for (int r = 0; r < text.getGrammar().getRuleCount(); r++)
+		{
+			assertEquals(text.getGrammar().getRule(r).getHead(), binary.getGrammar().getRule(r).getHead());
+			assertEquals(text.getGrammar().getRule(r).getProbability(), binary.getGrammar().getRule(r).getProbability(), 0.);
+		}
+
+		size = text.getGrammar().getNonterminalCount();
+		assertEquals(size, binary.getGrammar().getNonterminalCount());
+		for (int i = 0; i < size; i++)
+		{
+			lhs = text.getGrammar().getDataType(text.getGrammar().getNonterminalID(i));
+			for (int j = 0; j < size; j++)
+			{
+				rhs = text.getGrammar().getDataType(text.getGrammar().getNonterminalID(j));
+				assertEquals(text.getTransitiveMatrix().getTransitiveLCRelation(i, j),
+						binary.getTransitiveMatrix().getTransitiveLCRelation(i, j), 0.);
+				assertEquals(text.getTransitiveMatrix().getTransitiveUnitRelation(i, j),
+						binary.getTransitiveMatrix().getTransitiveUnitRelation(i, j), 0.);
+				assertEquals(text.getTransitiveMatrix().getTransitiveLCRelation(lhs, rhs),
+						binary.getTransitiveMatrix().getTransitiveLCRelation(lhs, rhs), 0.);
+				assertEquals(text.getTransitiveMatrix().getTransitiveUnitRelation(i, j),
+						binary.getTransitiveMatrix().getTransitiveUnitRelation(lhs, rhs), 0.);
+			}
+		}
+	}
+
+	private static void checkFlat(Grammar grammar)
+	{
+		int[] heads = grammar.getRuleHeads();
+		double[] probabilities = grammar.getRuleProbabilities();
+		int[] bodyOffsets = grammar.getBodyOffsets();
+		int[] bodies = grammar.getBodies();
+		int[] headOffsets = grammar.getHeadOffsets();
+		int[] headRules = grammar.getHeadRules();
+		ArrayList<Integer> body;
+		Rule rule;
+		int nonterminal;
+
+		assertEquals(bodies.length, bodyOffsets[grammar.getRuleCount()]);
+		for (int r = 0; r < grammar.getRuleCount(); r++)
+		{
+			rule = grammar.getRule(r);
+			body = ((NonterminalRule) rule).getBody();
+			assertEquals(r, rule.getID());
+			assertEquals((int) rule.getHead(), heads[r]);
+			assertEquals(rule.getProbability(), probabilities[r], 0.);
+			assertEquals(body.size(), bodyOffsets[r + 1] - bodyOffsets[r]);
+			for (int k = 0; k < body.size(); k++)
+			{
+				assertEquals((int) body.get(k), bodies[bodyOffsets[r] + k]);
+			}
+		}
+
+		assertEquals(headRules.length, headOffsets[grammar.getNonterminalCount()]);
+		for (int i = 0; i < grammar.getNonterminalCount(); i++)
+		{
+			nonterminal = grammar.getNonterminalID(i);
+			assertEquals(grammar.getAllRulesWithHead(grammar.getDataType(nonterminal)).size(), headOffsets[i + 1] - headOffsets[i]);
+			for (int k = headOffsets[i]; k < headOffsets[i + 1]; k++)
+			{
+				assertEquals(nonterminal, heads[headRules[k]]);
+			}
+		}
+	}
+
+	private static File write(String grammarFile) throws Exception
+	{
+		File image = File.createTempFile("grammar", ".pgi");
+
+		GrammarImage.write(new CompiledGrammar(grammarFile), image.getPath());
+		return image;
+	}
+}
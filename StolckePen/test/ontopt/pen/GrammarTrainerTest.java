@@ -0,0 +1,160 @@
+package ontopt.pen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Trains the bundled grammars on a few sentences, and checks the probabilities of the rules of each head add
+ * up to 1 in the grammars written, the likelihood of the corpus does not go down from one iteration to the
+ * next, and the expected counts of a sentence are those of its trees.
+ */
+public class GrammarTrainerTest
+{
+	private static final String PENN = "resources/test/uva.penn0121.grammar.noprob";
+
+	private static final String STOLCKE = "resources/test/uva.stolcke.grammar";
+
+	private static final String CYCLE = "resources/test/uva.cycle.grammar";
+
+	/**
+	 * The Penn grammar has rules headed by terminals ($, '', ...), which have no dense index and are
+	 * normalized among the rules with the same head all the same.
+	 */
+	@Test
+	public void trainsGrammarWithTerminalHeads() throws Exception
+	{
+		ArrayList<String> corpus = new ArrayList<String>();
+
+		corpus.add("tThet tcompanyt");
+		corpus.add("tpricest troset");
+		train(PENN, corpus, 1);
+	}
+
+	@Test
+	public void trainsOnSeveralThreads() throws Exception
+	{
+		ArrayList<String> corpus = new ArrayList<String>();
+
+		corpus.add("a");
+		corpus.add("a a a");
+		corpus.add("a a a a");
+		train(STOLCKE, corpus, 2);
+	}
+
+	/**
+	 * Every tree of "a a a" uses TOP ::= TOP TOP twice and TOP ::= a three times.
+	 */
+	@Test
+	public void countsTheRulesOfEveryTree() throws Exception
+	{
+		double[] counts = getExpectedCounts(STOLCKE, "a a a");
+
+		assertEquals(2., counts[getRuleID(STOLCKE, "TOP - TOP TOP")], 1e-9);
+		assertEquals(3., counts[getRuleID(STOLCKE, "TOP - a")], 1e-9);
+	}
+
+	/**
+	 * "a" goes k times around S ::= T, T ::= S with probability proportional to 0.2^k, so each of the two
+	 * rules is used 0.2 / (1 - 0.2) times on average.
+	 */
+	@Test
+	public void countsTheRulesOfAUnitCycle() throws Exception
+	{
+		double[] counts = getExpectedCounts(CYCLE, "a");
+
+		assertEquals(0.25, counts[getRuleID(CYCLE, "S - T")], 1e-9);
+		assertEquals(0.25, counts[getRuleID(CYCLE, "T - S")], 1e-9);
+		assertEquals(1., counts[getRuleID(CYCLE, "S - a")], 1e-9);
+		assertEquals(0., counts[getRuleID(CYCLE, "T - b")], 1e-9);
+	}
+
+	private static double[] getExpectedCounts(String grammarFile, String sentence) throws Exception
+	{
+		double[] counts = new double[new Grammar(grammarFile).getRuleCount()];
+
+		new EarleyParser(grammarFile).parseForest(new PenSentence(sentence)).addExpectedCounts(counts);
+
+		return counts;
+	}
+
+	private static int getRuleID(String grammarFile, String rule) throws Exception
+	{
+		Grammar grammar = new Grammar(grammarFile);
+
+		for (int i = 0; i < grammar.getRuleCount(); i++)
+		{
+			if (grammar.getRule(i).toString().trim().equals(rule))
+			{
+				return grammar.getRule(i).getID();
+			}
+		}
+		throw new AssertionError(rule);
+	}
+
+	private static void train(String grammarFile, ArrayList<String> corpus, int threads) throws Exception
+	{
+		int iterations = 3;
+		File prefix = File.createTempFile("trainer", "");
+		ByteArrayOutputStream report = new ByteArrayOutputStream();
+		String[] lines;
+		double logLikelihood = Double.NEGATIVE_INFINITY;
+		double current;
+
+		try
+		{
+			new GrammarTrainer(grammarFile, corpus, threads).train(iterations, prefix.getPath(),
+					new PrintStream(report));
+			lines = report.toString().trim().split("\\r?\\n");
+			assertEquals(report.toString(), iterations, lines.length);
+			for (int i = 1; i <= iterations; i++)
+			{
+				assertTrue(lines[i - 1], lines[i - 1].startsWith("iteration " + i + ": log likelihood -"));
+				current = Double.parseDouble(lines[i - 1].substring(lines[i - 1].indexOf('-'),
+						lines[i - 1].indexOf(',')));
+				assertTrue(report.toString(), current >= logLikelihood - 1e-9);
+				logLikelihood = current;
+			}
+			for (int i = 0; i <= iterations; i++)
+			{
+				assertNormalized(new Grammar(prefix.getPath() + "." + i + ".grammar"));
+			}
+		}
+		finally
+		{
+			for (int i = 0; i <= iterations; i++)
+			{
+				new File(prefix.getPath() + "." + i + ".grammar").delete();
+			}
+			prefix.delete();
+		}
+	}
+
+	private static void assertNormalized(Grammar grammar)
+	{
+		HashSet<Integer> heads = new HashSet<Integer>();
+		double total;
+
+		for (int i = 0; i < grammar.getRuleCount(); i++)
+		{
+			if (!heads.add(grammar.getRule(i).getHead()))
+			{
+				continue;
+			}
+
+			total = 0.;
+			for (Rule rule : grammar.getAllRulesWithHead(grammar.getRule(i).getHead()))
+			{
+				total += rule.getProbability();
+			}
+			assertEquals(grammar.getDataType(grammar.getRule(i).getHead()), 1., total, 1e-9);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package ontopt.pen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Feeds sentences of the Stolcke grammar, TOP ::= TOP TOP | a, and of the simple grammar word by word.
+ */
+public class ParseSessionTest
+{
+	private static final String STOLCKE = "resources/test/uva.stolcke.grammar";
+
+	private static final String SIMPLE = "resources/test/uva.simple.grammar";
+
+	/**
+	 * The options are those of the parser when the session was created, whatever they are changed to later.
+	 */
+	@Test
+	public void keepsTheOptionsOfItsCreation() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		ParseSession unchanged = new EarleyParser(STOLCKE).newSession();
+		ParseSession changed = parser.newSession();
+
+		for (int i = 0; i < 5; i++)
+		{
+			if (i == 2)
+			{
+				parser.setScaling(true);
+				parser.setViterbi(true);
+			}
+			unchanged.feed("a");
+			changed.feed("a");
+			assertEquals(unchanged.getLogPrefix(), changed.getLogPrefix(), 0.);
+		}
+		assertEquals(unchanged.finish().size(), changed.finish().size());
+	}
+
+	/**
+	 * Each word is as probable as the prefix it makes over the prefix before it: the subject is a name
+	 * (0.5 x 0.5) or a noun (0.5 x 0.25), then comes an intransitive verb (0.7 x 0.5) or a transitive one
+	 * (0.3 x 0.5).
+	 */
+	@Test
+	public void predictsTheNextWordAsTheFeedScansIt() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(SIMPLE);
+		Grammar grammar = parser.getGrammar();
+		String[] words = { "mary", "feeds", "girl", "who", "lives" };
+		ParseSession session = parser.newSession();
+		double[] distribution;
+		double prefix = 1.;
+		double sum;
+
+		for (int i = 0; i < words.length; i++)
+		{
+			distribution = session.getNextWordDistribution();
+			sum = 0.;
+			for (int t = 0; t < distribution.length; t++)
+			{
+				sum += distribution[t];
+			}
+			assertTrue(words[i], sum <= 1. + 1e-12);
+			if (i == 0)
+			{
+				assertEquals(1., sum, 1e-12);
+				assertEquals(0.25, distribution[grammar.getTerminal("mary")], 1e-12);
+				assertEquals(0.125, distribution[grammar.getTerminal("dog")], 1e-12);
+			}
+			else if (i == 1)
+			{
+				assertEquals(1., sum, 1e-12);
+				assertEquals(0.35, distribution[grammar.getTerminal("walks")], 1e-12);
+				assertEquals(0.15, distribution[grammar.getTerminal("feeds")], 1e-12);
+			}
+
+			prefix *= distribution[grammar.getTerminal(words[i])];
+			assertEquals(words[i], prefix, session.feed(words[i]), 1e-12);
+		}
+
+		session = parser.newSession();
+		session.feed("mary");
+		session.feed("walks");
+		distribution = session.getNextWordDistribution();
+		for (int t = 0; t < distribution.length; t++)
+		{
+			assertEquals(0., distribution[t], 0.);
+		}
+	}
+
+	/**
+	 * After a word the grammar does not know, no word can follow, scaled or not.
+	 */
+	@Test
+	public void predictsNoWordAfterAnUnknownOne() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(SIMPLE);
+		ParseSession plain = parser.newSession();
+		ParseSession scaled;
+		double[] plainDistribution;
+		double[] scaledDistribution;
+
+		parser.setScaling(true);
+		scaled = parser.newSession();
+		plain.feed("mary");
+		scaled.feed("mary");
+		assertEquals(0., plain.feed("xyzzy"), 0.);
+		scaled.feed("xyzzy");
+
+		plainDistribution = plain.getNextWordDistribution();
+		scaledDistribution = scaled.getNextWordDistribution();
+		assertEquals(plainDistribution.length, scaledDistribution.length);
+		for (int t = 0; t < plainDistribution.length; t++)
+		{
+			assertEquals(0., plainDistribution[t], 0.);
+			assertEquals(0., scaledDistribution[t], 0.);
+		}
+	}
+
+	@Test
+	public void scalesAsTheParserDidWhenItWasCreated() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+		ParseSession plain = parser.newSession();
+		ParseSession scaled;
+
+		parser.setScaling(true);
+		scaled = parser.newSession();
+		parser.setScaling(false);
+		for (int i = 0; i < 5; i++)
+		{
+			plain.feed("a");
+			scaled.feed("a");
+			assertEquals(plain.getLogPrefix(), scaled.getLogPrefix(), 1e-12);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package ontopt.pen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Scores sentences of the Stolcke grammar, TOP ::= TOP TOP | a, which gives a sentence of n words the
+ * probability C(n - 1) 0.7^(n - 1) 0.3^n.
+ */
+public class PerplexityEvaluatorTest
+{
+	private static final String STOLCKE = "resources/test/uva.stolcke.grammar";
+
+	@Test
+	public void scoresTheSentences() throws Exception
+	{
+		String[] scores = run(new EarleyParser(STOLCKE), "a\na a a\n");
+
+		assertEquals(Math.log(0.3), Double.parseDouble(scores[1].split("\t")[2]), 1e-12);
+		assertEquals(Math.log(2 * 0.7 * 0.7 * 0.3 * 0.3 * 0.3), Double.parseDouble(scores[2].split("\t")[2]), 1e-12);
+	}
+
+	/**
+	 * The words after the first one the grammar cannot continue with are -Infinity, not NaN.
+	 */
+	@Test
+	public void scoresTheWordsAfterAZeroPrefix() throws Exception
+	{
+		String[] fields = run(new EarleyParser(STOLCKE), "a b a a\n")[1].split("\t");
+		String[] words = fields[3].split(" ");
+
+		assertEquals("-Infinity", fields[2]);
+		assertEquals(5, words.length);
+		assertTrue(Double.parseDouble(words[0]) > Double.NEGATIVE_INFINITY);
+		for (int i = 1; i < words.length; i++)
+		{
+			assertEquals(fields[3], "-Infinity", words[i]);
+		}
+	}
+
+	@Test
+	public void leavesTheParserAsItIs() throws Exception
+	{
+		EarleyParser parser = new EarleyParser(STOLCKE);
+
+		parser.setViterbi(true);
+		run(parser, "a a\n");
+		assertTrue(parser.isViterbi());
+		assertFalse(parser.isScaling());
+		assertFalse(parser.isPredictionLookahead());
+	}
+
+	private static String[] run(EarleyParser parser, String sentences) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		new PerplexityEvaluator(parser, 2).run(new BufferedReader(new StringReader(sentences)), new PrintStream(out),
+				new PrintStream(new ByteArrayOutputStream()));
+
+		return out.toString().split("\r?\n");
+	}
+}